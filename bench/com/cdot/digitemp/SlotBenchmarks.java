@@ -0,0 +1,147 @@
+package com.cdot.digitemp;
+
+import com.cdot.onewire.Bench;
+import com.cdot.onewire.OneWireError;
+import com.cdot.onewire.OneWireSearch;
+import com.cdot.onewire.OneWireSerialDriver;
+import com.cdot.onewire.OneWireSimulatedBus;
+import com.cdot.onewire.OneWireSimulatedThermometer;
+import com.cdot.onewire.OneWireSimulatedUART;
+import com.cdot.onewire.OneWireThermometer;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import jssc.SerialPortException;
+
+/**
+ * Benchmarks for the passive adapter drivers. OneWireTtyDriver is run
+ * against a OneWireSimulatedUART, and if a port is given, it and
+ * OneWireJSSCDriver are run against the real port, to show how much the
+ * fallback costs: setting the baud rate with stty, twice per reset, makes
+ * every device access take milliseconds rather than microseconds.
+ * Arguments: latency=us time=ms warmup=ms filter=string port=device
+ */
+public class SlotBenchmarks {
+
+    /**
+     * Reads through OneWireTtyDriver. The driver is checked against the
+     * stand-in first: presence and no presence, a search, a read that
+     * times out and the reset that drains its late echoes, that slots that
+     * time out fail the echo checks, and the number of times the baud rate
+     * is set for each read.
+     */
+    static void tty(int latency) throws IOException {
+        OneWireSimulatedBus empty = new OneWireSimulatedBus(null);
+        final OneWireSimulatedUART nobody = new OneWireSimulatedUART(empty);
+        OneWireTtyDriver none = new OneWireTtyDriver(nobody, new OneWireTtyDriver.Line() {
+            @Override
+            public void configure(int baud, int stopBits) throws IOException {
+                nobody.configure(baud, stopBits);
+            }
+        }, null);
+        Bench.check(none.reset() == OneWireError.NO_DEVICES_ON_NET, "tty reset, no presence");
+
+        OneWireSimulatedBus bus = new OneWireSimulatedBus(null);
+        bus.latency = latency;
+        for (int i = 0; i < 10; i++) {
+            bus.add(new OneWireSimulatedThermometer(OneWireThermometer.DS18B20, i + 1, 15 + i));
+        }
+        final OneWireSimulatedUART uart = new OneWireSimulatedUART(bus);
+        OneWireTtyDriver tty = new OneWireTtyDriver(uart, new OneWireTtyDriver.Line() {
+            @Override
+            public void configure(int baud, int stopBits) throws IOException {
+                uart.configure(baud, stopBits);
+            }
+        }, null);
+        Bench.check(tty.reset() == OneWireError.NO_ERROR_SET, "tty reset, presence");
+
+        final List<Long> found = new ArrayList<>();
+        OneWireError e = new OneWireSearch(tty).scan(new OneWireSearch.Device() {
+            @Override
+            public OneWireError device(long serialNum) {
+                found.add(serialNum);
+                return OneWireError.NO_ERROR_SET;
+            }
+        });
+        Bench.check(e == OneWireError.NO_ERROR_SET && found.size() == 10, "tty search");
+
+        final OneWireThermometer t = new OneWireThermometer(found.get(0), tty);
+        Bench.check(t.read() == OneWireError.NO_ERROR_SET, "tty read");
+        double temperature = t.temperature;
+
+        // The echoes of slots that time out turn up late, and must not be
+        // taken for the echoes of the next transfer
+        byte[] block = { (byte) 0xFF, (byte) 0xFF };
+        tty.reset();
+        uart.timeouts = 1;
+        Bench.check(!tty.touchBlock(block, 0, block.length, block)
+                && tty.last_error == OneWireError.READCOM_FAILED, "tty slots time out");
+        Bench.check(t.read() == OneWireError.NO_ERROR_SET
+                && t.temperature == temperature,
+                "tty drains late echoes");
+
+        // Slots that fail must fail the echo checks made by callers
+        tty.reset();
+        uart.timeouts = 1;
+        Bench.check(tty.touchByte((byte) 0x55) == (byte) 0xAA, "tty failed byte");
+        tty.reset();
+        uart.timeouts = 1;
+        Bench.check(!tty.touchBit(true), "tty failed bit");
+        tty.reset();
+        uart.timeouts = 1;
+        Bench.check(tty.search((byte) 0xF0, new byte[8], new byte[8], new byte[8]) < 0,
+                "tty failed search");
+
+        // A read starts with a reset, so costs a switch to the reset baud
+        // rate and one back to the data baud rate
+        uart.clearCounters();
+        t.read();
+        Bench.check(uart.configures == 2, "tty read sets the baud rate twice");
+
+        Bench.measure("OneWireTtyDriver read", bus, new Bench.Op() {
+            @Override
+            public int run() {
+                return t.read().ordinal();
+            }
+        });
+    }
+
+    /**
+     * A reset and a byte through a real port, so the baud rate is switched
+     * twice. Errors, for example for no devices on the net, are ignored.
+     */
+    static void port(String name, final OneWireSerialDriver driver) {
+        Bench.measure(name + " reset+byte", null, new Bench.Op() {
+            @Override
+            public int run() {
+                driver.reset();
+                return driver.touchByte((byte) 0xFF);
+            }
+        });
+    }
+
+    public static void main(String[] args) throws IOException, SerialPortException {
+        int latency = Bench.parseArgs(args, "latency", 1000);
+        String portName = null;
+        for (String arg : args) {
+            if (arg.startsWith("port=")) {
+                portName = arg.substring(5);
+            }
+        }
+        Bench.header();
+        tty(latency);
+        if (portName == null) {
+            System.out.println("No port= given; not comparing OneWireTtyDriver with OneWireJSSCDriver");
+            return;
+        }
+
+        OneWireTtyDriver tty = new OneWireTtyDriver(portName, null);
+        Bench.check(tty.last_error == OneWireError.NO_ERROR_SET, "tty open " + portName);
+        port("OneWireTtyDriver", tty);
+        tty.close();
+
+        OneWireJSSCDriver jssc = new OneWireJSSCDriver(portName, null);
+        port("OneWireJSSCDriver", jssc);
+        jssc.serialPort.closePort();
+    }
+}
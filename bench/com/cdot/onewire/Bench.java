@@ -0,0 +1,153 @@
+package com.cdot.onewire;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+
+/**
+ * A minimal benchmark harness. Each benchmark is warmed up, then run in
+ * batches until a minimum time has passed, and reported as time per
+ * operation together with the bus efficiency counters from a
+ * OneWireSimulatedBus (if there is one) and the bytes allocated per
+ * operation (if the JVM can measure it).
+ */
+public class Bench {
+
+    /**
+     * A benchmarked operation. The result is accumulated so that the JIT
+     * can't eliminate the work.
+     */
+    public interface Op {
+        public int run();
+    }
+
+    // Warmup time and measurement time for each benchmark, in ms
+    public static long warmup = 500;
+    public static long time = 2000;
+
+    // Only benchmarks whose names contain this are run
+    public static String filter = "";
+
+    private static int sink;
+
+    private static final ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+    private static final boolean allocationSupported;
+
+    static {
+        boolean ok = false;
+        try {
+            ok = threads instanceof com.sun.management.ThreadMXBean
+                    && ((com.sun.management.ThreadMXBean) threads).isThreadAllocatedMemorySupported();
+            if (ok) {
+                ((com.sun.management.ThreadMXBean) threads).setThreadAllocatedMemoryEnabled(true);
+            }
+        } catch (Throwable t) {
+            ok = false;
+        }
+        allocationSupported = ok;
+    }
+
+    /**
+     * Parse the common arguments, time=ms warmup=ms filter=string
+     *
+     * @param args command line
+     * @param name of an extra integer argument to look for, or null
+     * @param def default value for the extra argument
+     * @return the value of the extra argument
+     */
+    public static int parseArgs(String[] args, String name, int def) {
+        int val = def;
+        for (String arg : args) {
+            int eq = arg.indexOf('=');
+            if (eq < 0) {
+                continue;
+            }
+            String k = arg.substring(0, eq), v = arg.substring(eq + 1);
+            if (k.equals("time")) {
+                time = Long.parseLong(v);
+            } else if (k.equals("warmup")) {
+                warmup = Long.parseLong(v);
+            } else if (k.equals("filter")) {
+                filter = v;
+            } else if (k.equals(name)) {
+                val = Integer.parseInt(v);
+            }
+        }
+        return val;
+    }
+
+    /**
+     * Check that a benchmark's setup works before timing it, so that a
+     * broken path fails the run rather than being measured
+     *
+     * @param ok the condition to check
+     * @param what what was checked
+     */
+    public static void check(boolean ok, String what) {
+        if (!ok) {
+            throw new IllegalStateException("Check failed: " + what);
+        }
+    }
+
+    private static long allocated() {
+        if (!allocationSupported) {
+            return 0;
+        }
+        return ((com.sun.management.ThreadMXBean) threads)
+                .getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+
+    /**
+     * Print the column headings
+     */
+    public static void header() {
+        System.out.println(String.format("%-32s %12s %10s %12s %10s %10s %10s",
+                "benchmark", "ns/op", "bus ms/op", "round trips", "slots", "wire B", "alloc B"));
+    }
+
+    private static long run(Op op, long ms) {
+        long end = System.nanoTime() + ms * 1000000L;
+        long n = 0;
+        int s = 0;
+        do {
+            s += op.run();
+            n++;
+        } while (System.nanoTime() < end);
+        sink += s;
+        return n;
+    }
+
+    /**
+     * Run a benchmark and print the result
+     *
+     * @param name name of the benchmark
+     * @param bus simulated bus used by the operation, or null
+     * @param op operation to benchmark
+     */
+    public static void measure(String name, OneWireSimulatedBus bus, Op op) {
+        if (!name.contains(filter)) {
+            return;
+        }
+        run(op, warmup);
+
+        if (bus != null) {
+            bus.clearCounters();
+        }
+        long busStart = bus == null ? 0 : bus.nanoTime();
+        long alloc = allocated();
+        long start = System.nanoTime();
+        long n = run(op, time);
+        long elapsed = System.nanoTime() - start;
+        alloc = allocated() - alloc;
+
+        String busTime = "-", trips = "-", slots = "-", bytes = "-";
+        if (bus != null) {
+            busTime = String.format("%.3f", (bus.nanoTime() - busStart) / 1e6 / n);
+            trips = String.format("%.1f", (double) bus.roundTrips / n);
+            slots = String.format("%.1f", (double) bus.slots / n);
+            bytes = String.format("%.1f", bus.slots / 8.0 / n);
+        }
+        System.out.println(String.format("%-32s %12.1f %10s %12s %10s %10s %10s",
+                name, (double) elapsed / n, busTime, trips, slots, bytes,
+                allocationSupported ? String.format("%.1f", (double) alloc / n) : "-"));
+    }
+}
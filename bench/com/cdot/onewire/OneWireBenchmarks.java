@@ -0,0 +1,329 @@
+package com.cdot.onewire;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Benchmarks for the hot paths of the library, run against a
+ * OneWireSimulatedBus.
+ * Arguments: latency=us time=ms warmup=ms filter=string
+ */
+public class OneWireBenchmarks {
+
+    private static final int[] BUS_SIZES = { 1, 10, 50, 100, 200 };
+
+    private static final byte[] FAMILIES = {
+        OneWireThermometer.DS18B20, OneWireThermometer.DS1822,
+        OneWireThermometer.DS28EA00, OneWireThermometer.DS1820
+    };
+
+    /**
+     * Make a bus with n thermometers of assorted families
+     */
+    static OneWireSimulatedBus makeBus(int n, int latency) {
+        OneWireSimulatedBus bus = new OneWireSimulatedBus(null);
+        bus.latency = latency;
+        Random r = new Random(n);
+        for (int i = 0; i < n; i++) {
+            bus.add(new OneWireSimulatedThermometer(FAMILIES[i % FAMILIES.length],
+                    r.nextLong(), 15 + r.nextDouble() * 10));
+        }
+        return bus;
+    }
+
+    static void crc8() {
+        final byte[] data = new byte[1024];
+        new Random(0).nextBytes(data);
+        final CRC8 crc = new CRC8();
+        Bench.measure("CRC8.add 1KiB", null, new Bench.Op() {
+            @Override
+            public int run() {
+                crc.set(0);
+                for (byte b : data) {
+                    crc.add(b);
+                }
+                return crc.get();
+            }
+        });
+        Bench.measure("CRC8.compute 1KiB", null, new Bench.Op() {
+            @Override
+            public int run() {
+                return CRC8.compute(0, data, 0, data.length);
+            }
+        });
+        final ByteBuffer direct = ByteBuffer.allocateDirect(data.length);
+        direct.put(data);
+        Bench.measure("CRC8.compute direct 1KiB", null, new Bench.Op() {
+            @Override
+            public int run() {
+                direct.rewind();
+                return CRC8.compute(0, direct);
+            }
+        });
+        Bench.measure("CRC16.compute 1KiB", null, new Bench.Op() {
+            @Override
+            public int run() {
+                return CRC16.compute(0, data, 0, data.length);
+            }
+        });
+    }
+
+    /**
+     * The slot encoding and decoding done by OneWirePassiveDriver, without
+     * a serial port
+     */
+    static void slots() {
+        // A byte, as sent by touchByte
+        final byte[] one = { (byte) 0xA5 };
+        final ByteBuffer slots8 = ByteBuffer.allocateDirect(8);
+        Bench.measure("Passive touchByte encode/decode", null, new Bench.Op() {
+            @Override
+            public int run() {
+                byte[] receive = new byte[1];
+                OneWirePassiveDriver.encodeSlots(one, 0, 8, slots8);
+                OneWirePassiveDriver.decodeSlots(slots8, 0, 8, receive);
+                return receive[0];
+            }
+        });
+
+        // A full FIFO, as sent by touchBlock
+        final int n = OneWireSerialDriver.UART_FIFO_SIZE;
+        final byte[] block = new byte[n / 8];
+        for (int i = 0; i < block.length; i++) {
+            block[i] = (byte) (i * 37);
+        }
+        final ByteBuffer slots = ByteBuffer.allocateDirect(n);
+        Bench.measure("Passive touchBlock encode/decode", null, new Bench.Op() {
+            @Override
+            public int run() {
+                byte[] receive = new byte[block.length];
+                OneWirePassiveDriver.encodeSlots(block, 0, n, slots);
+                OneWirePassiveDriver.decodeSlots(slots, 0, n, receive);
+                return receive[0];
+            }
+        });
+    }
+
+    static void search(int latency) {
+        for (int n : BUS_SIZES) {
+            final OneWireSimulatedBus bus = makeBus(n, latency);
+            final OneWireSearch search = new OneWireSearch(bus);
+            final OneWireSearch.Device counter = new OneWireSearch.Device() {
+                @Override
+                public OneWireError device(long serialNum) {
+                    return OneWireError.NO_ERROR_SET;
+                }
+            };
+            Bench.measure("OneWireSearch.scan " + n, bus, new Bench.Op() {
+                @Override
+                public int run() {
+                    return search.scan(counter).ordinal();
+                }
+            });
+        }
+    }
+
+    /**
+     * Make a bus with a chain of n DS28EA00s, wired in a different order
+     * from the one they were added in
+     */
+    static OneWireSimulatedBus makeChain(int n, int latency) {
+        OneWireSimulatedBus bus = new OneWireSimulatedBus(null);
+        bus.latency = latency;
+        Random r = new Random(n);
+        OneWireSimulatedThermometer previous = null;
+        for (int i = 0; i < n; i++) {
+            OneWireSimulatedThermometer t = new OneWireSimulatedThermometer(
+                    OneWireThermometer.DS28EA00, r.nextLong(), 15 + r.nextDouble() * 10);
+            t.enabledBy = previous;
+            previous = t;
+            bus.add(t);
+        }
+        Collections.shuffle(bus.getDevices(), r);
+        return bus;
+    }
+
+    static void chain(int latency) {
+        for (int n : BUS_SIZES) {
+            final OneWireSimulatedBus bus = makeChain(n, latency);
+            final OneWireChain chain = new OneWireChain(bus);
+            final OneWireSearch.Device counter = new OneWireSearch.Device() {
+                @Override
+                public OneWireError device(long serialNum) {
+                    return OneWireError.NO_ERROR_SET;
+                }
+            };
+            Bench.measure("OneWireChain.scan " + n, bus, new Bench.Op() {
+                @Override
+                public int run() {
+                    return chain.scan(counter).ordinal();
+                }
+            });
+        }
+    }
+
+    static void update(int latency) {
+        OneWireSimulatedBus bus = makeBus(1, latency);
+        final OneWireThermometer t = new OneWireThermometer(
+                bus.getDevices().get(0).serialNumber, bus);
+        Bench.measure("OneWireThermometer.update", bus, new Bench.Op() {
+            @Override
+            public int run() {
+                return t.update().ordinal();
+            }
+        });
+        Bench.measure("OneWireThermometer.read", bus, new Bench.Op() {
+            @Override
+            public int run() {
+                return t.read().ordinal();
+            }
+        });
+    }
+
+    static void sample(int latency) {
+        OneWireSimulatedBus bus = makeBus(10, latency);
+        final List<OneWireThermometer> ts = new ArrayList<>();
+        for (OneWireSimulatedDevice d : bus.getDevices()) {
+            ts.add(new OneWireThermometer(d.serialNumber, bus));
+        }
+        final OneWireSampler sampler = new OneWireSampler(bus);
+        Bench.measure("OneWireSampler.sample 10", bus, new Bench.Op() {
+            @Override
+            public int run() {
+                return sampler.sample(ts).size();
+            }
+        });
+    }
+
+    /**
+     * Sampling a net of DS28EA00s at overdrive speed. The first cycle puts
+     * them into overdrive, and they are kept there, so later cycles need
+     * no standard speed resets.
+     */
+    static void overdrive(int latency) {
+        OneWireSimulatedBus bus = new OneWireSimulatedBus(null);
+        bus.latency = latency;
+        Random r = new Random(10);
+        final List<OneWireThermometer> ts = new ArrayList<>();
+        for (int i = 0; i < 10; i++) {
+            OneWireSimulatedThermometer d = new OneWireSimulatedThermometer(
+                    OneWireThermometer.DS28EA00, r.nextLong(), 15 + r.nextDouble() * 10);
+            bus.add(d);
+            OneWireThermometer t = new OneWireThermometer(d.serialNumber, bus);
+            Bench.check(t.setOverdrive(true), "overdrive thermometer");
+            ts.add(t);
+        }
+        final OneWireSampler sampler = new OneWireSampler(bus);
+        Bench.check(sampler.setOverdrive(true), "overdrive sampler");
+        for (OneWireReading reading : sampler.sample(ts)) {
+            Bench.check(reading.status == OneWireError.NO_ERROR_SET, "overdrive sample");
+        }
+        Bench.check(bus.getSession().isOverdrive(), "overdrive sample stays at overdrive speed");
+
+        Bench.measure("OneWireSampler overdrive 10", bus, new Bench.Op() {
+            @Override
+            public int run() {
+                return sampler.sample(ts).size();
+            }
+        });
+    }
+
+    static void hygrochron(int latency) {
+        OneWireSimulatedBus bus = new OneWireSimulatedBus(null);
+        bus.latency = latency;
+        OneWireSimulatedHygrochron s = new OneWireSimulatedHygrochron(1);
+        bus.add(s);
+        Random r = new Random(1);
+        s.startMission(0, 600, true, true, true, true);
+        for (int i = 0; i < 5000; i++) {
+            s.addSample(15 + r.nextDouble() * 10, 40 + r.nextDouble() * 20);
+        }
+        final OneWireHygrochron h = new OneWireHygrochron(s.serialNumber, bus);
+        final OneWireHygrochron.Log log = new OneWireHygrochron.Log() {
+            @Override
+            public OneWireError sample(OneWireHygrochron.Channel c, int index, long time, double value) {
+                return OneWireError.NO_ERROR_SET;
+            }
+        };
+        Bench.measure("OneWireHygrochron.downloadLog", bus, new Bench.Op() {
+            @Override
+            public int run() {
+                return h.downloadLog(log).ordinal();
+            }
+        });
+    }
+
+    /**
+     * Search and parasite powered conversions through OneWireDS2480Driver,
+     * against a simulated DS2480B. The stand-in is checked first: reset,
+     * search, an alarm search that no device answers, and that the strong
+     * pullup is released after a conversion.
+     */
+    static void ds2480(int latency) {
+        final OneWireSimulatedBus bus = makeBus(10, latency);
+        for (OneWireSimulatedDevice d : bus.getDevices()) {
+            ((OneWireSimulatedThermometer) d).parasite = true;
+        }
+        final OneWireSimulatedDS2480 ds2480 = new OneWireSimulatedDS2480(bus, null);
+        Bench.check(ds2480.reset() == OneWireError.NO_ERROR_SET, "DS2480 reset");
+        final OneWireSearch search = new OneWireSearch(ds2480);
+        final List<Long> found = new ArrayList<>();
+        final OneWireSearch.Device collect = new OneWireSearch.Device() {
+            @Override
+            public OneWireError device(long serialNum) {
+                found.add(serialNum);
+                return OneWireError.NO_ERROR_SET;
+            }
+        };
+        Bench.check(search.scan(collect) == OneWireError.NO_ERROR_SET
+                && found.size() == 10, "DS2480 search");
+
+        OneWireSimulatedBus quietBus = makeBus(1, latency);
+        OneWireSimulatedDS2480 quiet = new OneWireSimulatedDS2480(quietBus, null);
+        OneWireThermometer q = new OneWireThermometer(
+                quietBus.getDevices().get(0).serialNumber, quiet);
+        List<Long> all = new ArrayList<>(found);
+        found.clear();
+        Bench.check(q.configure(12, 100, -50, false) == OneWireError.NO_ERROR_SET
+                && q.update() == OneWireError.NO_ERROR_SET
+                && new OneWireSearch(quiet).scan(collect, true) == OneWireError.NO_ERROR_SET
+                && found.isEmpty(), "DS2480 alarm search with no alarms");
+
+        final OneWireThermometer t = new OneWireThermometer(all.get(0), ds2480);
+        Bench.check(t.update() == OneWireError.NO_ERROR_SET && t.parasite
+                && !ds2480.isPulsing() && bus.getLevel() == OneWireSerialDriver.MODE.NORMAL,
+                "DS2480 strong pullup released");
+
+        Bench.measure("OneWireDS2480Driver search 10", bus, new Bench.Op() {
+            @Override
+            public int run() {
+                found.clear();
+                return search.scan(collect).ordinal();
+            }
+        });
+        Bench.measure("OneWireDS2480Driver update", bus, new Bench.Op() {
+            @Override
+            public int run() {
+                return t.update().ordinal();
+            }
+        });
+    }
+
+    public static void main(String[] args) {
+        int latency = Bench.parseArgs(args, "latency", 1000);
+        System.out.println("Round trip latency " + latency + "us");
+        Bench.header();
+        crc8();
+        slots();
+        search(latency);
+        chain(latency);
+        update(latency);
+        sample(latency);
+        overdrive(latency);
+        hygrochron(latency);
+        ds2480(latency);
+    }
+}
@@ -1,50 +1,127 @@
 package com.cdot.digitemp;
 
+import com.cdot.onewire.OneWireBusMetrics;
 import com.cdot.onewire.OneWireError;
-import com.cdot.onewire.OneWireSearch;
+import com.cdot.onewire.OneWireMultiBus;
+import com.cdot.onewire.OneWireReading;
+import com.cdot.onewire.OneWireRegistry;
 import com.cdot.onewire.OneWireSerialDriver;
 import com.cdot.onewire.OneWireThermometer;
+import java.io.File;
+import java.io.IOException;
 import jssc.SerialPortList;
 
 /**
- * Digital thermometer example main. Scans the 1-wire net to find thermometers
- * and samples them. Does not check what the device it found is - assumes
- * they are all thermometers.
+ * Digital thermometer example main. Finds the thermometers on the 1-wire
+ * nets on all serial ports at once and samples them. Does not check what
+ * the device it found is - assumes they are all thermometers.
+ * Devices seen before are remembered in ~/.digitemp-registry, and are
+ * checked and sampled straight away; the full search for new devices is
+ * done after sampling.
+ * Pass -ds2480 to talk to DS2480B based adapters (e.g. DS9097U) instead of
+ * passive serial adapters, -tty to use passive serial adapters on Linux
+ * tty devices where the JSSC native library is not available (much
+ * slower, as it runs stty twice for every device access), and -metrics to
+ * print counts and timings for each net at the end.
  */
 public class DigiTemp {
     public static void main(String[] args) {
-        String[] portNames = SerialPortList.getPortNames();
+        boolean ds2480 = false, tty = false, metrics = false;
+        for (String arg : args) {
+            if (arg.equals("-ds2480")) {
+                ds2480 = true;
+            } else if (arg.equals("-tty")) {
+                tty = true;
+            } else if (arg.equals("-metrics")) {
+                metrics = true;
+            }
+        }
+        OneWireSerialDriver.Logger logger = new OneWireSerialDriver.Logger() {
+            @Override
+            public synchronized void log(String s) {
+                System.out.println(s);
+            }
+        };
+
+        String[] portNames = tty ? OneWireTtyDriver.getPortNames()
+                : SerialPortList.getPortNames();
+        OneWireMultiBus buses = new OneWireMultiBus();
         System.out.println("Scanning serial ports");
         for (String portName: portNames){
             System.out.println("Found serial port " + portName);
 
             // Construct a driver for this port 
-            final OneWireSerialDriver driver = new OneWireJSSCDriver(portName, new OneWireSerialDriver.Logger() {
-                @Override
-                public void log(String s) {
-                    System.out.println(s);
-                }
-            });
-            
-            // Scan the 1-wire bus for supported devices
-            OneWireSearch scanner = new OneWireSearch(driver);
-
-            scanner.scan(new OneWireSearch.Device() {
-                @Override
-                public OneWireError device(long serno) {
-                    System.out.println(String.format("Found 1-wire device %X", serno));
-                    if (!OneWireThermometer.supportsDevice(serno)) {
-                        System.out.println("\t- not supported");
-                        return OneWireError.NO_ERROR_SET;
+            final OneWireSerialDriver driver;
+            try {
+                if (ds2480) {
+                    driver = new OneWireJSSCDS2480Driver(portName, logger);
+                } else if (tty) {
+                    driver = new OneWireTtyDriver(portName, logger);
+                    if (driver.last_error != OneWireError.NO_ERROR_SET) {
+                        System.out.println("\t- could not open: " + driver.last_error);
+                        continue;
                     }
-                    OneWireThermometer owt = new OneWireThermometer(serno, driver);
-                    owt.update();
-                    System.out.println(owt);
-                    return OneWireError.NO_ERROR_SET;
+                } else {
+                    driver = new OneWireJSSCDriver(portName, logger);
                 }
-            });
+            } catch (Error e) {
+                System.out.println("\t- could not open: " + e.getMessage());
+                continue;
+            }
+            if (metrics) {
+                driver.setMetrics(new OneWireBusMetrics());
+            }
+            buses.add(portName, driver);
+        }
+
+        // Check the devices we already know about; nets with none are
+        // searched
+        OneWireRegistry registry = new OneWireRegistry(
+                new File(System.getProperty("user.home"), ".digitemp-registry"));
+        try {
+            registry.load();
+        } catch (IOException ioe) {
+            System.out.println("Could not read registry: " + ioe);
+        }
+        buses.restore(registry);
+        for (OneWireMultiBus.Bus bus : buses.getBuses()) {
+            if (bus.last_error != OneWireError.NO_ERROR_SET) {
+                System.out.println(bus.name + ": " + bus.last_error);
+            }
+            for (long serno : bus.devices) {
+                System.out.println(String.format("Found 1-wire device %X on %s", serno, bus.name));
+                if (!OneWireThermometer.supportsDevice(serno)) {
+                    System.out.println("\t- not supported");
+                }
+            }
+        }
+
+        // Sample the thermometers on all the nets together
+        buses.sample();
+        for (OneWireMultiBus.Bus bus : buses.getBuses()) {
+            for (int i = 0; i < bus.readings.size(); i++) {
+                OneWireReading r = bus.readings.get(i);
+                if (r.status == OneWireError.NO_ERROR_SET) {
+                    System.out.println(bus.thermometers.get(i));
+                } else {
+                    System.out.println(r);
+                }
+            }
         }
-    }
-}
 
+        // Search for devices we don't know about yet, for next time
+        buses.discoverLater(registry);
+        buses.close();
+        try {
+            registry.save();
+        } catch (IOException ioe) {
+            System.out.println("Could not save registry: " + ioe);
+        }
 
+        if (metrics) {
+            for (OneWireMultiBus.Bus bus : buses.getBuses()) {
+                System.out.print(bus.name + ":\n" + bus.driver.getMetrics());
+            }
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package com.cdot.digitemp;
+
+import com.cdot.onewire.OneWireDS2480Driver;
+import jssc.SerialPort;
+import jssc.SerialPortException;
+import jssc.SerialPortTimeoutException;
+
+/**
+ * 1-wire interface to a DS2480B based adapter (e.g. DS9097U) using the JSSC
+ * serial port library
+ */
+class OneWireJSSCDS2480Driver extends OneWireDS2480Driver {
+
+    // ms to wait for the DS2480B to respond
+    private static final int READ_TIMEOUT = 500;
+
+    // ms duration of the break used to reset the DS2480B
+    private static final int BREAK_DURATION = 20;
+
+    SerialPort serialPort;
+
+    OneWireJSSCDS2480Driver(String portname, Logger log) {
+        super(log);
+        try {
+            serialPort = new SerialPort(portname);
+            serialPort.openPort();
+        } catch (SerialPortException se) {
+            throw new Error(se);
+        }
+    }
+
+    @Override
+    protected boolean setBaudCOM(int baud) {
+        try {
+            return serialPort.setParams(baud,
+                    SerialPort.DATABITS_8,
+                    SerialPort.STOPBITS_1,
+                    SerialPort.PARITY_NONE);
+        } catch (SerialPortException se) {
+            logger.log("setBaudCOM " + se);
+            return false;
+        }
+    }
+
+    @Override
+    protected void breakCOM() {
+        try {
+            serialPort.sendBreak(BREAK_DURATION);
+        } catch (SerialPortException se) {
+            logger.log("breakCOM " + se);
+        }
+    }
+
+    @Override
+    protected void flushCOM() {
+        try {
+            serialPort.purgePort(SerialPort.PURGE_RXCLEAR
+                    | SerialPort.PURGE_TXCLEAR);
+        } catch (SerialPortException se) {
+            logger.log("flushCOM " + se);
+        }
+    }
+
+    @Override
+    protected boolean writeCOM(byte[] buf, int len) {
+        try {
+            if (len == buf.length) {
+                return serialPort.writeBytes(buf);
+            }
+            byte[] part = new byte[len];
+            System.arraycopy(buf, 0, part, 0, len);
+            return serialPort.writeBytes(part);
+        } catch (SerialPortException se) {
+            logger.log("writeCOM " + se);
+            return false;
+        }
+    }
+
+    /**
+     * JSSC only reads into an array of its own, so the bytes are copied
+     */
+    @Override
+    protected boolean readCOM(byte[] buf, int off, int len) {
+        try {
+            System.arraycopy(serialPort.readBytes(len, READ_TIMEOUT), 0, buf, off, len);
+            return true;
+        } catch (SerialPortException se) {
+            logger.log("readCOM " + se);
+        } catch (SerialPortTimeoutException te) {
+            logger.log("readCOM " + te);
+        }
+        return false;
+    }
+
+    @Override
+    public void msDelay(int len) {
+        try {
+            Thread.sleep(len, 0);
+        } catch (InterruptedException ie) {
+        }
+    }
+}
@@ -0,0 +1,252 @@
+package com.cdot.digitemp;
+
+import com.cdot.onewire.OneWireError;
+import com.cdot.onewire.OneWirePassiveDriver;
+import com.cdot.onewire.OneWireSerialDriver;
+import java.io.File;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+
+/**
+ * 1-wire serial port interface for Linux tty devices that needs no native
+ * library, for use where the JSSC native library is not available, for
+ * example on some ARM boards. It is a fallback, and it is slow.
+ * <p>
+ * Java has no API for terminal settings, so the baud rate is set by
+ * running stty. A reset needs 9600 baud and the slots after it 115200, and
+ * a passive adapter has no other way to make a reset pulse, so every
+ * device access runs stty twice. That costs milliseconds per access
+ * (4.6ms for a reset and a byte on a pseudo-terminal, against 9us through
+ * OneWireJSSCDriver), far longer than the 1-wire traffic itself. Use
+ * OneWireJSSCDriver wherever JSSC works; SlotBenchmarks measures the two
+ * against a real port given with port=.
+ * <p>
+ * The channel and the Line that sets its baud rate can be supplied
+ * separately, so the driver can be run against a pseudo-terminal or any
+ * other stand-in for the adapter, such as OneWireSimulatedUART. Errors are
+ * logged and put in last_error; nothing is thrown. As the channel is
+ * interruptible, interrupting a thread that is using the driver closes the
+ * port.
+ */
+class OneWireTtyDriver extends OneWirePassiveDriver {
+
+    /**
+     * Sets the line parameters of the port. Always 8 data bits, no parity.
+     */
+    interface Line {
+
+        /**
+         * @param baud baud rate
+         * @param stopBits 1 or 2
+         * @throws IOException if the port could not be set up
+         */
+        public void configure(int baud, int stopBits) throws IOException;
+    }
+
+    /**
+     * A Line that sets a tty device with stty
+     */
+    static class Stty implements Line {
+
+        private final String device;
+
+        /**
+         * Put the device into raw mode, with reads that time out
+         *
+         * @param device path of the tty, e.g. /dev/ttyUSB0
+         * @param timeout read timeout, in tenths of a second
+         * @throws IOException if stty failed
+         */
+        Stty(String device, int timeout) throws IOException {
+            this.device = device;
+            stty("raw", "-echo", "-hupcl", "clocal", "cread", "cs8", "-parenb",
+                    "-crtscts", "-ixon", "-ixoff", "min", "0", "time",
+                    Integer.toString(timeout));
+        }
+
+        @Override
+        public void configure(int baud, int stopBits) throws IOException {
+            String b = Integer.toString(baud);
+            stty("ispeed", b, "ospeed", b, stopBits == 2 ? "cstopb" : "-cstopb");
+        }
+
+        private void stty(String... args) throws IOException {
+            String[] cmd = new String[args.length + 3];
+            cmd[0] = "stty";
+            cmd[1] = "-F";
+            cmd[2] = device;
+            System.arraycopy(args, 0, cmd, 3, args.length);
+            Process p = new ProcessBuilder(cmd).redirectErrorStream(true).start();
+            StringBuilder out = new StringBuilder();
+            try (InputStream in = p.getInputStream()) {
+                int c;
+                while ((c = in.read()) >= 0) {
+                    out.append((char) c);
+                }
+            }
+            try {
+                if (p.waitFor() != 0) {
+                    throw new IOException("stty " + args[0] + ": " + out.toString().trim());
+                }
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                throw new IOException("stty interrupted");
+            }
+        }
+    }
+
+    // Read timeout set by Stty, in tenths of a second
+    private static final int READ_TIMEOUT = 5;
+
+    private ByteChannel channel;
+    private final Line line;
+
+    // Used to drain stale echoes
+    private final ByteBuffer drain = ByteBuffer.allocateDirect(OneWireSerialDriver.UART_FIFO_SIZE);
+
+    /**
+     * Open a tty device. If it can't be opened, last_error is
+     * OPENCOM_FAILED, and everything the driver is asked to do fails.
+     *
+     * @param device path of the tty, e.g. /dev/ttyUSB0
+     * @param log may be null if debug logging is not required
+     */
+    OneWireTtyDriver(String device, Logger log) {
+        super(log);
+        Line l = null;
+        try {
+            l = new Stty(device, READ_TIMEOUT);
+            channel = FileChannel.open(Paths.get(device),
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            last_error = OneWireError.NO_ERROR_SET;
+        } catch (IOException ioe) {
+            logger.log("open " + device + " " + ioe);
+            last_error = OneWireError.OPENCOM_FAILED;
+        }
+        line = l;
+    }
+
+    /**
+     * Use a channel that is already open. Reads from the channel must time
+     * out, returning 0 or -1, rather than block forever.
+     *
+     * @param ch channel to the adapter
+     * @param l sets the baud rate of the channel
+     * @param log may be null if debug logging is not required
+     */
+    OneWireTtyDriver(ByteChannel ch, Line l, Logger log) {
+        super(log);
+        channel = ch;
+        line = l;
+        last_error = OneWireError.NO_ERROR_SET;
+    }
+
+    /**
+     * List the tty devices that might have a serial adapter on them, as
+     * JSSC's SerialPortList does on Linux
+     *
+     * @return paths of the devices
+     */
+    static String[] getPortNames() {
+        File[] files = new File("/dev").listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.matches("tty(S|USB|ACM|AMA)[0-9]+");
+            }
+        });
+        if (files == null) {
+            return new String[0];
+        }
+        String[] names = new String[files.length];
+        for (int i = 0; i < files.length; i++) {
+            names[i] = files[i].getPath();
+        }
+        Arrays.sort(names);
+        return names;
+    }
+
+    /**
+     * Close the port
+     */
+    void close() {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException ioe) {
+                logger.log("close " + ioe);
+            }
+            channel = null;
+        }
+    }
+
+    @Override
+    protected boolean setParamsCOM(int baud, int stopBits) {
+        if (channel == null) {
+            return false;
+        }
+        try {
+            line.configure(baud, stopBits);
+            return true;
+        } catch (IOException ioe) {
+            logger.log("setParamsCOM " + baud + " " + ioe);
+            return false;
+        }
+    }
+
+    /**
+     * Echoes from a transfer that timed out may still be arriving, so read
+     * until a read times out
+     */
+    @Override
+    protected void flushCOM() {
+        if (channel == null) {
+            return;
+        }
+        try {
+            while (true) {
+                drain.clear();
+                if (channel.read(drain) <= 0) {
+                    break;
+                }
+            }
+        } catch (IOException ioe) {
+            logger.log("flushCOM " + ioe);
+        }
+    }
+
+    /**
+     * A read that returns nothing has timed out
+     */
+    @Override
+    protected OneWireError transferCOM(ByteBuffer tx, ByteBuffer rx) {
+        if (channel == null) {
+            return OneWireError.OPENCOM_FAILED;
+        }
+        try {
+            while (tx.hasRemaining()) {
+                channel.write(tx);
+            }
+        } catch (IOException ioe) {
+            logger.log("writeCOM " + ioe);
+            return OneWireError.WRITECOM_FAILED;
+        }
+        try {
+            while (rx.hasRemaining()) {
+                if (channel.read(rx) <= 0) {
+                    return OneWireError.READCOM_FAILED;
+                }
+            }
+        } catch (IOException ioe) {
+            logger.log("readCOM " + ioe);
+            return OneWireError.READCOM_FAILED;
+        }
+        return OneWireError.NO_ERROR_SET;
+    }
+}
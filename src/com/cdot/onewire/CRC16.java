@@ -0,0 +1,163 @@
+package com.cdot.onewire;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 16-bit CRC16 accumulator, as used by 1-wire memory, counter and logger
+ * devices (polynomial X^16 + X^15 + X^2 + 1, LSB first).
+ * <p>
+ * Devices send the CRC16 inverted, LSB first, after the data it covers.
+ * Adding those two bytes to the CRC16 of the data always leaves
+ * GOOD_RESIDUE, so a block can be checked as it arrives without knowing
+ * where the data ends and the CRC begins.
+ * <p>
+ * Like CRC8, the static methods don't allocate and work four bytes at a
+ * time.
+ */
+public class CRC16 {
+
+    /**
+     * The CRC16 of a block followed by its inverted CRC16
+     */
+    public static final int GOOD_RESIDUE = 0xB001;
+
+    private int crc; // accumulator
+
+    // CRC16 of each byte value starting from 0, and of each byte value
+    // followed by 1, 2 and 3 zero bytes
+    private static final int[] TABLE = new int[256];
+    private static final int[] SLICE1 = new int[256];
+    private static final int[] SLICE2 = new int[256];
+    private static final int[] SLICE3 = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            int c = i;
+            for (int j = 0; j < 8; j++) {
+                c = ((c & 1) != 0) ? (c >>> 1) ^ 0xA001 : c >>> 1;
+            }
+            TABLE[i] = c;
+        }
+        for (int i = 0; i < 256; i++) {
+            SLICE1[i] = (TABLE[i] >>> 8) ^ TABLE[TABLE[i] & 0xFF];
+            SLICE2[i] = (SLICE1[i] >>> 8) ^ TABLE[SLICE1[i] & 0xFF];
+            SLICE3[i] = (SLICE2[i] >>> 8) ^ TABLE[SLICE2[i] & 0xFF];
+        }
+    }
+
+    public CRC16() {
+        crc = 0;
+    }
+
+    /**
+     * Reset accumulator to the value passed in (normally 0 to reset)
+     * @param reset data to set CRC16 to
+     */
+    public void set(int reset) {
+        crc = reset & 0xFFFF;
+    }
+
+    /**
+     * Get the current CRC16 accumulator
+     * @return the accumulator
+     */
+    public int get() {
+        return crc;
+    }
+
+    /**
+     * @return true if the bytes added so far end with their own inverted
+     * CRC16, and it matches
+     */
+    public boolean isGood() {
+        return crc == GOOD_RESIDUE;
+    }
+
+    /**
+     * Calculate a new CRC16 from the input byte.
+     * @param data input byte to add to the CRC16
+     */
+    public void add(byte data) {
+        crc = (crc >>> 8) ^ TABLE[(crc ^ data) & 0xFF];
+    }
+
+    /**
+     * Add a block of bytes to the CRC16, for example as each part of a
+     * transfer arrives
+     * @param data buffer holding the bytes
+     * @param off offset of the first byte
+     * @param len number of bytes
+     */
+    public void add(byte[] data, int off, int len) {
+        crc = compute(crc, data, off, len);
+    }
+
+    /**
+     * Calculate the CRC16 of a block of bytes
+     * @param crc CRC16 to start from, normally 0. For the pages after the
+     * first in a multi-page read, devices start from 0 again.
+     * @param data buffer holding the bytes
+     * @param off offset of the first byte
+     * @param len number of bytes
+     * @return the CRC16
+     */
+    public static int compute(int crc, byte[] data, int off, int len) {
+        crc &= 0xFFFF;
+        int end = off + len;
+        for (; off + 4 <= end; off += 4) {
+            int x = crc ^ (data[off] & 0xFF) ^ ((data[off + 1] & 0xFF) << 8);
+            crc = SLICE3[x & 0xFF]
+                    ^ SLICE2[x >>> 8]
+                    ^ SLICE1[data[off + 2] & 0xFF]
+                    ^ TABLE[data[off + 3] & 0xFF];
+        }
+        for (; off < end; off++) {
+            crc = (crc >>> 8) ^ TABLE[(crc ^ data[off]) & 0xFF];
+        }
+        return crc;
+    }
+
+    /**
+     * Calculate the CRC16 of the bytes remaining in a buffer. The buffer's
+     * position is moved to its limit.
+     * @param crc CRC16 to start from, normally 0
+     * @param buf the bytes
+     * @return the CRC16
+     */
+    public static int compute(int crc, ByteBuffer buf) {
+        if (buf.hasArray()) {
+            int n = buf.remaining();
+            crc = compute(crc, buf.array(), buf.arrayOffset() + buf.position(), n);
+            buf.position(buf.position() + n);
+            return crc;
+        }
+        crc &= 0xFFFF;
+        while (buf.remaining() >= 4) {
+            int b = buf.getInt(); // big endian, so first byte is highest
+            int x = crc ^ (b >>> 24) ^ (((b >>> 16) & 0xFF) << 8);
+            crc = SLICE3[x & 0xFF]
+                    ^ SLICE2[x >>> 8]
+                    ^ SLICE1[(b >>> 8) & 0xFF]
+                    ^ TABLE[b & 0xFF];
+        }
+        while (buf.hasRemaining()) {
+            crc = (crc >>> 8) ^ TABLE[(crc ^ buf.get()) & 0xFF];
+        }
+        return crc;
+    }
+
+    /**
+     * Check a block of bytes that ends with its inverted CRC16, LSB first,
+     * as sent by a device
+     * @param crc CRC16 to start from; 0, or the CRC16 of bytes sent to the
+     * device that the device includes in its CRC16 (such as the command
+     * and address)
+     * @param data buffer holding the bytes
+     * @param off offset of the first byte
+     * @param len number of bytes, including the two CRC16 bytes
+     * @return true if the CRC16 matches
+     */
+    public static boolean check(int crc, byte[] data, int off, int len) {
+        return compute(crc, data, off, len) == GOOD_RESIDUE;
+    }
+}
@@ -1,7 +1,16 @@
 package com.cdot.onewire;
 
+import java.nio.ByteBuffer;
+
 /**
- * 8-bit CRC8 accumulator
+ * 8-bit CRC8 accumulator, as used for 1-wire ROM codes and scratchpads
+ * (polynomial X^8 + X^5 + X^4 + 1, LSB first).
+ * <p>
+ * The static methods work on whole arrays, buffers and serial numbers
+ * without allocating. They process four bytes at a time, using tables
+ * of the CRC of each byte followed by 1, 2 and 3 zero bytes
+ * ("slice-by-4"). A CRC8 accumulator can be fed as bytes arrive; adding
+ * the CRC byte itself leaves the accumulator at 0 if the data is good.
  */
 public class CRC8 {
 
@@ -30,6 +39,19 @@ public class CRC8 {
         116, 42,200,150, 21, 75,169,247,182,232, 10, 84,215,137,107, 53
     };
 
+    // DS_CRC[x] followed by 1, 2 and 3 zero bytes. See compute()
+    private static final int[] SLICE1 = new int[256];
+    private static final int[] SLICE2 = new int[256];
+    private static final int[] SLICE3 = new int[256];
+
+    static {
+        for (int i = 0; i < 256; i++) {
+            SLICE1[i] = DS_CRC[DS_CRC[i]];
+            SLICE2[i] = DS_CRC[SLICE1[i]];
+            SLICE3[i] = DS_CRC[SLICE2[i]];
+        }
+    }
+
     /**
      * Reset accumulator to the value passed in (normally 0 to reset)
      * @param reset data to set CRC8 to
@@ -53,4 +75,94 @@ public class CRC8 {
     public void add(byte data) {
         crc = DS_CRC[(crc ^ data) & 0xFF];
     }
+
+    /**
+     * Add a block of bytes to the CRC8, for example as each part of a
+     * transfer arrives
+     * @param data buffer holding the bytes
+     * @param off offset of the first byte
+     * @param len number of bytes
+     */
+    public void add(byte[] data, int off, int len) {
+        crc = compute(crc, data, off, len);
+    }
+
+    /**
+     * Calculate the CRC8 of a block of bytes
+     * @param crc CRC8 to start from, normally 0
+     * @param data buffer holding the bytes
+     * @param off offset of the first byte
+     * @param len number of bytes
+     * @return the CRC8. If the block ends with its own CRC8, this is 0
+     * if the block is good.
+     */
+    public static int compute(int crc, byte[] data, int off, int len) {
+        crc &= 0xFF;
+        int end = off + len;
+        for (; off + 4 <= end; off += 4) {
+            // The CRC8 of the four bytes is the CRC8 of each byte, shifted
+            // along by the zero bytes after it
+            crc = SLICE3[(crc ^ data[off]) & 0xFF]
+                    ^ SLICE2[data[off + 1] & 0xFF]
+                    ^ SLICE1[data[off + 2] & 0xFF]
+                    ^ DS_CRC[data[off + 3] & 0xFF];
+        }
+        for (; off < end; off++) {
+            crc = DS_CRC[(crc ^ data[off]) & 0xFF];
+        }
+        return crc;
+    }
+
+    /**
+     * Calculate the CRC8 of the bytes remaining in a buffer. The buffer's
+     * position is moved to its limit.
+     * @param crc CRC8 to start from, normally 0
+     * @param buf the bytes
+     * @return the CRC8
+     */
+    public static int compute(int crc, ByteBuffer buf) {
+        if (buf.hasArray()) {
+            int n = buf.remaining();
+            crc = compute(crc, buf.array(), buf.arrayOffset() + buf.position(), n);
+            buf.position(buf.position() + n);
+            return crc;
+        }
+        crc &= 0xFF;
+        while (buf.remaining() >= 4) {
+            int b = buf.getInt(); // big endian, so first byte is highest
+            crc = SLICE3[(crc ^ (b >>> 24)) & 0xFF]
+                    ^ SLICE2[(b >>> 16) & 0xFF]
+                    ^ SLICE1[(b >>> 8) & 0xFF]
+                    ^ DS_CRC[b & 0xFF];
+        }
+        while (buf.hasRemaining()) {
+            crc = DS_CRC[(crc ^ buf.get()) & 0xFF];
+        }
+        return crc;
+    }
+
+    /**
+     * Calculate the CRC8 of the family code and id of a serial number, as
+     * sent on the bus (MSB first)
+     * @param serno serial number. The LSB, where the CRC8 goes, is ignored.
+     * @return the CRC8 that belongs in the LSB
+     */
+    public static int computeROM(long serno) {
+        int hi = (int) (serno >>> 32), lo = (int) serno;
+        int crc = SLICE3[hi >>> 24]
+                ^ SLICE2[(hi >>> 16) & 0xFF]
+                ^ SLICE1[(hi >>> 8) & 0xFF]
+                ^ DS_CRC[hi & 0xFF];
+        crc = DS_CRC[(crc ^ (lo >>> 24)) & 0xFF];
+        crc = DS_CRC[(crc ^ (lo >>> 16)) & 0xFF];
+        return DS_CRC[(crc ^ (lo >>> 8)) & 0xFF];
+    }
+
+    /**
+     * @param serno serial number
+     * @return true if the LSB of the serial number is the CRC8 of the rest
+     */
+    public static boolean isValidROM(long serno) {
+        return computeROM(serno) == (int) (serno & 0xFF);
+    }
 }
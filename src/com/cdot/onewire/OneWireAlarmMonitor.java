@@ -0,0 +1,164 @@
+package com.cdot.onewire;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Watches a group of thermometers for temperatures outside their alarm
+ * thresholds (TH and TL). Each cycle starts a conversion in every
+ * thermometer at once and then does an alarm search (0xEC), which only the
+ * thermometers outside their thresholds answer. Only those are read; the
+ * rest are reported as within band without any further bus traffic. With
+ * many thermometers and few alarms this is far less traffic than reading
+ * every scratchpad.
+ */
+public class OneWireAlarmMonitor {
+
+    /**
+     * Receives the results of each cycle
+     */
+    public interface Listener {
+
+        /**
+         * Called for each thermometer outside its thresholds
+         * @param t the thermometer, updated with the temperature
+         * @param r the reading. If the read failed, r.status says why.
+         */
+        public void alarm(OneWireThermometer t, OneWireReading r);
+
+        /**
+         * Called for each thermometer within its thresholds. The
+         * thermometer has not been read.
+         * @param t the thermometer
+         */
+        public void withinBand(OneWireThermometer t);
+    }
+
+    private final OneWireSerialDriver driver;
+    private final OneWireSampler sampler;
+    private final OneWireSearch search;
+    private final List<OneWireThermometer> thermometers;
+    private final Listener listener;
+
+    /**
+     * Last error seen by the monitor
+     */
+    public OneWireError last_error;
+
+    /**
+     * @param d driver for the net
+     * @param l receives the results
+     */
+    public OneWireAlarmMonitor(OneWireSerialDriver d, Listener l) {
+        driver = d;
+        sampler = new OneWireSampler(d);
+        search = new OneWireSearch(d);
+        thermometers = new ArrayList<>();
+        listener = l;
+        last_error = OneWireError.NO_ERROR_SET;
+    }
+
+    /**
+     * Start watching a thermometer. Its thresholds are not changed.
+     *
+     * @param t the thermometer, on this monitor's net
+     */
+    public void add(OneWireThermometer t) {
+        thermometers.add(t);
+    }
+
+    /**
+     * Stop watching a thermometer
+     *
+     * @param t the thermometer
+     * @return true if it was being watched
+     */
+    public boolean remove(OneWireThermometer t) {
+        return thermometers.remove(t);
+    }
+
+    /**
+     * @return the thermometers being watched
+     */
+    public List<OneWireThermometer> getThermometers() {
+        return thermometers;
+    }
+
+    /**
+     * Set the same thresholds and resolution in every thermometer on the net
+     *
+     * @param bits resolution, 9 to 12 bits
+     * @param th high alarm threshold in C
+     * @param tl low alarm threshold in C
+     * @param persist true to copy the settings to EEPROM
+     * @return a OneWireError indicating status
+     */
+    public OneWireError setThresholds(int bits, int th, int tl, boolean persist) {
+        return last_error = sampler.configureAll(thermometers, bits, th, tl, persist);
+    }
+
+    /**
+     * Set the thresholds of one thermometer, keeping its resolution
+     *
+     * @param t the thermometer
+     * @param th high alarm threshold in C
+     * @param tl low alarm threshold in C
+     * @param persist true to copy the settings to EEPROM
+     * @return a OneWireError indicating status
+     */
+    public OneWireError setThresholds(OneWireThermometer t, int th, int tl, boolean persist) {
+        if (t.resolution == 0) {
+            // Find out the current resolution
+            last_error = t.read();
+            if (last_error != OneWireError.NO_ERROR_SET) {
+                return last_error;
+            }
+        }
+        return last_error = t.configure(t.resolution, th, tl, persist);
+    }
+
+    /**
+     * Convert, find the thermometers in alarm, read them, and tell the
+     * listener about every thermometer being watched.
+     *
+     * @return the number of thermometers in alarm, or -1 if the conversion
+     * or the alarm search failed, in which case last_error says why and the
+     * listener is not called
+     */
+    public int cycle() {
+        long timestamp = System.currentTimeMillis();
+        int conversionTime = sampler.convertAndWait(thermometers);
+        if (conversionTime < 0) {
+            last_error = sampler.last_error;
+            return -1;
+        }
+
+        final Set<Long> alarms = new HashSet<>();
+        last_error = search.scan(new OneWireSearch.Device() {
+            @Override
+            public OneWireError device(long serialNum) {
+                alarms.add(serialNum);
+                return OneWireError.NO_ERROR_SET;
+            }
+        }, true);
+        if (last_error != OneWireError.NO_ERROR_SET) {
+            return -1;
+        }
+
+        int n = 0;
+        for (OneWireThermometer t : thermometers) {
+            if (alarms.contains(t.serialNumber)) {
+                OneWireError e = t.read();
+                t.conversionTime = conversionTime;
+                listener.alarm(t, new OneWireReading(t.serialNumber, timestamp,
+                        t.raw, t.temperature, conversionTime, e));
+                n++;
+            } else {
+                listener.withinBand(t);
+            }
+        }
+        return n;
+    }
+}
@@ -0,0 +1,336 @@
+package com.cdot.onewire;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Asynchronous access to a 1-wire net. Reads, updates, samples and searches
+ * are queued to a thread belonging to the net and return a OneWireFuture
+ * straight away, so the caller is never blocked by the bus.
+ * <p>
+ * Conversions are not waited for by sleeping. The conversion is started,
+ * and the read that follows is scheduled for when the datasheet says the
+ * conversion will be done. In the meantime the net's thread carries on with
+ * other queued operations, unless a parasite powered thermometer is
+ * converting: then the strong pullup must stay on, so other operations wait
+ * until the conversion is done.
+ * <p>
+ * The net's driver, and the devices on it, must not be used by anything
+ * else while the OneWireAsyncBus is open.
+ */
+public class OneWireAsyncBus {
+
+    // An operation on the bus, run on the bus thread
+    private interface Operation<T> {
+        public void run(OneWireFuture<T> f);
+    }
+
+    private final OneWireSerialDriver driver;
+    private final OneWireSampler sampler;
+    private final OneWireSearch search;
+    private final ScheduledExecutorService thread;
+
+    // Only used on the bus thread. While held, operations that arrive wait
+    // in the queue, in order.
+    private boolean held;
+    private final Deque<Runnable> waiting;
+
+    // Operations submitted and not yet complete, and set by close()
+    private final AtomicInteger active;
+    private volatile boolean closing;
+
+    /**
+     * @param name name of the net, used to name its thread
+     * @param d driver for the net
+     */
+    public OneWireAsyncBus(final String name, OneWireSerialDriver d) {
+        driver = d;
+        sampler = new OneWireSampler(d);
+        search = new OneWireSearch(d);
+        held = false;
+        waiting = new ArrayDeque<>();
+        active = new AtomicInteger();
+        closing = false;
+        thread = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "1-wire " + name);
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+
+    /**
+     * @return the driver for the net
+     */
+    public OneWireSerialDriver getDriver() {
+        return driver;
+    }
+
+    /**
+     * Queue an operation to run on the bus thread. Once the bus is closed
+     * the future is failed with GET_SYSTEM_RESOURCE_FAILED straight away.
+     */
+    private <T> OneWireFuture<T> submit(final Operation<T> op) {
+        final OneWireFuture<T> f = new OneWireFuture<>();
+        if (closing) {
+            f.complete(null, OneWireError.GET_SYSTEM_RESOURCE_FAILED);
+            return f;
+        }
+        active.incrementAndGet();
+        f.then(new OneWireFuture.Listener<T>() {
+            @Override
+            public void done(T value, OneWireError e) {
+                if (active.decrementAndGet() == 0 && closing) {
+                    thread.shutdown();
+                }
+            }
+        });
+        try {
+            thread.execute(new Runnable() {
+                @Override
+                public void run() {
+                    Runnable start = new Runnable() {
+                        @Override
+                        public void run() {
+                            if (!f.isDone()) {
+                                attempt(op, f);
+                            }
+                        }
+                    };
+                    if (held) {
+                        waiting.add(start);
+                    } else {
+                        start.run();
+                    }
+                }
+            });
+        } catch (RejectedExecutionException ree) {
+            // close() shut the thread down after the check above
+            f.complete(null, OneWireError.GET_SYSTEM_RESOURCE_FAILED);
+        }
+        return f;
+    }
+
+    /**
+     * Run an operation, or a step of one, failing it if the driver throws
+     * (for example, because the port has gone away)
+     */
+    private <T> void attempt(Operation<T> op, OneWireFuture<T> f) {
+        try {
+            op.run(f);
+        } catch (RuntimeException | Error e) {
+            release();
+            f.complete(null, OneWireError.READCOM_FAILED);
+        }
+    }
+
+    /**
+     * Run the next step of an operation on the bus thread after a delay
+     */
+    private <T> void later(int ms, final Operation<T> step, final OneWireFuture<T> f) {
+        thread.schedule(new Runnable() {
+            @Override
+            public void run() {
+                attempt(step, f);
+            }
+        }, ms, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Keep other operations off the bus until release()
+     */
+    private void hold() {
+        held = true;
+    }
+
+    /**
+     * Let other operations use the bus, starting with those that arrived
+     * while it was held
+     */
+    private void release() {
+        held = false;
+        while (!held && !waiting.isEmpty()) {
+            waiting.poll().run();
+        }
+    }
+
+    /**
+     * Make sure the driver's clock has reached a time. On a real adapter
+     * the scheduled delay has already taken care of this; on a
+     * OneWireSimulatedBus, virtual time only passes when the driver is
+     * told to wait.
+     */
+    private void catchUp(long due) {
+        long now = driver.msTime();
+        if (due > now) {
+            driver.msDelay((int) (due - now));
+        }
+    }
+
+    /**
+     * Search the net for devices
+     *
+     * @param alarmOnly true to find only devices in an alarm state
+     * @return the serial numbers of the devices found. If the search
+     * failed, those found before it failed.
+     */
+    public OneWireFuture<List<Long>> search(final boolean alarmOnly) {
+        return submit(new Operation<List<Long>>() {
+            @Override
+            public void run(OneWireFuture<List<Long>> f) {
+                final List<Long> found = new ArrayList<>();
+                OneWireError e = search.scan(new OneWireSearch.Device() {
+                    @Override
+                    public OneWireError device(long serno) {
+                        found.add(serno);
+                        return OneWireError.NO_ERROR_SET;
+                    }
+                }, alarmOnly);
+                f.complete(found, e);
+            }
+        });
+    }
+
+    /**
+     * Read the result of a conversion that has already been started
+     *
+     * @param t a thermometer on this net
+     * @return the reading
+     */
+    public OneWireFuture<OneWireReading> read(final OneWireThermometer t) {
+        return submit(new Operation<OneWireReading>() {
+            @Override
+            public void run(OneWireFuture<OneWireReading> f) {
+                OneWireError e = t.read();
+                f.complete(new OneWireReading(t.serialNumber, System.currentTimeMillis(),
+                        t.raw, t.temperature, t.conversionTime, e), e);
+            }
+        });
+    }
+
+    /**
+     * Start a conversion in a thermometer, and read it when it is done
+     *
+     * @param t a thermometer on this net
+     * @return the reading
+     */
+    public OneWireFuture<OneWireReading> update(final OneWireThermometer t) {
+        return submit(new Operation<OneWireReading>() {
+            @Override
+            public void run(final OneWireFuture<OneWireReading> f) {
+                final long timestamp = System.currentTimeMillis();
+                OneWireError e = t.startConversion();
+                if (e != OneWireError.NO_ERROR_SET) {
+                    f.complete(new OneWireReading(t.serialNumber, timestamp,
+                            t.raw, t.temperature, 0, e), e);
+                    return;
+                }
+                final boolean parasite = t.parasite;
+                if (parasite) {
+                    hold();
+                }
+                final int wait = OneWireThermometer.datasheetConversionTime(t.resolution);
+                final long due = driver.msTime() + wait;
+                later(wait, new Operation<OneWireReading>() {
+                    @Override
+                    public void run(OneWireFuture<OneWireReading> f) {
+                        catchUp(due);
+                        if (parasite) {
+                            driver.setLevel(OneWireSerialDriver.MODE.NORMAL);
+                        }
+                        OneWireError e = t.read();
+                        if (e == OneWireError.NO_ERROR_SET) {
+                            t.conversionTime = wait;
+                            driver.getMetrics().record(OneWireMetrics.Histogram.CONVERSION_MS, wait);
+                        }
+                        f.complete(new OneWireReading(t.serialNumber, timestamp,
+                                t.raw, t.temperature, wait, e), e);
+                        if (parasite) {
+                            release();
+                        }
+                    }
+                }, f);
+            }
+        });
+    }
+
+    /**
+     * Start a conversion in every thermometer on the net at once, and read
+     * a group of them when the slowest is done, as OneWireSampler.sample()
+     *
+     * @param thermometers thermometers on this net to read
+     * @return a reading for each thermometer, in the same order
+     */
+    public OneWireFuture<List<OneWireReading>> sample(final List<OneWireThermometer> thermometers) {
+        return submit(new Operation<List<OneWireReading>>() {
+            @Override
+            public void run(OneWireFuture<List<OneWireReading>> f) {
+                final long timestamp = System.currentTimeMillis();
+                OneWireError e = sampler.convertAll();
+                if (e != OneWireError.NO_ERROR_SET) {
+                    f.complete(Collections.<OneWireReading>emptyList(), e);
+                    return;
+                }
+                final boolean parasite = sampler.parasite;
+                if (parasite) {
+                    hold();
+                }
+                int resolution = 0;
+                for (OneWireThermometer t : thermometers) {
+                    resolution = (t.resolution == 0) ? 12 : Math.max(resolution, t.resolution);
+                }
+                final int wait = OneWireThermometer.datasheetConversionTime(resolution);
+                final long due = driver.msTime() + wait;
+                later(wait, new Operation<List<OneWireReading>>() {
+                    @Override
+                    public void run(OneWireFuture<List<OneWireReading>> f) {
+                        catchUp(due);
+                        if (parasite) {
+                            driver.setLevel(OneWireSerialDriver.MODE.NORMAL);
+                        }
+                        driver.getMetrics().record(OneWireMetrics.Histogram.CONVERSION_MS, wait);
+                        List<OneWireReading> readings = new ArrayList<>(thermometers.size());
+                        OneWireError result = OneWireError.NO_ERROR_SET;
+                        for (OneWireThermometer t : thermometers) {
+                            OneWireError e = t.read();
+                            if (e == OneWireError.NO_ERROR_SET) {
+                                t.conversionTime = wait;
+                            } else if (result == OneWireError.NO_ERROR_SET) {
+                                result = e;
+                            }
+                            readings.add(new OneWireReading(t.serialNumber, timestamp,
+                                    t.raw, t.temperature, wait, e));
+                        }
+                        f.complete(readings, result);
+                        if (parasite) {
+                            release();
+                        }
+                    }
+                }, f);
+            }
+        });
+    }
+
+    /**
+     * Stop the bus thread once the operations already submitted are done,
+     * including any waiting for a conversion. Operations submitted after
+     * this fail with GET_SYSTEM_RESOURCE_FAILED.
+     */
+    public void close() {
+        closing = true;
+        if (active.get() == 0) {
+            thread.shutdown();
+        }
+    }
+}
@@ -0,0 +1,73 @@
+package com.cdot.onewire;
+
+/**
+ * A branch of a DS2409 MicroLAN coupler: the coupler's serial number, which
+ * of its outputs, and the branch the coupler itself is on. Devices on the
+ * trunk have no branch (null).
+ */
+public final class OneWireBranch {
+
+    // serial number of the coupler
+    public final long coupler;
+    // OneWireCoupler.MAIN or OneWireCoupler.AUX
+    public final int branch;
+    // the branch the coupler is on, null if it is on the trunk
+    public final OneWireBranch parent;
+
+    public OneWireBranch(long c, int b, OneWireBranch p) {
+        coupler = c;
+        branch = b;
+        parent = p;
+    }
+
+    /**
+     * @return the number of couplers between the trunk and a device on
+     * this branch
+     */
+    public int depth() {
+        int d = 0;
+        for (OneWireBranch b = this; b != null; b = b.parent) {
+            d++;
+        }
+        return d;
+    }
+
+    /**
+     * @param on the branch switched on, with the branches leading to it,
+     * or null if only the trunk is connected
+     * @param b a branch, or null for the trunk
+     * @return true if devices on b are connected when on is switched on
+     */
+    public static boolean reaches(OneWireBranch on, OneWireBranch b) {
+        if (b == null) {
+            return true;
+        }
+        for (; on != null; on = on.parent) {
+            if (on.equals(b)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @Override
+    public boolean equals(Object o) {
+        if (!(o instanceof OneWireBranch)) {
+            return false;
+        }
+        OneWireBranch b = (OneWireBranch) o;
+        return coupler == b.coupler && branch == b.branch
+                && (parent == null ? b.parent == null : parent.equals(b.parent));
+    }
+
+    @Override
+    public int hashCode() {
+        return (int) (coupler ^ (coupler >>> 32)) * 31 + branch;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%s%X:%s", parent == null ? "" : parent + "/",
+                coupler, branch == OneWireCoupler.MAIN ? "main" : "aux");
+    }
+}
@@ -0,0 +1,151 @@
+package com.cdot.onewire;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * OneWireMetrics that keep a total for each counter, and a histogram of
+ * each measurement. Histograms have a bucket for each power of 2, so
+ * recording is a few atomic adds and percentiles are accurate to within a
+ * factor of 2, which is enough to tell a slow adapter from a busy net.
+ * Nothing is allocated after construction, so the metrics can be left on.
+ * The totals can be read from any thread while the bus is running.
+ */
+public class OneWireBusMetrics implements OneWireMetrics {
+
+    private static final int BUCKETS = 64;
+
+    private static final int NCOUNTERS = Counter.values().length;
+    private static final int NHISTOGRAMS = Histogram.values().length;
+
+    private final AtomicLongArray counters;
+
+    // For each histogram, BUCKETS counts where bucket b counts values
+    // whose highest set bit is bit b - 1 (bucket 0 counts values <= 0)
+    private final AtomicLongArray buckets;
+    // For each histogram, the number of values, their sum, and the largest
+    private final AtomicLongArray samples;
+    private final AtomicLongArray sums;
+    private final AtomicLongArray maxima;
+
+    public OneWireBusMetrics() {
+        counters = new AtomicLongArray(NCOUNTERS);
+        buckets = new AtomicLongArray(NHISTOGRAMS * BUCKETS);
+        samples = new AtomicLongArray(NHISTOGRAMS);
+        sums = new AtomicLongArray(NHISTOGRAMS);
+        maxima = new AtomicLongArray(NHISTOGRAMS);
+    }
+
+    @Override
+    public void count(Counter c, long n) {
+        counters.addAndGet(c.ordinal(), n);
+    }
+
+    @Override
+    public void record(Histogram h, long value) {
+        int i = h.ordinal();
+        int b = value <= 0 ? 0 : Math.min(64 - Long.numberOfLeadingZeros(value), BUCKETS - 1);
+        buckets.incrementAndGet(i * BUCKETS + b);
+        samples.incrementAndGet(i);
+        sums.addAndGet(i, value);
+        long max = maxima.get(i);
+        while (value > max && !maxima.compareAndSet(i, max, value)) {
+            max = maxima.get(i);
+        }
+    }
+
+    /**
+     * @param c a counter
+     * @return its total
+     */
+    public long get(Counter c) {
+        return counters.get(c.ordinal());
+    }
+
+    /**
+     * @param h a histogram
+     * @return the number of values recorded
+     */
+    public long count(Histogram h) {
+        return samples.get(h.ordinal());
+    }
+
+    /**
+     * @param h a histogram
+     * @return the mean of the values recorded, or 0 if there are none
+     */
+    public double mean(Histogram h) {
+        long n = samples.get(h.ordinal());
+        return n == 0 ? 0 : (double) sums.get(h.ordinal()) / n;
+    }
+
+    /**
+     * @param h a histogram
+     * @return the largest value recorded, or 0 if there are none
+     */
+    public long max(Histogram h) {
+        return maxima.get(h.ordinal());
+    }
+
+    /**
+     * @param h a histogram
+     * @param p percentile, 0 to 100
+     * @return an upper bound on the value at the percentile: the top of the
+     * power of 2 bucket it falls in, but no more than the largest value
+     */
+    public long percentile(Histogram h, double p) {
+        int i = h.ordinal();
+        long n = samples.get(i);
+        if (n == 0) {
+            return 0;
+        }
+        long rank = (long) Math.ceil(n * p / 100.0);
+        long seen = 0;
+        for (int b = 0; b < BUCKETS; b++) {
+            seen += buckets.get(i * BUCKETS + b);
+            if (seen >= rank) {
+                long top = (b == 0) ? 0 : (b >= 63 ? Long.MAX_VALUE : (1L << b) - 1);
+                return Math.min(top, maxima.get(i));
+            }
+        }
+        return maxima.get(i);
+    }
+
+    /**
+     * Zero all the counters and histograms
+     */
+    public void clear() {
+        for (int i = 0; i < counters.length(); i++) {
+            counters.set(i, 0);
+        }
+        for (int i = 0; i < buckets.length(); i++) {
+            buckets.set(i, 0);
+        }
+        for (int i = 0; i < NHISTOGRAMS; i++) {
+            samples.set(i, 0);
+            sums.set(i, 0);
+            maxima.set(i, 0);
+        }
+    }
+
+    /**
+     * @return the non-zero counters, and the count, mean, 50th and 99th
+     * percentiles and maximum of each histogram with values, one per line
+     */
+    @Override
+    public String toString() {
+        StringBuilder sb = new StringBuilder();
+        for (Counter c : Counter.values()) {
+            if (get(c) != 0) {
+                sb.append(String.format("%s %d\n", c, get(c)));
+            }
+        }
+        for (Histogram h : Histogram.values()) {
+            if (count(h) != 0) {
+                sb.append(String.format("%s n=%d mean=%.1f p50<=%d p99<=%d max=%d\n",
+                        h, count(h), mean(h), percentile(h, 50),
+                        percentile(h, 99), max(h)));
+            }
+        }
+        return sb.toString();
+    }
+}
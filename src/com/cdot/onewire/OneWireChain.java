@@ -0,0 +1,180 @@
+package com.cdot.onewire;
+
+/**
+ * Finds the DS28EA00s on a 1-wire net in the order they are wired, using
+ * sequence detect. Each DS28EA00's PIOA (DONE) output drives the PIOB (EN)
+ * input of the next, and EN of the first is tied low.
+ * <p>
+ * Chain ON puts every DS28EA00 into chain mode. Only the enabled device
+ * that is not yet DONE answers Conditional Read ROM, so each step reads the
+ * ROM of the next device in the chain, and then tells it it is DONE, which
+ * enables the device after it. Each step is a reset and 13 bytes, so
+ * discovering a long chain is much quicker than a binary tree search, which
+ * costs a pass of 64 bit triplets for each device.
+ * <p>
+ * Devices that are not DS28EA00s, or whose EN is not driven by the chain,
+ * are not found.
+ */
+public class OneWireChain {
+
+    // ROM command answered only by the enabled device in chain mode
+    static final byte CONDITIONAL_READ_ROM = (byte) 0x0F;
+
+    // Chain function command, its control bytes, and the byte sent back
+    // to confirm a valid control byte
+    static final byte CHAIN = (byte) 0x99;
+    static final byte CHAIN_OFF = (byte) 0x3C;
+    static final byte CHAIN_ON = (byte) 0x5A;
+    static final byte CHAIN_DONE = (byte) 0x96;
+    static final byte CHAIN_CONFIRM = (byte) 0xAA;
+
+    private final OneWireSerialDriver driver;
+
+    /**
+     * Last error seen by the chain scan
+     */
+    public OneWireError last_error;
+
+    // number of times to read a ROM that fails its CRC before giving up
+    public int retries;
+
+    // Reused for every step, so that a scan allocates nothing
+    private final OneWireTransaction transaction = new OneWireTransaction(9);
+
+    public OneWireChain(OneWireSerialDriver comms) {
+        last_error = OneWireError.NO_ERROR_SET;
+        driver = comms;
+        retries = 3;
+    }
+
+    /**
+     * Find the devices in the chain, in the order they are wired. Chain
+     * mode is always turned off again afterwards, even if the scan fails.
+     *
+     * @param callback listener called for each device found, first device
+     * in the chain first
+     * @return an error code, if something went wrong. NO_DEVICES_ON_NET if
+     * no DS28EA00 answered Chain ON.
+     */
+    public OneWireError scan(OneWireSearch.Device callback) {
+        OneWireMetrics metrics = driver.getMetrics();
+        long start = driver.nanoTime();
+        driver.getSession().deselect();
+        driver.setSpeed(OneWireSerialDriver.MODE.NORMAL);
+
+        int found = 0;
+        OneWireError e = chain(CHAIN_ON);
+        if (e == OneWireError.NO_ERROR_SET) {
+            long previous = 0;
+            while (true) {
+                long serno = readNext();
+                if (serno == -1) {
+                    break; // end of the chain
+                }
+                if (serno == 0) {
+                    e = last_error;
+                    break;
+                }
+                if (serno == previous) {
+                    // The last device didn't go DONE after all
+                    e = OneWireError.SEARCH_ERROR;
+                    break;
+                }
+                e = done();
+                if (e != OneWireError.NO_ERROR_SET) {
+                    break;
+                }
+                found++;
+                previous = serno;
+                e = callback.device(serno);
+                if (e != OneWireError.NO_ERROR_SET) {
+                    break;
+                }
+            }
+            OneWireError off = chain(CHAIN_OFF);
+            if (e == OneWireError.NO_ERROR_SET) {
+                e = off;
+            }
+        } else if (e == OneWireError.WRITE_VERIFY_FAILED) {
+            e = OneWireError.NO_DEVICES_ON_NET;
+        }
+
+        metrics.count(OneWireMetrics.Counter.SEARCHES, 1);
+        if (e != OneWireError.NO_ERROR_SET) {
+            metrics.count(OneWireMetrics.Counter.SEARCH_ERRORS, 1);
+        }
+        metrics.record(OneWireMetrics.Histogram.SEARCH_NS, driver.nanoTime() - start);
+        metrics.record(OneWireMetrics.Histogram.SEARCH_DEVICES, found);
+        return last_error = e;
+    }
+
+    /**
+     * Send a Chain command to every device on the net
+     *
+     * @param control the control byte, CHAIN_ON or CHAIN_OFF
+     * @return a OneWireError indicating status. WRITE_VERIFY_FAILED if no
+     * device confirmed the command.
+     */
+    private OneWireError chain(byte control) {
+        OneWireError e = transaction.clear().reset().skipROM()
+                .write(CHAIN).write(control).write((byte) ~control).read(1)
+                .execute(driver);
+        if (e == OneWireError.NO_ERROR_SET && transaction.get(4) != CHAIN_CONFIRM) {
+            e = OneWireError.WRITE_VERIFY_FAILED;
+        }
+        return e;
+    }
+
+    /**
+     * Read the ROM of the next device in the chain with Conditional Read
+     * ROM. The device is left selected, ready for done().
+     *
+     * @return the serial number, -1 if no device answered, or 0 if it
+     * failed, in which case last_error says why
+     */
+    private long readNext() {
+        for (int attempt = 0; attempt <= retries; attempt++) {
+            if (attempt > 0) {
+                driver.getMetrics().count(OneWireMetrics.Counter.RETRIES, 1);
+            }
+            OneWireError e = transaction.clear().reset()
+                    .write(CONDITIONAL_READ_ROM).read(8).execute(driver);
+            if (e != OneWireError.NO_ERROR_SET) {
+                last_error = e;
+                return 0;
+            }
+            long serno = 0;
+            for (int i = 1; i <= 8; i++) {
+                serno = (serno << 8) | ((long) transaction.get(i) & 0xFF);
+            }
+            if (serno == -1) {
+                return -1;
+            }
+            // A zero family code means the bus is held low (an all-zero ROM
+            // has a valid CRC)
+            if (CRC8.isValidROM(serno) && (serno >>> 56) != 0) {
+                return serno;
+            }
+            driver.getMetrics().count(OneWireMetrics.Counter.CRC_FAILURES, 1);
+        }
+        last_error = OneWireError.CRC_FAILED;
+        return 0;
+    }
+
+    /**
+     * Tell the device just read that it is DONE, which enables the next
+     * device in the chain
+     *
+     * @return a OneWireError indicating status
+     */
+    private OneWireError done() {
+        OneWireError e = transaction.clear()
+                .write(CHAIN).write(CHAIN_DONE).write((byte) ~CHAIN_DONE).read(1)
+                .execute(driver);
+        if (e == OneWireError.NO_ERROR_SET && transaction.get(3) != CHAIN_CONFIRM) {
+            e = OneWireError.WRITE_VERIFY_FAILED;
+        }
+        last_error = e;
+        return e;
+    }
+}
@@ -0,0 +1,90 @@
+package com.cdot.onewire;
+
+/**
+ * A DS2409 MicroLAN coupler, which connects one of two branches, main or
+ * auxiliary, to the 1-wire net it is on (the trunk). Devices on a branch
+ * can only be reached while it is switched on. Switching a branch is a
+ * Match ROM and a function command, so OneWireTopology does it only when
+ * the branch needed is not already on.
+ * <p>
+ * Switching a coupler directly makes the session forget which branch is
+ * on, so that OneWireTopology finds out again next time.
+ */
+public class OneWireCoupler extends OneWireDevice {
+
+    public static final byte DS2409 = 0x1F;
+
+    // Branches
+    public static final int MAIN = 0;
+    public static final int AUX = 1;
+
+    // Function commands. Each is confirmed by the coupler sending the
+    // command back.
+    static final byte ALL_LINES_OFF = (byte) 0x66;
+    static final byte DIRECT_ON_MAIN = (byte) 0xA5;
+    static final byte SMART_ON_MAIN = (byte) 0xCC;
+    static final byte SMART_ON_AUX = (byte) 0x33;
+
+    public OneWireCoupler(long serno, OneWireSerialDriver d) {
+        super(serno, d);
+    }
+
+    public static boolean supportsDevice(long serno) {
+        return (byte) ((serno >> 56) & 0xFF) == DS2409;
+    }
+
+    @Override
+    public String toString() {
+        return String.format("%X: DS2409", serialNumber);
+    }
+
+    /**
+     * Switch a branch on with Smart-On, which resets the branch before
+     * connecting it, so the devices on it are ready for a ROM command.
+     * The other branch is switched off.
+     *
+     * @param branch MAIN or AUX
+     * @return a OneWireError indicating status
+     */
+    public OneWireError smartOn(int branch) {
+        // The byte after the command is read while the coupler resets the
+        // branch; then the command is sent back
+        return command(branch == AUX ? SMART_ON_AUX : SMART_ON_MAIN, 2);
+    }
+
+    /**
+     * Connect the main branch without resetting it
+     *
+     * @return a OneWireError indicating status
+     */
+    public OneWireError directOnMain() {
+        return command(DIRECT_ON_MAIN, 1);
+    }
+
+    /**
+     * Disconnect both branches
+     *
+     * @return a OneWireError indicating status
+     */
+    public OneWireError allLinesOff() {
+        return command(ALL_LINES_OFF, 1);
+    }
+
+    /**
+     * Send a switching command and check that the coupler confirms it
+     *
+     * @param reads number of bytes to read after the command, the last of
+     * which is the confirmation
+     */
+    private OneWireError command(byte command, int reads) {
+        driver.getSession().forgetBranch();
+        OneWireTransaction t = begin().write(command);
+        int confirm = t.length() + reads - 1;
+        t.read(reads);
+        OneWireError e = execute();
+        if (e == OneWireError.NO_ERROR_SET && t.get(confirm) != command) {
+            e = OneWireError.WRITE_VERIFY_FAILED;
+        }
+        return e;
+    }
+}
@@ -0,0 +1,580 @@
+package com.cdot.onewire;
+
+import java.util.Arrays;
+
+/**
+ * 1-wire interface through a DS2480B serial 1-wire line driver, as used in
+ * DS9097U style adapters. The DS2480B generates the 1-wire timing itself,
+ * so bytes are sent in data mode one UART byte per 1-wire byte, searches
+ * use the on-chip search accelerator, and overdrive and strong pullup are
+ * handled by the chip.
+ * Code is translated from the DS2480B link layer in
+ * https://github.com/bcl/digitemp
+ * <p>
+ * Subclasses provide the serial port through the xxxCOM methods, so the
+ * protocol can be driven over any serial library, or against a stand-in
+ * for a DS2480B such as OneWireSimulatedDS2480.
+ */
+public abstract class OneWireDS2480Driver extends OneWireSerialDriver {
+
+    // Mode commands
+    private static final byte MODE_DATA = (byte) 0xE1;
+    private static final byte MODE_COMMAND = (byte) 0xE3;
+    private static final byte MODE_STOP_PULSE = (byte) 0xF1;
+
+    // Return byte values
+    private static final int RB_RESET_MASK = 0x03;
+    private static final int RB_PRESENCE = 0x01;
+    private static final int RB_ALARMPRESENCE = 0x02;
+    private static final int RB_NOPRESENCE = 0x03;
+    private static final int RB_BIT_MASK = 0x03;
+    private static final int RB_BIT_ONE = 0x03;
+
+    // Command or config bit
+    private static final int CMD_COMM = 0x81;
+    private static final int CMD_CONFIG = 0x01;
+
+    // Function select bits
+    private static final int FUNCTSEL_BIT = 0x00;
+    private static final int FUNCTSEL_SEARCHON = 0x30;
+    private static final int FUNCTSEL_SEARCHOFF = 0x20;
+    private static final int FUNCTSEL_RESET = 0x40;
+    private static final int FUNCTSEL_CHMOD = 0x60;
+
+    // Bit polarity/pulse voltage bits
+    private static final int BITPOL_ONE = 0x10;
+    private static final int BITPOL_ZERO = 0x00;
+    private static final int BITPOL_5V = 0x00;
+
+    // 1-wire speed bits
+    private static final int SPEEDSEL_STD = 0x00;
+    private static final int SPEEDSEL_FLEX = 0x04;
+    private static final int SPEEDSEL_OD = 0x08;
+    private static final int SPEEDSEL_PULSE = 0x0C;
+
+    // 5V follow pulse select bits
+    private static final int PRIME5V_TRUE = 0x02;
+    private static final int PRIME5V_FALSE = 0x00;
+
+    // Parameter select bits
+    private static final int PARMSEL_PARMREAD = 0x00;
+    private static final int PARMSEL_SLEW = 0x10;
+    private static final int PARMSEL_5VPULSE = 0x30;
+    private static final int PARMSEL_WRITE1LOW = 0x40;
+    private static final int PARMSEL_SAMPLEOFFSET = 0x50;
+    private static final int PARMSEL_BAUDRATE = 0x70;
+
+    // Parameter values
+    private static final int PARMSET_Slew1p37Vus = 0x06;
+    private static final int PARMSET_5Vinfinite = 0x0E;
+    private static final int PARMSET_Write10us = 0x04;
+    private static final int PARMSET_SampOff8us = 0x0A;
+    private static final int PARMSET_9600 = 0x00;
+
+    // Set when the DS2480B has been found and configured
+    private boolean detected;
+    // true if the DS2480B is in command mode, false if in data mode
+    private boolean commandMode;
+    // speed bits used in communication commands
+    private int speed;
+    // current line level
+    private MODE level;
+
+    // Reused for every packet sent, and for responses that are not read
+    // straight into the caller's array. A data mode packet may have each
+    // byte doubled, plus a reset and two mode switches.
+    private final byte[] packet = new byte[2 * OneWireSerialDriver.UART_FIFO_SIZE + 3];
+    private final byte[] oneByte = new byte[1];
+
+    protected OneWireDS2480Driver(Logger log) {
+        super(log);
+        detected = false;
+        commandMode = true;
+        speed = SPEEDSEL_FLEX;
+        level = MODE.NORMAL;
+    }
+
+    /**
+     * Set the baud rate of the serial port, 8 data bits, 1 stop bit and no
+     * parity
+     * @param baud baud rate e.g. 9600
+     * @return false if the port could not be set up
+     */
+    protected abstract boolean setBaudCOM(int baud);
+
+    /**
+     * Send a break on the serial port, which resets the DS2480B
+     */
+    protected abstract void breakCOM();
+
+    /**
+     * Discard anything waiting in the serial port buffers
+     */
+    protected abstract void flushCOM();
+
+    /**
+     * Write bytes to the serial port
+     * @param buf bytes to write
+     * @param len number of bytes from the start of buf to write
+     * @return false if the write failed
+     */
+    protected abstract boolean writeCOM(byte[] buf, int len);
+
+    /**
+     * Read bytes from the serial port
+     * @param buf receives the bytes read
+     * @param off index in buf of the first byte
+     * @param len number of bytes to read
+     * @return false if they did not all arrive in time
+     */
+    protected abstract boolean readCOM(byte[] buf, int off, int len);
+
+    /**
+     * Reset the DS2480B and set it up for communication at 9600 baud.
+     * Called automatically by reset() when required.
+     * @return an error code, if something went wrong
+     */
+    public OneWireError detect() {
+        detected = false;
+        commandMode = true;
+        speed = SPEEDSEL_FLEX;
+        level = MODE.NORMAL;
+
+        if (!setBaudCOM(9600)) {
+            return OneWireError.OPENCOM_FAILED;
+        }
+
+        // Send a break to reset the DS2480B, and let the line settle
+        breakCOM();
+        msDelay(2);
+        flushCOM();
+
+        // Send the timing byte, which is not answered
+        if (!writeCOM(new byte[] { (byte) (CMD_COMM | FUNCTSEL_RESET | SPEEDSEL_FLEX) }, 1)) {
+            return OneWireError.WRITECOM_FAILED;
+        }
+        msDelay(2);
+        flushCOM();
+
+        byte[] tx = {
+            // set the FLEX configuration parameters
+            (byte) (CMD_CONFIG | PARMSEL_SLEW | PARMSET_Slew1p37Vus),
+            (byte) (CMD_CONFIG | PARMSEL_WRITE1LOW | PARMSET_Write10us),
+            (byte) (CMD_CONFIG | PARMSEL_SAMPLEOFFSET | PARMSET_SampOff8us),
+            // read the baud rate, to test the command block
+            (byte) (CMD_CONFIG | PARMSEL_PARMREAD | (PARMSEL_BAUDRATE >> 3)),
+            // do a 1 bit operation, to test the 1-wire block
+            (byte) (CMD_COMM | FUNCTSEL_BIT | SPEEDSEL_STD | BITPOL_ONE)
+        };
+        if (!writeCOM(tx, tx.length)) {
+            return OneWireError.WRITECOM_FAILED;
+        }
+        byte[] rx = new byte[5];
+        if (!readCOM(rx, 0, 5)) {
+            return OneWireError.DS2480_NOT_DETECTED;
+        }
+
+        // Check the baud rate and bit operation responses make sense
+        if ((rx[3] & 0xF1) != 0x00 || (rx[4] & 0xF0) != 0x90
+                || (rx[4] & 0x0C) != SPEEDSEL_STD) {
+            return OneWireError.DS2480_BAD_RESPONSE;
+        }
+        if ((rx[3] & 0x0E) != PARMSET_9600) {
+            return OneWireError.DS2480_WRONG_BAUD;
+        }
+
+        detected = true;
+        return OneWireError.NO_ERROR_SET;
+    }
+
+    /**
+     * Add a switch to command mode to a packet, if needed
+     * @return the new length of the packet
+     */
+    private int toCommandMode(byte[] packet, int len) {
+        if (!commandMode) {
+            packet[len++] = MODE_COMMAND;
+            commandMode = true;
+        }
+        return len;
+    }
+
+    /**
+     * Add a switch to data mode to a packet, if needed
+     * @return the new length of the packet
+     */
+    private int toDataMode(byte[] packet, int len) {
+        if (commandMode) {
+            packet[len++] = MODE_DATA;
+            commandMode = false;
+        }
+        return len;
+    }
+
+    /**
+     * Write a packet and read the response to it
+     * @param tx packet to send
+     * @param len number of bytes of tx to send
+     * @param rx receives the response; may be tx, as it is only read once
+     * tx has been written
+     * @param off index in rx of the first byte of the response
+     * @param nread number of bytes of response expected
+     * @return false if the transfer failed
+     */
+    private boolean transfer(byte[] tx, int len, byte[] rx, int off, int nread) {
+        long start = nanoTime();
+        if (!writeCOM(tx, len)) {
+            last_error = OneWireError.WRITECOM_FAILED;
+            detected = false;
+            return false;
+        }
+        metrics.count(OneWireMetrics.Counter.BYTES_WRITTEN, len);
+        if (!readCOM(rx, off, nread)) {
+            last_error = OneWireError.READCOM_FAILED;
+            detected = false;
+            return false;
+        }
+        metrics.count(OneWireMetrics.Counter.ROUND_TRIPS, 1);
+        metrics.count(OneWireMetrics.Counter.BYTES_READ, nread);
+        metrics.record(OneWireMetrics.Histogram.ROUND_TRIP_NS, nanoTime() - start);
+        return true;
+    }
+
+    /**
+     * Interpret the response to a reset command
+     * @param rb the response byte
+     * @return a OneWireError indicating status
+     */
+    private OneWireError resetResult(byte rb) {
+        metrics.count(OneWireMetrics.Counter.RESETS, 1);
+        switch (rb & RB_RESET_MASK) {
+            case RB_PRESENCE:
+            case RB_ALARMPRESENCE:
+                return OneWireError.NO_ERROR_SET;
+            case RB_NOPRESENCE:
+                metrics.count(OneWireMetrics.Counter.PRESENCE_FAILURES, 1);
+                return OneWireError.NO_DEVICES_ON_NET;
+        }
+        // Data line is a short to ground
+        return OneWireError.RESET_FAILED;
+    }
+
+    @Override
+    public OneWireError reset() {
+        if (!detected) {
+            OneWireError e = detect();
+            if (e != OneWireError.NO_ERROR_SET) {
+                return e;
+            }
+        }
+
+        if (level != MODE.NORMAL) {
+            setLevel(MODE.NORMAL);
+        }
+
+        int len = toCommandMode(packet, 0);
+        packet[len++] = (byte) (CMD_COMM | FUNCTSEL_RESET | speed);
+        if (!transfer(packet, len, packet, 0, 1)) {
+            return OneWireError.RESET_FAILED;
+        }
+        return resetResult(packet[0]);
+    }
+
+    @Override
+    public boolean touchBit(boolean bit) {
+        int len = toCommandMode(packet, 0);
+        packet[len++] = (byte) (CMD_COMM | FUNCTSEL_BIT | speed
+                | (bit ? BITPOL_ONE : BITPOL_ZERO));
+        if (!transfer(packet, len, packet, 0, 1)) {
+            return true;
+        }
+        return (packet[0] & RB_BIT_MASK) == RB_BIT_ONE;
+    }
+
+    @Override
+    public byte[] touchBits(int nbits, byte[] send) {
+        if ((nbits & 0x7) == 0) {
+            // Whole bytes go faster in data mode
+            byte[] tx = send;
+            if (send.length != nbits / 8) {
+                tx = Arrays.copyOf(send, nbits / 8);
+            }
+            byte[] rx = touchBlock(tx);
+            if (rx != null) {
+                return rx;
+            }
+            rx = new byte[nbits / 8];
+            Arrays.fill(rx, (byte) 0xFF);
+            return rx;
+        }
+
+        // Send a single bit command for each bit; the DS2480B replies
+        // to each one
+        byte[] receive = new byte[(nbits + 7) / 8];
+        int base = 0;
+        while (base < nbits) {
+            int send_now = Math.min(nbits - base, OneWireSerialDriver.UART_FIFO_SIZE);
+            int len = toCommandMode(packet, 0);
+            for (int i = 0; i < send_now; i++) {
+                int bit = base + i;
+                packet[len++] = (byte) (CMD_COMM | FUNCTSEL_BIT | speed
+                        | ((send[bit / 8] & (1 << (bit & 0x7))) != 0 ? BITPOL_ONE : BITPOL_ZERO));
+            }
+            if (!transfer(packet, len, packet, 0, send_now)) {
+                Arrays.fill(receive, (byte) 0xFF);
+                return receive;
+            }
+            for (int i = 0; i < send_now; i++) {
+                if ((packet[i] & RB_BIT_MASK) == RB_BIT_ONE) {
+                    int bit = base + i;
+                    receive[bit / 8] |= 1 << (bit & 0x7);
+                }
+            }
+            base += send_now;
+        }
+        return receive;
+    }
+
+    @Override
+    public byte[] touchBlock(byte[] tx) {
+        byte[] rx = new byte[tx.length];
+        return touchBlock(tx, 0, tx.length, rx) ? rx : null;
+    }
+
+    /**
+     * The packet buffer is reused, and the echoes are read straight into
+     * rx, so nothing is allocated.
+     */
+    @Override
+    public boolean touchBlock(byte[] tx, int off, int len, byte[] rx) {
+        int base = 0;
+        while (base < len) {
+            int send_now = Math.min(len - base, OneWireSerialDriver.UART_FIFO_SIZE);
+            int plen = toDataMode(packet, 0);
+            for (int i = 0; i < send_now; i++) {
+                byte b = tx[off + base + i];
+                packet[plen++] = b;
+                // A data byte that looks like the switch to command mode
+                // must be sent twice
+                if (b == MODE_COMMAND) {
+                    packet[plen++] = MODE_COMMAND;
+                }
+            }
+            if (!transfer(packet, plen, rx, off + base, send_now)) {
+                return false;
+            }
+            base += send_now;
+        }
+        return true;
+    }
+
+    /**
+     * The reset command, the switch to data mode and the first
+     * UART_FIFO_SIZE bytes of the block go in a single write, and the reset
+     * response and the echoes come back in a single read.
+     */
+    @Override
+    public OneWireError resetAndTouchBlock(byte[] tx, int off, int len, byte[] rx) {
+        if (!detected) {
+            OneWireError e = detect();
+            if (e != OneWireError.NO_ERROR_SET) {
+                return e;
+            }
+        }
+
+        if (level != MODE.NORMAL) {
+            setLevel(MODE.NORMAL);
+        }
+
+        int send_now = Math.min(len, OneWireSerialDriver.UART_FIFO_SIZE);
+        int plen = toCommandMode(packet, 0);
+        packet[plen++] = (byte) (CMD_COMM | FUNCTSEL_RESET | speed);
+        plen = toDataMode(packet, plen);
+        for (int i = 0; i < send_now; i++) {
+            byte b = tx[off + i];
+            packet[plen++] = b;
+            if (b == MODE_COMMAND) {
+                packet[plen++] = MODE_COMMAND;
+            }
+        }
+        if (!transfer(packet, plen, packet, 0, send_now + 1)) {
+            return OneWireError.RESET_FAILED;
+        }
+
+        OneWireError e = resetResult(packet[0]);
+        if (e != OneWireError.NO_ERROR_SET) {
+            return e;
+        }
+        System.arraycopy(packet, 1, rx, off, send_now);
+        if (send_now < len && !touchBlock(tx, off + send_now, len - send_now, rx)) {
+            return OneWireError.BLOCK_FAILED;
+        }
+        return OneWireError.NO_ERROR_SET;
+    }
+
+    @Override
+    public byte touchByte(byte sendbyte) {
+        oneByte[0] = sendbyte;
+        return touchBlock(oneByte, 0, 1, oneByte) ? oneByte[0] : (byte) 0xFF;
+    }
+
+    /**
+     * Make one pass down the ROM tree using the DS2480B search accelerator.
+     * The preferred directions are sent as a 16 byte block in which each
+     * ROM bit takes two bits; the response carries the discrepancy flag and
+     * the direction taken for each ROM bit. The whole pass is a single
+     * round trip.
+     * <p>
+     * The accelerator doesn't stop when no device answers: both bits read
+     * 1 at every position, which it reports as a discrepancy with the 1
+     * branch taken. No set of devices can give a discrepancy at all 64
+     * bits, as devices that agree on the first 56 bits have the same CRC,
+     * so that response is taken to mean nothing took part and 0 is
+     * returned, as the bit by bit search does.
+     */
+    @Override
+    public int search(byte command, byte[] preferred, byte[] rom, byte[] discrepancies) {
+        byte[] tx = packet;
+        Arrays.fill(tx, 0, 24, (byte) 0);
+        int len = toDataMode(tx, 0);
+        tx[len++] = command;
+        tx[len++] = MODE_COMMAND;
+        tx[len++] = (byte) (CMD_COMM | FUNCTSEL_SEARCHON | speed);
+        tx[len++] = MODE_DATA;
+
+        // Direction for each bit goes in the odd bits. The even bits are
+        // always 0, so none of these bytes can look like MODE_COMMAND.
+        for (int i = 0; i < 64; i++) {
+            if ((preferred[i / 8] & (1 << (i & 0x7))) != 0) {
+                int bit = i * 2 + 1;
+                tx[len + bit / 8] |= 1 << (bit & 0x7);
+            }
+        }
+        len += 16;
+
+        tx[len++] = MODE_COMMAND;
+        tx[len++] = (byte) (CMD_COMM | FUNCTSEL_SEARCHOFF | speed);
+        commandMode = true;
+
+        // The search accelerator commands are not answered, so the
+        // response is the echo of the search command and the 16 bytes
+        byte[] rx = packet;
+        if (!transfer(tx, len, rx, 0, 17) || rx[0] != command) {
+            return -1;
+        }
+
+        boolean nobody = true;
+        for (int i = 1; i <= 16 && nobody; i++) {
+            nobody = rx[i] == (byte) 0xFF;
+        }
+        if (nobody) {
+            return 0;
+        }
+
+        for (int i = 0; i < 8; i++) {
+            discrepancies[i] = 0;
+        }
+        for (int i = 0; i < 64; i++) {
+            byte serial_byte_mask = (byte) (1 << (i & 0x7));
+            int dbit = i * 2;
+            int rbit = i * 2 + 1;
+            if ((rx[1 + rbit / 8] & (1 << (rbit & 0x7))) != 0) {
+                rom[i / 8] |= serial_byte_mask;
+            } else {
+                rom[i / 8] &= ~serial_byte_mask;
+            }
+            if ((rx[1 + dbit / 8] & (1 << (dbit & 0x7))) != 0) {
+                discrepancies[i / 8] |= serial_byte_mask;
+            }
+        }
+        return 64;
+    }
+
+    /**
+     * Switch between standard and overdrive timing. Subsequent data mode
+     * bytes, bits, searches and resets all use the new speed.
+     */
+    @Override
+    public MODE setSpeed(MODE newSpeed) {
+        int newBits = (newSpeed == MODE.OVERDRIVE) ? SPEEDSEL_OD : SPEEDSEL_FLEX;
+        if (newBits != speed) {
+            // A search accelerator off command carries the speed bits
+            // without generating any 1-wire activity
+            int len = toCommandMode(packet, 0);
+            packet[len++] = (byte) (CMD_COMM | FUNCTSEL_SEARCHOFF | newBits);
+            if (writeCOM(packet, len)) {
+                speed = newBits;
+            } else {
+                last_error = OneWireError.WRITECOM_FAILED;
+            }
+        }
+        return (speed == SPEEDSEL_OD) ? MODE.OVERDRIVE : MODE.NORMAL;
+    }
+
+    @Override
+    public MODE setLevel(MODE newLevel) {
+        if (newLevel == level) {
+            return level;
+        }
+
+        // The switch to command mode may take the first byte
+        byte[] tx = packet;
+        int len = toCommandMode(tx, 0);
+        if (newLevel == MODE.NORMAL) {
+            // Stop the pulse. Following digitemp, also start and stop a
+            // pulse without the prime bit, to be sure the line is released.
+            // Each pulse is answered when it stops.
+            tx[len++] = MODE_STOP_PULSE;
+            tx[len++] = (byte) (CMD_COMM | FUNCTSEL_CHMOD | SPEEDSEL_PULSE | BITPOL_5V | PRIME5V_FALSE);
+            tx[len++] = MODE_STOP_PULSE;
+            if (!writeCOM(tx, len)) {
+                last_error = OneWireError.WRITECOM_FAILED;
+                return level;
+            }
+            msDelay(4);
+            if (readCOM(packet, 0, 2) && (packet[0] & 0xE0) == 0xE0
+                    && (packet[1] & 0xE0) == 0xE0) {
+                level = MODE.NORMAL;
+            }
+        } else if (newLevel == MODE.STRONG5) {
+            // Set the strong pullup duration, and start it now
+            tx[len++] = (byte) (CMD_CONFIG | PARMSEL_5VPULSE | PARMSET_5Vinfinite);
+            tx[len++] = (byte) (CMD_COMM | FUNCTSEL_CHMOD | SPEEDSEL_PULSE | BITPOL_5V);
+            if (transfer(tx, len, packet, 0, 1) && (packet[0] & 0x81) == 0) {
+                level = MODE.STRONG5;
+            }
+        }
+        return level;
+    }
+
+    /**
+     * Send the byte as 8 bit commands, priming the strong pullup to start
+     * as soon as the last bit has been sent.
+     */
+    @Override
+    public byte touchBytePower(byte sendbyte) {
+        byte[] tx = packet;
+        int len = toCommandMode(tx, 0);
+        tx[len++] = (byte) (CMD_CONFIG | PARMSEL_5VPULSE | PARMSET_5Vinfinite);
+        for (int i = 0; i < 8; i++) {
+            tx[len++] = (byte) (CMD_COMM | FUNCTSEL_BIT | speed
+                    | ((sendbyte & (1 << i)) != 0 ? BITPOL_ONE : BITPOL_ZERO)
+                    | (i == 7 ? PRIME5V_TRUE : PRIME5V_FALSE));
+        }
+
+        // One response for the config command, and one for each bit
+        byte[] rx = packet;
+        if (!transfer(tx, len, rx, 0, 9) || (rx[0] & 0x81) != 0) {
+            return (byte) ~sendbyte;
+        }
+        level = MODE.STRONG5;
+
+        byte echo = 0;
+        for (int i = 0; i < 8; i++) {
+            if ((rx[i + 1] & RB_BIT_MASK) == RB_BIT_ONE) {
+                echo |= 1 << i;
+            }
+        }
+        return echo;
+    }
+}
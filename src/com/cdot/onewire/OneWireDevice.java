@@ -7,7 +7,6 @@ class OneWireDevice {
 
     /**
      * Devices currently unsupported, but code can be ported from digitemp
-     * 0x1F DS2409 MicroLAN coupler
      * 0x12 DS2406 dual addressable switch
      * 0x1C DS2422 temperature/datalogger with 8K memory
      * 0x1D DS2423 4K RAM with counter
@@ -19,11 +18,38 @@ class OneWireDevice {
     public long serialNumber;
     protected OneWireSerialDriver driver;
 
-    private static final byte MATCH_ROM = (byte) 0x55;
+    // true if the device is accessed at overdrive speed. See setOverdrive()
+    public boolean overdrive;
+    // set once the device has been seen to respond at overdrive speed
+    private boolean overdriveChecked;
+
+    // ROM command and serial number, reused by each access so that polling
+    // a device allocates nothing
+    private final byte[] romBlock = new byte[9];
+
+    // Reused for function commands sent in a single transaction with the
+    // reset and Match ROM. See begin()
+    private final OneWireTransaction transaction;
+    // Length of the reset and ROM command begin() put in the transaction
+    private int addressLength;
+
+    // Reused by access() to address the device at overdrive speed
+    private final OneWireTransaction romTransaction;
+
+    // Bytes a transaction can hold after the ROM command and serial number
+    private static final int TRANSACTION_SIZE = 32;
+
+    static final byte MATCH_ROM = (byte) 0x55;
+    static final byte SKIP_ROM = (byte) 0xCC;
+    static final byte OVERDRIVE_SKIP_ROM = (byte) 0x3C;
+    private static final byte OVERDRIVE_MATCH_ROM = (byte) 0x69;
 
     protected OneWireDevice(long sn, OneWireSerialDriver d) {
         serialNumber = sn;
         driver = d;
+        overdrive = false;
+        transaction = new OneWireTransaction(9 + TRANSACTION_SIZE);
+        romTransaction = new OneWireTransaction(9);
     }
     
     /**
@@ -34,33 +60,233 @@ class OneWireDevice {
     }
 
     /**
-     * Reset the 1-Wire and send a MATCH Serial Number command followed by the
-     * current SerialNum code. After this function is complete the 1-Wire device
-     * is ready to accept slave-specific commands.
+     * @param fam device family
+     * @return true if devices in the family can communicate at overdrive
+     * speed
+     */
+    public static boolean supportsOverdrive(byte fam) {
+        switch (fam) {
+            case 0x1F: // DS2409 MicroLAN coupler
+            case 0x23: // DS2433 4K EEPROM
+            case 0x29: // DS2408 8 channel addressable switch
+            case 0x2D: // DS2431 1K EEPROM
+            case 0x3A: // DS2413 dual channel addressable switch
+            case 0x41: // DS1923 iButton Hygrochron
+            case 0x42: // DS28EA00 thermometer with sequence detect and PIO
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Choose whether to access the device at overdrive speed. Overdrive is
+     * only used if both the device family and the driver support it. If the
+     * device does not respond at overdrive speed when first accessed, it is
+     * accessed at standard speed instead.
      *
-     * @return true : reset indicates present and device is ready for commands.
-     * false: reset does not indicate presence or echoes 'writes' are not
-     * correct.
+     * @param on true to use overdrive
+     * @return true if overdrive will be used
      */
-    public OneWireError access() {
-        // reset the 1-wire
+    public boolean setOverdrive(boolean on) {
+        overdrive = false;
+        overdriveChecked = false;
+        if (on && supportsOverdrive(getFamily())) {
+            overdrive = (driver.setSpeed(OneWireSerialDriver.MODE.OVERDRIVE)
+                    == OneWireSerialDriver.MODE.OVERDRIVE);
+            driver.setSpeed(OneWireSerialDriver.MODE.NORMAL);
+        }
+        return overdrive;
+    }
+
+    /**
+     * Send a ROM command and the serial number, and check the echo
+     */
+    private OneWireError matchROM(byte command) {
+        // Send the command and the serial number MSB first in one block
+        romBlock[0] = command;
+        for (int i = 0; i < 8; i++) {
+            romBlock[i + 1] = (byte) ((serialNumber >> ((7 - i) * 8)) & 0xFF);
+        }
+
+        // The echo comes back in the same buffer
+        if (!driver.touchBlock(romBlock, 0, 9, romBlock)) {
+            return OneWireError.BLOCK_FAILED;
+        }
+        if (romBlock[0] != command || !romEchoed()) {
+            return OneWireError.WRITE_VERIFY_FAILED;
+        }
+
+        return OneWireError.NO_ERROR_SET;
+    }
+
+    /**
+     * @return true if bytes 1-8 of romBlock hold the serial number
+     */
+    private boolean romEchoed() {
+        for (int i = 0; i < 8; i++) {
+            if (romBlock[i + 1] != (byte) ((serialNumber >> ((7 - i) * 8)) & 0xFF)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Address the device at overdrive speed. If the devices on the net
+     * should still be at overdrive speed, this is an overdrive reset and
+     * the ROM command the session picks, which may be Resume or Skip ROM.
+     * Otherwise the net is reset at standard speed and the device is put
+     * into overdrive with Overdrive Match ROM, or Overdrive Skip ROM if it
+     * is the only device on the net; the command goes at standard speed,
+     * and the serial number at overdrive speed. The first time, check that
+     * the device really is listening at overdrive speed with an overdrive
+     * reset and a Match ROM.
+     */
+    private OneWireError accessOverdrive() {
+        OneWireSession session = driver.getSession();
+        if (overdriveChecked && session.isOverdrive()
+                && driver.setSpeed(OneWireSerialDriver.MODE.OVERDRIVE)
+                == OneWireSerialDriver.MODE.OVERDRIVE) {
+            OneWireError e = session.address(romTransaction.clear().reset(), serialNumber)
+                    .execute(driver);
+            session.addressed(serialNumber, e == OneWireError.NO_ERROR_SET);
+            if (e != OneWireError.NO_DEVICES_ON_NET) {
+                return e;
+            }
+            // Nothing answered the overdrive reset, so the devices have
+            // been taken back to standard speed
+        }
+
+        session.deselect();
+        driver.setSpeed(OneWireSerialDriver.MODE.NORMAL);
         OneWireError e = driver.reset();
         if (e != OneWireError.NO_ERROR_SET) {
             return e;
         }
-
-        if (driver.touchByte(MATCH_ROM) != MATCH_ROM) {
+        boolean single = session.isSingleDrop();
+        byte command = single ? OVERDRIVE_SKIP_ROM : OVERDRIVE_MATCH_ROM;
+        if (driver.touchByte(command) != command) {
             return OneWireError.WRITE_VERIFY_FAILED;
         }
+        if (driver.setSpeed(OneWireSerialDriver.MODE.OVERDRIVE)
+                != OneWireSerialDriver.MODE.OVERDRIVE) {
+            return OneWireError.FUNC_NOT_SUP;
+        }
 
-        // Send the serial number MSB first
-        for (int i = 0; i < 8; i++) {
-            byte b = (byte) ((serialNumber >> ((7 - i) * 8)) & 0xFF);
-            if (driver.touchByte(b) != b) {
+        if (!single) {
+            for (int i = 0; i < 8; i++) {
+                romBlock[i + 1] = (byte) ((serialNumber >> ((7 - i) * 8)) & 0xFF);
+            }
+            if (!driver.touchBlock(romBlock, 1, 8, romBlock)) {
+                return OneWireError.BLOCK_FAILED;
+            }
+            if (!romEchoed()) {
                 return OneWireError.WRITE_VERIFY_FAILED;
             }
         }
 
+        if (!overdriveChecked) {
+            // Only devices at overdrive speed answer an overdrive reset
+            e = session.address(romTransaction.clear().reset(), serialNumber)
+                    .execute(driver);
+            if (e != OneWireError.NO_ERROR_SET) {
+                return e;
+            }
+            overdriveChecked = true;
+        }
+        session.setOverdrive(true);
+        session.addressed(serialNumber, true);
         return OneWireError.NO_ERROR_SET;
     }
+
+    /**
+     * Start a transaction addressing the device, to which the caller adds
+     * a function command, its data and read slots before calling
+     * execute(). The reset and ROM command go in the transaction, so the
+     * whole access is one round trip to the adapter. The session picks the
+     * ROM command, so if this device is the one already selected it may be
+     * a single Resume or Skip ROM byte. This works at overdrive speed too,
+     * as long as the device is still at overdrive speed; if it isn't,
+     * execute() addresses it first and sends the rest of the transaction
+     * after.
+     *
+     * @return the transaction
+     */
+    protected OneWireTransaction begin() {
+        transaction.clear();
+        driver.getSession().address(transaction.reset(), serialNumber);
+        addressLength = transaction.length();
+        return transaction;
+    }
+
+    /**
+     * Send the transaction started by begin()
+     *
+     * @return a OneWireError indicating status
+     */
+    protected OneWireError execute() {
+        OneWireSession session = driver.getSession();
+        if (overdrive) {
+            if (overdriveChecked && session.isOverdrive()
+                    && driver.setSpeed(OneWireSerialDriver.MODE.OVERDRIVE)
+                    == OneWireSerialDriver.MODE.OVERDRIVE) {
+                OneWireError e = transaction.execute(driver);
+                session.addressed(serialNumber, e == OneWireError.NO_ERROR_SET);
+                if (e != OneWireError.NO_DEVICES_ON_NET) {
+                    return e;
+                }
+                // Nothing answered the overdrive reset, so the devices
+                // have been taken back to standard speed
+                session.deselect();
+            }
+            OneWireError e = access();
+            if (e != OneWireError.NO_ERROR_SET) {
+                return e;
+            }
+            return transaction.execute(driver, addressLength);
+        }
+
+        driver.setSpeed(OneWireSerialDriver.MODE.NORMAL);
+        // The standard speed reset takes every device out of overdrive
+        session.setOverdrive(false);
+        OneWireError e = transaction.execute(driver);
+        session.addressed(serialNumber, e == OneWireError.NO_ERROR_SET);
+        return e;
+    }
+
+    /**
+     * Reset the 1-Wire and send a MATCH Serial Number command followed by the
+     * current SerialNum code. After this function is complete the 1-Wire device
+     * is ready to accept slave-specific commands, at overdrive speed if
+     * overdrive is in use. At overdrive speed the device may be addressed
+     * with Resume or Skip ROM instead; see accessOverdrive().
+     *
+     * @return true : reset indicates present and device is ready for commands.
+     * false: reset does not indicate presence or echoes 'writes' are not
+     * correct.
+     */
+    public OneWireError access() {
+        if (overdrive) {
+            OneWireError e = accessOverdrive();
+            if (e == OneWireError.NO_ERROR_SET) {
+                return e;
+            }
+            if (!overdriveChecked) {
+                // Fall back to standard speed for good
+                overdrive = false;
+            }
+        }
+
+        // reset the 1-wire
+        driver.getSession().deselect();
+        driver.setSpeed(OneWireSerialDriver.MODE.NORMAL);
+        OneWireError e = driver.reset();
+        if (e != OneWireError.NO_ERROR_SET) {
+            return e;
+        }
+
+        e = matchROM(MATCH_ROM);
+        driver.getSession().addressed(serialNumber, e == OneWireError.NO_ERROR_SET);
+        return e;
+    }
 }
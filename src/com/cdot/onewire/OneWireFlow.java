@@ -0,0 +1,83 @@
+package com.cdot.onewire;
+
+/**
+ * Interfaces for publishing a stream of items with backpressure. These
+ * follow java.util.concurrent.Flow (and Reactive Streams) method for
+ * method, so that a subscriber written for one is easily adapted to the
+ * other, but this library has to build on Java 7, which doesn't have Flow.
+ */
+public final class OneWireFlow {
+
+    private OneWireFlow() {
+    }
+
+    /**
+     * A source of items for any number of Subscribers
+     *
+     * @param <T> type of the items
+     */
+    public interface Publisher<T> {
+
+        /**
+         * Add a subscriber. Its onSubscribe() is called with a
+         * Subscription, which it uses to ask for items.
+         *
+         * @param s the subscriber
+         */
+        public void subscribe(Subscriber<? super T> s);
+    }
+
+    /**
+     * Receives items from a Publisher. The methods of one subscriber are
+     * never called at the same time as each other.
+     *
+     * @param <T> type of the items
+     */
+    public interface Subscriber<T> {
+
+        /**
+         * Called first, before any other method
+         *
+         * @param s used to ask for items, and to cancel
+         */
+        public void onSubscribe(Subscription s);
+
+        /**
+         * Called with each item, no more often than asked for
+         *
+         * @param item the item
+         */
+        public void onNext(T item);
+
+        /**
+         * Called if the subscription fails. Nothing more is sent.
+         *
+         * @param t why it failed
+         */
+        public void onError(Throwable t);
+
+        /**
+         * Called when there are no more items to send
+         */
+        public void onComplete();
+    }
+
+    /**
+     * The link between a Publisher and a Subscriber
+     */
+    public interface Subscription {
+
+        /**
+         * Ask for up to n more items
+         *
+         * @param n the number of items, > 0
+         */
+        public void request(long n);
+
+        /**
+         * Stop sending items. Some may still arrive if they were already on
+         * their way.
+         */
+        public void cancel();
+    }
+}
@@ -0,0 +1,164 @@
+package com.cdot.onewire;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+
+/**
+ * The result of an operation started on a OneWireAsyncBus. As well as
+ * waiting with get(), a caller can register a Listener to be called when
+ * the operation completes, so no thread need be parked waiting for the
+ * bus. The result carries a OneWireError, like the rest of the library,
+ * rather than completing exceptionally.
+ *
+ * @param <T> type of the result
+ */
+public class OneWireFuture<T> implements Future<T> {
+
+    /**
+     * Called when an operation completes
+     *
+     * @param <T> type of the result
+     */
+    public interface Listener<T> {
+
+        /**
+         * Called once, on the bus thread if the operation was still running
+         * when the listener was added, otherwise on the thread adding it.
+         * Must not block, as it holds up the bus.
+         *
+         * @param value the result; may be null if the operation failed or
+         * was cancelled
+         * @param e NO_ERROR_SET, or why the operation failed
+         */
+        public void done(T value, OneWireError e);
+    }
+
+    private T value;
+    private OneWireError error;
+    private boolean done;
+    private boolean cancelled;
+    private List<Listener<T>> listeners;
+
+    OneWireFuture() {
+        done = false;
+        cancelled = false;
+    }
+
+    /**
+     * Complete the operation and call the listeners
+     *
+     * @param v the result
+     * @param e NO_ERROR_SET, or why the operation failed
+     * @return false if the future was already complete or cancelled
+     */
+    boolean complete(T v, OneWireError e) {
+        List<Listener<T>> l;
+        synchronized (this) {
+            if (done) {
+                return false;
+            }
+            value = v;
+            error = e;
+            done = true;
+            l = listeners;
+            listeners = null;
+            notifyAll();
+        }
+        if (l != null) {
+            for (Listener<T> listener : l) {
+                listener.done(v, e);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Add a listener to be called when the operation completes. If it has
+     * already completed, the listener is called straight away.
+     *
+     * @param l the listener
+     * @return this
+     */
+    public OneWireFuture<T> then(Listener<T> l) {
+        synchronized (this) {
+            if (!done) {
+                if (listeners == null) {
+                    listeners = new ArrayList<>(1);
+                }
+                listeners.add(l);
+                return this;
+            }
+        }
+        l.done(value, error);
+        return this;
+    }
+
+    /**
+     * @return NO_ERROR_SET or why the operation failed, or null if it has
+     * not completed yet
+     */
+    public synchronized OneWireError getError() {
+        return error;
+    }
+
+    /**
+     * Stop the operation from starting, if it hasn't started yet. An
+     * operation that has started runs to the end, so as not to leave the
+     * bus in a mess, but its result is thrown away.
+     *
+     * @param mayInterruptIfRunning ignored
+     * @return false if the operation had already completed
+     */
+    @Override
+    public boolean cancel(boolean mayInterruptIfRunning) {
+        synchronized (this) {
+            if (done) {
+                return false;
+            }
+            cancelled = true;
+        }
+        return complete(null, OneWireError.READ_STATUS_NOT_COMPLETE);
+    }
+
+    @Override
+    public synchronized boolean isCancelled() {
+        return cancelled;
+    }
+
+    @Override
+    public synchronized boolean isDone() {
+        return done;
+    }
+
+    @Override
+    public synchronized T get() throws InterruptedException {
+        while (!done) {
+            wait();
+        }
+        if (cancelled) {
+            throw new CancellationException();
+        }
+        return value;
+    }
+
+    @Override
+    public synchronized T get(long timeout, TimeUnit unit)
+            throws InterruptedException, TimeoutException {
+        long end = System.nanoTime() + unit.toNanos(timeout);
+        while (!done) {
+            long left = end - System.nanoTime();
+            if (left <= 0) {
+                throw new TimeoutException();
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, left);
+        }
+        if (cancelled) {
+            throw new CancellationException();
+        }
+        return value;
+    }
+}
@@ -0,0 +1,341 @@
+package com.cdot.onewire;
+
+import java.util.Calendar;
+import java.util.TimeZone;
+
+/**
+ * A DS1923 Hygrochron temperature and humidity logger. readMission() reads
+ * the mission registers, and downloadLog() streams the mission log to a
+ * Log as it is read, so the whole log is never held in memory.
+ * <p>
+ * Memory is read with Read Memory with CRC, which sends a whole 32 byte
+ * page and its CRC16 in a single block: one ROM access for the whole
+ * read, and one touchBlock per page. A page that fails its CRC16 is read
+ * again, starting a new Read Memory at that page.
+ */
+public class OneWireHygrochron extends OneWireDevice {
+
+    /**
+     * Receives memory as it is read
+     */
+    public interface Pages {
+
+        /**
+         * @param address address of the first byte
+         * @param data buffer holding the bytes. It is reused for the next
+         * page.
+         * @param off offset of the first byte in data
+         * @param len number of bytes, to the end of the page or the read
+         * @return something other than NO_ERROR_SET to stop the read
+         */
+        public OneWireError page(int address, byte[] data, int off, int len);
+    }
+
+    /**
+     * What a logged sample measures
+     */
+    public enum Channel {
+        TEMPERATURE, HUMIDITY
+    }
+
+    /**
+     * Receives samples from the mission log
+     */
+    public interface Log {
+
+        /**
+         * Called with each sample, oldest first. All the temperature
+         * samples are sent before the humidity samples.
+         *
+         * @param c what the sample measures
+         * @param index number of the sample in the mission, counting from 0
+         * @param time when the sample was taken, in ms since the epoch
+         * @param value temperature in C, or relative humidity in %, not
+         * compensated for temperature
+         * @return something other than NO_ERROR_SET to stop the download
+         */
+        public OneWireError sample(Channel c, int index, long time, double value);
+    }
+
+    static final byte READ_MEMORY_CRC = (byte) 0x69;
+
+    public static final int PAGE_SIZE = 32;
+
+    // Register addresses
+    static final int RTC_CONTROL = 0x0212;
+    static final int MISSION_CONTROL = 0x0213;
+    static final int GENERAL_STATUS = 0x0215;
+    static final int SAMPLE_RATE = 0x0206;
+    static final int MISSION_TIMESTAMP = 0x0219;
+    static final int MISSION_SAMPLES = 0x0220;
+    static final int REGISTERS = 0x0200;
+    static final int REGISTERS_SIZE = 0x40;
+
+    // Data log memory. When temperature and humidity are both logged, the
+    // temperature log is the first half and the humidity log the second.
+    static final int LOG = 0x1000;
+    static final int LOG_SIZE = 0x2000;
+
+    // Mission control bits
+    static final int ETL = 0x01; // temperature logging
+    static final int EHL = 0x02; // humidity logging
+    static final int TLFS = 0x04; // 16 bit temperature samples
+    static final int HLFS = 0x08; // 16 bit humidity samples
+    static final int RO = 0x10; // rollover
+    // RTC control bit: sample rate is in seconds, not minutes
+    static final int EHSS = 0x02;
+    // General status bit: mission in progress
+    static final int MIP = 0x02;
+
+    // Mission, as read by readMission()
+    public boolean missionInProgress;
+    public boolean temperatureLogged, humidityLogged;
+    public boolean temperature16, humidity16;
+    public boolean rollover;
+    // number of samples taken by the mission, including any overwritten
+    public int missionSamples;
+    // time between samples, in s
+    public int sampleRate;
+    // time of the first sample, in ms since the epoch. The RTC is read as
+    // UTC.
+    public long missionStart;
+
+    // number of times to read a page that fails its CRC16 before giving up
+    public int retries;
+
+    // Read access password, sent with every read. Ignored by the device
+    // unless passwords are enabled.
+    private final byte[] password = new byte[8];
+
+    // Command and address, which the first page's CRC16 covers, and a page
+    // with its CRC16. Reused so that reading allocates nothing.
+    private final byte[] command = new byte[3];
+    private final byte[] page = new byte[PAGE_SIZE + 2];
+    private final byte[] registers = new byte[REGISTERS_SIZE];
+
+    public OneWireHygrochron(long serno, OneWireSerialDriver d) {
+        super(serno, d);
+        retries = 3;
+        for (int i = 0; i < password.length; i++) {
+            password[i] = (byte) 0xFF;
+        }
+    }
+
+    public static boolean supportsDevice(long serno) {
+        return (byte) ((serno >> 56) & 0xFF) == OneWireThermometer.DS1923;
+    }
+
+    /**
+     * @param pw the 8 byte read access password
+     */
+    public void setPassword(byte[] pw) {
+        System.arraycopy(pw, 0, password, 0, password.length);
+    }
+
+    /**
+     * Read memory with Read Memory with CRC, checking the CRC16 of each
+     * page and passing it on as soon as it has been checked
+     *
+     * @param address first address to read
+     * @param length number of bytes to read
+     * @param consumer receives the memory, a page (or the part of a page
+     * in the range) at a time
+     * @return a OneWireError indicating status. CRC_FAILED if a page failed
+     * its CRC16 more than retries times.
+     */
+    public OneWireError readMemory(int address, int length, Pages consumer) {
+        int end = address + length;
+        int failures = 0;
+        while (address < end) {
+            command[0] = READ_MEMORY_CRC;
+            command[1] = (byte) address;
+            command[2] = (byte) (address >> 8);
+            begin().write(command, 0, 3).write(password, 0, password.length);
+            OneWireError e = execute();
+            if (e != OneWireError.NO_ERROR_SET) {
+                return e;
+            }
+
+            // The device sends to the end of each page and then the CRC16,
+            // for as long as it is read. The CRC16 of the first page also
+            // covers the command and address.
+            int crc = CRC16.compute(0, command, 0, 3);
+            while (address < end) {
+                int n = PAGE_SIZE - (address % PAGE_SIZE);
+                for (int i = 0; i < n + 2; i++) {
+                    page[i] = (byte) 0xFF;
+                }
+                if (!driver.touchBlock(page, 0, n + 2, page)) {
+                    return OneWireError.BLOCK_FAILED;
+                }
+                if (!CRC16.check(crc, page, 0, n + 2)) {
+                    driver.getMetrics().count(OneWireMetrics.Counter.CRC_FAILURES, 1);
+                    if (++failures > retries) {
+                        return OneWireError.CRC_FAILED;
+                    }
+                    driver.getMetrics().count(OneWireMetrics.Counter.RETRIES, 1);
+                    break; // start again at this page
+                }
+                failures = 0;
+                e = consumer.page(address, page, 0, Math.min(n, end - address));
+                if (e != OneWireError.NO_ERROR_SET) {
+                    return e;
+                }
+                address += n;
+                crc = 0;
+            }
+        }
+        return OneWireError.NO_ERROR_SET;
+    }
+
+    /**
+     * Read the mission registers
+     *
+     * @return a OneWireError indicating status
+     */
+    public OneWireError readMission() {
+        OneWireError e = readMemory(REGISTERS, REGISTERS_SIZE, new Pages() {
+            @Override
+            public OneWireError page(int address, byte[] data, int off, int len) {
+                System.arraycopy(data, off, registers, address - REGISTERS, len);
+                return OneWireError.NO_ERROR_SET;
+            }
+        });
+        if (e != OneWireError.NO_ERROR_SET) {
+            return e;
+        }
+        int control = register(MISSION_CONTROL);
+        temperatureLogged = (control & ETL) != 0;
+        humidityLogged = (control & EHL) != 0;
+        temperature16 = (control & TLFS) != 0;
+        humidity16 = (control & HLFS) != 0;
+        rollover = (control & RO) != 0;
+        missionInProgress = (register(GENERAL_STATUS) & MIP) != 0;
+        missionSamples = register(MISSION_SAMPLES) | register(MISSION_SAMPLES + 1) << 8
+                | register(MISSION_SAMPLES + 2) << 16;
+        sampleRate = register(SAMPLE_RATE) | register(SAMPLE_RATE + 1) << 8;
+        if ((register(RTC_CONTROL) & EHSS) == 0) {
+            sampleRate *= 60;
+        }
+        missionStart = timestamp(MISSION_TIMESTAMP);
+        return OneWireError.NO_ERROR_SET;
+    }
+
+    private int register(int address) {
+        return registers[address - REGISTERS] & 0xFF;
+    }
+
+    private static int bcd(int b) {
+        return (b >> 4) * 10 + (b & 0xF);
+    }
+
+    /**
+     * Decode an RTC time: seconds, minutes, hours, date, month and year,
+     * in BCD
+     */
+    private long timestamp(int address) {
+        int hours = register(address + 2);
+        if ((hours & 0x40) != 0) {
+            // 12 hour clock, bit 5 set for PM
+            hours = bcd(hours & 0x1F) % 12 + ((hours & 0x20) != 0 ? 12 : 0);
+        } else {
+            hours = bcd(hours & 0x3F);
+        }
+        int month = register(address + 4);
+        Calendar c = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        c.clear();
+        c.set(2000 + bcd(register(address + 5)) + ((month & 0x80) != 0 ? 100 : 0),
+                bcd(month & 0x1F) - 1, bcd(register(address + 3) & 0x3F),
+                hours, bcd(register(address + 1) & 0x7F), bcd(register(address) & 0x7F));
+        return c.getTimeInMillis();
+    }
+
+    /**
+     * Read the mission registers and stream the mission log, oldest sample
+     * first, decoding each page as it arrives
+     *
+     * @param log receives the samples
+     * @return a OneWireError indicating status
+     */
+    public OneWireError downloadLog(Log log) {
+        OneWireError e = readMission();
+        if (e != OneWireError.NO_ERROR_SET) {
+            return e;
+        }
+        int size = (temperatureLogged && humidityLogged) ? LOG_SIZE / 2 : LOG_SIZE;
+        int base = LOG;
+        if (temperatureLogged) {
+            e = downloadChannel(Channel.TEMPERATURE, base, size, temperature16 ? 2 : 1, log);
+            if (e != OneWireError.NO_ERROR_SET) {
+                return e;
+            }
+            base += size;
+        }
+        if (humidityLogged) {
+            e = downloadChannel(Channel.HUMIDITY, base, size, humidity16 ? 2 : 1, log);
+        }
+        return e;
+    }
+
+    /**
+     * Stream the log of one channel. The log is circular if rollover is
+     * enabled, in which case the oldest sample is the one after the newest.
+     */
+    private OneWireError downloadChannel(final Channel channel, int base, int size,
+            final int bytes, final Log log) {
+        int capacity = size / bytes;
+        int stored = Math.min(missionSamples, capacity);
+        final int first = missionSamples - stored;
+        int oldest = rollover ? first % capacity : 0;
+
+        Pages decoder = new Pages() {
+            int index = first;
+
+            @Override
+            public OneWireError page(int address, byte[] data, int off, int len) {
+                for (int i = off; i + bytes <= off + len; i += bytes) {
+                    int raw = (bytes == 2)
+                            ? (data[i] & 0xFF) << 8 | (data[i + 1] & 0xFF)
+                            : (data[i] & 0xFF) << 8;
+                    double value = (channel == Channel.TEMPERATURE)
+                            ? temperature(raw) : humidity(raw);
+                    OneWireError e = log.sample(channel, index,
+                            missionStart + (long) index * sampleRate * 1000, value);
+                    if (e != OneWireError.NO_ERROR_SET) {
+                        return e;
+                    }
+                    index++;
+                }
+                return OneWireError.NO_ERROR_SET;
+            }
+        };
+
+        // From the oldest sample to the end of the log, then round to the
+        // newest
+        int tail = Math.min(stored, capacity - oldest);
+        OneWireError e = readMemory(base + oldest * bytes, tail * bytes, decoder);
+        if (e == OneWireError.NO_ERROR_SET && stored > tail) {
+            e = readMemory(base, (stored - tail) * bytes, decoder);
+        }
+        return e;
+    }
+
+    /**
+     * @param raw a temperature sample, as a 16 bit value; an 8 bit sample
+     * is the high byte
+     * @return the temperature in C
+     */
+    public static double temperature(int raw) {
+        return raw / 512.0 - 41;
+    }
+
+    /**
+     * @param raw a humidity sample, as a 16 bit value; an 8 bit sample is
+     * the high byte
+     * @return the relative humidity in %, not compensated for temperature
+     */
+    public static double humidity(int raw) {
+        double volts = (raw >> 4) * 5.02 / 4096;
+        return (volts - 0.958) / 0.0307;
+    }
+}
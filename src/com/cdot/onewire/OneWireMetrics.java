@@ -0,0 +1,73 @@
+package com.cdot.onewire;
+
+/**
+ * Receives counts and measurements from a driver and the devices and
+ * searches using it. Calls are made from the bus thread, often from inside
+ * the bit and byte loops, so implementations must be cheap and must not
+ * allocate. See OneWireBusMetrics for one that keeps counters and
+ * histograms.
+ */
+public interface OneWireMetrics {
+
+    /**
+     * Things that are counted
+     */
+    public enum Counter {
+        // bus resets, and resets that saw no presence pulse
+        RESETS,
+        PRESENCE_FAILURES,
+        // transfers to the adapter that waited for a reply
+        ROUND_TRIPS,
+        // bytes written to and read from the adapter
+        BYTES_WRITTEN,
+        BYTES_READ,
+        // reads and search passes that failed the CRC check
+        CRC_FAILURES,
+        // reads and updates that were retried
+        RETRIES,
+        // full searches of the net, and searches that failed
+        SEARCHES,
+        SEARCH_ERRORS
+    }
+
+    /**
+     * Things that are measured
+     */
+    public enum Histogram {
+        // time from sending to the adapter to having the reply, in ns
+        ROUND_TRIP_NS,
+        // time taken by a full search, in ns
+        SEARCH_NS,
+        // number of devices found by a search
+        SEARCH_DEVICES,
+        // time taken by a temperature conversion, in ms
+        CONVERSION_MS,
+        // time taken by OneWireThermometer.update(), in ns
+        UPDATE_NS
+    }
+
+    /**
+     * Metrics that are thrown away, used until a driver is given others
+     */
+    public static final OneWireMetrics NONE = new OneWireMetrics() {
+        @Override
+        public void count(Counter c, long n) {
+        }
+
+        @Override
+        public void record(Histogram h, long value) {
+        }
+    };
+
+    /**
+     * @param c what to count
+     * @param n how many to add
+     */
+    public void count(Counter c, long n);
+
+    /**
+     * @param h what was measured
+     * @param value the measurement
+     */
+    public void record(Histogram h, long value);
+}
@@ -0,0 +1,342 @@
+package com.cdot.onewire;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Runs discovery and sampling on several 1-wire nets at once. Each net has
+ * its own driver and its own thread, so a cycle over all the nets takes as
+ * long as the slowest net rather than the sum of them all. All the bus
+ * operations for a net are done on its thread, so drivers need not be
+ * thread safe.
+ * <p>
+ * The devices, thermometers and readings of each Bus are replaced, never
+ * changed, so they can be read from any thread, even while discoverLater()
+ * is running. The thermometers themselves are updated on the bus thread,
+ * so their fields should only be read once sample() has returned.
+ */
+public class OneWireMultiBus {
+
+    /**
+     * A 1-wire net and the thermometers found on it
+     */
+    public static class Bus {
+
+        public final String name;
+        public final OneWireSerialDriver driver;
+        public final OneWireSampler sampler;
+
+        // Serial numbers of all the devices found by discover(). Unmodifiable.
+        public volatile List<Long> devices;
+        // The supported thermometers amongst them. Unmodifiable.
+        public volatile List<OneWireThermometer> thermometers;
+        // Readings from the last sample(), in the same order as the
+        // thermometers sampled. Unmodifiable.
+        public volatile List<OneWireReading> readings;
+
+        // True if no more than one device can ever be on this net, so the
+        // device can be addressed with Skip ROM. This must come from
+        // configuration, such as the registry; a search that happens to
+        // find one device is not enough. restore() sets it from the
+        // registry.
+        public boolean singleDrop;
+
+        // Last error seen on this net
+        public OneWireError last_error;
+        // Time the last discover() or sample() took on this net, in ms
+        public long cycleTime;
+
+        private final ExecutorService thread;
+
+        Bus(final String n, OneWireSerialDriver d) {
+            name = n;
+            driver = d;
+            sampler = new OneWireSampler(d);
+            devices = Collections.emptyList();
+            thermometers = Collections.emptyList();
+            readings = Collections.emptyList();
+            last_error = OneWireError.NO_ERROR_SET;
+            thread = Executors.newSingleThreadExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread t = new Thread(r, "1-wire " + n);
+                    t.setDaemon(true);
+                    return t;
+                }
+            });
+        }
+
+        /**
+         * Replace the devices and thermometers lists. Thermometers that were
+         * already known are kept, along with what is known about them.
+         *
+         * @param found serial numbers of the devices found
+         * @param known thermometers to keep, if they were found
+         */
+        private void setDevices(List<Long> found, List<OneWireThermometer> known) {
+            // A net configured as single-drop is addressed with Skip ROM,
+            // as long as its device is there
+            driver.getSession().setSingleDrop(singleDrop && found.size() == 1);
+            List<OneWireThermometer> therms = new ArrayList<>();
+            for (long serno : found) {
+                if (!OneWireThermometer.supportsDevice(serno)) {
+                    continue;
+                }
+                OneWireThermometer t = null;
+                for (OneWireThermometer o : known) {
+                    if (o.serialNumber == serno) {
+                        t = o;
+                        break;
+                    }
+                }
+                therms.add(t != null ? t : new OneWireThermometer(serno, driver));
+            }
+            devices = Collections.unmodifiableList(new ArrayList<>(found));
+            thermometers = Collections.unmodifiableList(therms);
+        }
+
+        /**
+         * Search the net for devices, replacing the thermometers list.
+         * Runs on the bus thread.
+         */
+        private OneWireError discover() {
+            final List<Long> found = new ArrayList<>();
+            OneWireError e = new OneWireSearch(driver).scan(new OneWireSearch.Device() {
+                @Override
+                public OneWireError device(long serno) {
+                    found.add(serno);
+                    return OneWireError.NO_ERROR_SET;
+                }
+            });
+            if (e == OneWireError.NO_ERROR_SET) {
+                setDevices(found, thermometers);
+            }
+            return e;
+        }
+
+        /**
+         * Check the devices known from a registry are present, and use those
+         * that are. If none are known, do a full search. Runs on the bus
+         * thread.
+         */
+        private OneWireError restore(OneWireRegistry registry) {
+            singleDrop = registry.isSingleDrop(name);
+            List<Long> known = registry.get(name);
+            if (known.isEmpty()) {
+                return discover();
+            }
+            // Each device must be addressed by its serial number to check it
+            driver.getSession().setSingleDrop(false);
+            OneWireSearch search = new OneWireSearch(driver);
+            List<Long> present = new ArrayList<>();
+            List<OneWireThermometer> read = new ArrayList<>();
+            for (long serno : known) {
+                if (OneWireThermometer.supportsDevice(serno)) {
+                    // Reading the scratchpad is a cheaper check than a
+                    // search; the CRC fails if nothing answers. It also
+                    // tells us the resolution.
+                    OneWireThermometer t = new OneWireThermometer(serno, driver);
+                    if (t.read() == OneWireError.NO_ERROR_SET) {
+                        read.add(t);
+                        present.add(serno);
+                    }
+                } else if (search.verify(serno) == OneWireError.NO_ERROR_SET) {
+                    present.add(serno);
+                }
+            }
+            setDevices(present, read);
+            return OneWireError.NO_ERROR_SET;
+        }
+
+        /**
+         * Sample all the thermometers on the net. Runs on the bus thread.
+         */
+        private OneWireError sample() {
+            // Don't leave the last readings behind if the driver throws
+            readings = Collections.emptyList();
+            readings = Collections.unmodifiableList(sampler.sample(thermometers));
+            return sampler.last_error;
+        }
+    }
+
+    // An operation to run on every bus
+    private interface Task {
+        public OneWireError run(Bus bus);
+    }
+
+    private final List<Bus> buses;
+
+    public OneWireMultiBus() {
+        buses = new ArrayList<>();
+    }
+
+    /**
+     * Add a net
+     *
+     * @param name name of the net, usually the name of the port
+     * @param driver driver for the net. It must not be used by anything
+     * else while the net is part of this OneWireMultiBus.
+     * @return the new bus
+     */
+    public Bus add(String name, OneWireSerialDriver driver) {
+        Bus bus = new Bus(name, driver);
+        buses.add(bus);
+        return bus;
+    }
+
+    /**
+     * @return the nets, in the order they were added
+     */
+    public List<Bus> getBuses() {
+        return buses;
+    }
+
+    /**
+     * Run a task on every bus at once, and wait for them all to finish.
+     * A driver that throws (for example, because the port has gone away)
+     * fails its own bus but not the others.
+     *
+     * @return NO_ERROR_SET, or the error from the first bus that failed
+     */
+    private OneWireError runAll(final Task task) {
+        List<Future<OneWireError>> futures = new ArrayList<>(buses.size());
+        for (final Bus bus : buses) {
+            futures.add(bus.thread.submit(new Callable<OneWireError>() {
+                @Override
+                public OneWireError call() {
+                    long start = System.nanoTime();
+                    try {
+                        bus.last_error = task.run(bus);
+                    } catch (RuntimeException | Error e) {
+                        bus.last_error = OneWireError.READCOM_FAILED;
+                    }
+                    bus.cycleTime = (System.nanoTime() - start) / 1000000L;
+                    return bus.last_error;
+                }
+            }));
+        }
+
+        OneWireError result = OneWireError.NO_ERROR_SET;
+        for (Future<OneWireError> f : futures) {
+            OneWireError e;
+            try {
+                e = f.get();
+            } catch (InterruptedException ie) {
+                Thread.currentThread().interrupt();
+                return OneWireError.READ_STATUS_NOT_COMPLETE;
+            } catch (ExecutionException ee) {
+                e = OneWireError.READCOM_FAILED;
+            }
+            if (result == OneWireError.NO_ERROR_SET) {
+                result = e;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * Search all the nets for devices at once
+     *
+     * @return NO_ERROR_SET, or the error from the first bus that failed.
+     * Each Bus has its own last_error.
+     */
+    public OneWireError discover() {
+        return runAll(new Task() {
+            @Override
+            public OneWireError run(Bus bus) {
+                return bus.discover();
+            }
+        });
+    }
+
+    /**
+     * Find the devices on all the nets at once using the devices known from
+     * a registry, which is much quicker than a full search. Nets with no
+     * known devices are searched.
+     *
+     * @param registry devices known on each port
+     * @return NO_ERROR_SET, or the error from the first bus that failed.
+     * Each Bus has its own last_error.
+     */
+    public OneWireError restore(final OneWireRegistry registry) {
+        return runAll(new Task() {
+            @Override
+            public OneWireError run(Bus bus) {
+                return bus.restore(registry);
+            }
+        });
+    }
+
+    /**
+     * Start a full search of all the nets without waiting for it to finish,
+     * to catch devices that aren't in the registry. The search on each net
+     * is done on the bus thread, before anything else asked for after this
+     * call. When a net has been searched its devices are updated, and so are
+     * the entries for the port in the registry.
+     *
+     * @param registry devices known on each port, may be null
+     */
+    public void discoverLater(final OneWireRegistry registry) {
+        for (final Bus bus : buses) {
+            bus.thread.submit(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        bus.last_error = bus.discover();
+                    } catch (RuntimeException | Error e) {
+                        bus.last_error = OneWireError.READCOM_FAILED;
+                        return;
+                    }
+                    if (registry != null && bus.last_error == OneWireError.NO_ERROR_SET) {
+                        registry.set(bus.name, bus.devices);
+                    }
+                }
+            });
+        }
+    }
+
+    /**
+     * Sample the thermometers on all the nets at once
+     *
+     * @return the readings from all the nets, in the order the nets were
+     * added. Each Bus also has its own readings.
+     */
+    public List<OneWireReading> sample() {
+        runAll(new Task() {
+            @Override
+            public OneWireError run(Bus bus) {
+                return bus.sample();
+            }
+        });
+        List<OneWireReading> all = new ArrayList<>();
+        for (Bus bus : buses) {
+            all.addAll(bus.readings);
+        }
+        return all;
+    }
+
+    /**
+     * Stop the bus threads, once any work already asked for (such as
+     * discoverLater()) has finished. The drivers are left open.
+     */
+    public void close() {
+        for (Bus bus : buses) {
+            bus.thread.shutdown();
+        }
+        try {
+            for (Bus bus : buses) {
+                bus.thread.awaitTermination(Long.MAX_VALUE, TimeUnit.MILLISECONDS);
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
@@ -0,0 +1,325 @@
+package com.cdot.onewire;
+
+import java.nio.ByteBuffer;
+
+/**
+ * 1-wire interface through a passive serial adapter, as in DS9097 style
+ * adapters, where the UART makes the 1-wire timing itself. Each slot is
+ * one UART byte at 115200 baud (1Mbaud for overdrive), echoed with the
+ * state of the line in its least significant bit, and the reset pulse is
+ * one byte at 9600 baud (115200 for overdrive) whose echo shows the
+ * presence pulse. See
+ * https://www.maximintegrated.com/en/app-notes/index.mvp/id/214
+ * <p>
+ * Subclasses provide the serial port through the xxxCOM methods, as they
+ * do for OneWireDS2480Driver. The port parameters in use are remembered,
+ * so the port is only set up again when the baud rate has to change: the
+ * reset baud rate is set by reset(), and the data baud rate by the slots
+ * that follow it. The port is not flushed before every transfer; every
+ * byte written is echoed, so input is only stale after a read has timed
+ * out, and then it is flushed at the next reset.
+ */
+public abstract class OneWirePassiveDriver extends OneWireSerialDriver {
+
+    // Baud rates used for the reset pulse and for data slots, at standard
+    // and overdrive speed, and the stop bits used with them
+    static final int STANDARD_RESET_BAUD = 9600;
+    static final int STANDARD_DATA_BAUD = 115200;
+    static final int OVERDRIVE_RESET_BAUD = 115200;
+    static final int OVERDRIVE_DATA_BAUD = 1000000;
+    static final int RESET_STOP_BITS = 1;
+    static final int DATA_STOP_BITS = 2;
+
+    // Reset pulses. 0xF0 at 9600 baud holds the line low for 520us; 0xE0 at
+    // 115200 baud holds it low for 52us, inside the 48-80us overdrive window
+    static final byte STANDARD_RESET_PULSE = (byte) 0xF0;
+    static final byte OVERDRIVE_RESET_PULSE = (byte) 0xE0;
+
+    private MODE speed;
+
+    // Parameters the port is set to, 0 if not known
+    private int baud, stopBits;
+
+    // True if a transfer failed, so echoes may still arrive
+    private boolean stale;
+
+    // Slots to write and their echoes. Direct, so a channel needn't copy.
+    private final ByteBuffer slots = ByteBuffer.allocateDirect(OneWireSerialDriver.UART_FIFO_SIZE);
+    private final ByteBuffer echoes = ByteBuffer.allocateDirect(OneWireSerialDriver.UART_FIFO_SIZE);
+    private final byte[] oneByte = new byte[1];
+
+    protected OneWirePassiveDriver(Logger log) {
+        super(log);
+        speed = MODE.NORMAL;
+        baud = stopBits = 0;
+        stale = false;
+    }
+
+    /**
+     * Set the baud rate and stop bits of the serial port, with 8 data bits
+     * and no parity
+     * @param baud baud rate e.g. 9600
+     * @param stopBits 1 or 2
+     * @return false if the port could not be set up
+     */
+    protected abstract boolean setParamsCOM(int baud, int stopBits);
+
+    /**
+     * Discard echoes left over from a transfer that failed. Called by the
+     * next reset().
+     */
+    protected abstract void flushCOM();
+
+    /**
+     * Write bytes to the serial port and read back their echoes
+     * @param tx bytes to write, from position to limit
+     * @param rx receives the echoes, from position 0 to its limit, which
+     * is the number of bytes written
+     * @return NO_ERROR_SET, WRITECOM_FAILED, or READCOM_FAILED if the
+     * echoes did not all arrive in time
+     */
+    protected abstract OneWireError transferCOM(ByteBuffer tx, ByteBuffer rx);
+
+    /**
+     * Encode bits as UART bytes, one per slot; 0xFF for a write 1 or read
+     * slot, 0x00 for a write 0 slot.
+     * @param send bit string, [0] byte first, each byte LSB first
+     * @param base first bit to encode
+     * @param n number of bits to encode
+     * @param buf receives n UART bytes, from index 0
+     */
+    static void encodeSlots(byte[] send, int base, int n, ByteBuffer buf) {
+        for (int i = 0; i < n; i++) {
+            int bit = base + i;
+            buf.put(i, (send[bit / 8] & (1 << (bit & 0x7))) != 0 ? (byte) 0xFF : 0);
+        }
+    }
+
+    /**
+     * Decode the UART echoes of slots into bits. The least significant bit
+     * of each echo is the state of the line during the slot.
+     * @param read n UART bytes read back, from index 0
+     * @param base bit number of the first echo
+     * @param n number of echoes
+     * @param receive bit string to set the bits in
+     */
+    static void decodeSlots(ByteBuffer read, int base, int n, byte[] receive) {
+        for (int i = 0; i < n; i++) {
+            int bit = base + i;
+            if ((read.get(i) & 0x01) != 0) {
+                receive[bit / 8] |= 1 << (bit & 0x7);
+            } else {
+                receive[bit / 8] &= ~(1 << (bit & 0x7));
+            }
+        }
+    }
+
+    /**
+     * Set the port parameters, unless they are already set
+     */
+    private boolean configure(int b, int s) {
+        if (b == baud && s == stopBits) {
+            return true;
+        }
+        if (setParamsCOM(b, s)) {
+            baud = b;
+            stopBits = s;
+            return true;
+        }
+        baud = stopBits = 0;
+        return false;
+    }
+
+    private boolean setDataParams(MODE s) {
+        return configure(s == MODE.OVERDRIVE ? OVERDRIVE_DATA_BAUD : STANDARD_DATA_BAUD,
+                DATA_STOP_BITS);
+    }
+
+    /**
+     * Record a round trip to the port
+     * @param start nanoTime() when the write started
+     * @param n number of bytes written, and read back
+     */
+    private void roundTrip(long start, int n) {
+        metrics.count(OneWireMetrics.Counter.ROUND_TRIPS, 1);
+        metrics.count(OneWireMetrics.Counter.BYTES_WRITTEN, n);
+        metrics.count(OneWireMetrics.Counter.BYTES_READ, n);
+        metrics.record(OneWireMetrics.Histogram.ROUND_TRIP_NS, nanoTime() - start);
+    }
+
+    /**
+     * Write the slots buffer, from 0 to its limit, and read the same number
+     * of echoes into the echoes buffer
+     *
+     * @return a OneWireError indicating status
+     */
+    private OneWireError transfer() {
+        int n = slots.limit();
+        echoes.clear().limit(n);
+        long start = nanoTime();
+        OneWireError e = transferCOM(slots, echoes);
+        if (e != OneWireError.NO_ERROR_SET) {
+            // The missing echoes may turn up later
+            stale = true;
+            return last_error = e;
+        }
+        roundTrip(start, n);
+        return OneWireError.NO_ERROR_SET;
+    }
+
+    @Override
+    public OneWireError reset() {
+        if (stale) {
+            flushCOM();
+            stale = false;
+        }
+        boolean od = (speed == MODE.OVERDRIVE);
+        if (!configure(od ? OVERDRIVE_RESET_BAUD : STANDARD_RESET_BAUD, RESET_STOP_BITS)) {
+            return last_error = OneWireError.RESET_FAILED;
+        }
+
+        // Send the registration pulse
+        byte pulse = od ? OVERDRIVE_RESET_PULSE : STANDARD_RESET_PULSE;
+        slots.clear();
+        slots.put(pulse).flip();
+        if (transfer() != OneWireError.NO_ERROR_SET) {
+            return last_error = OneWireError.RESET_FAILED;
+        }
+        metrics.count(OneWireMetrics.Counter.RESETS, 1);
+
+        // Look for presence pulse
+        int result = echoes.get(0) & 0xFF;
+        if (result == 0) /* Data line is a short to ground */ {
+            return last_error = OneWireError.RESET_FAILED;
+        }
+        if (result == (pulse & 0xFF)) /* No device responding */ {
+            metrics.count(OneWireMetrics.Counter.PRESENCE_FAILURES, 1);
+            return last_error = OneWireError.NO_DEVICES_ON_NET;
+        }
+        // The data baud rate is set by the next slots
+        return OneWireError.NO_ERROR_SET;
+    }
+
+    /**
+     * Change the baud rate used for data slots straight away, so that a
+     * command sent at standard speed can be followed by data at overdrive
+     * speed. Overdrive needs a UART that can run at 1Mbaud.
+     */
+    @Override
+    public MODE setSpeed(MODE newSpeed) {
+        if (newSpeed != MODE.OVERDRIVE) {
+            newSpeed = MODE.NORMAL;
+        }
+        if (newSpeed != speed) {
+            if (setDataParams(newSpeed)) {
+                speed = newSpeed;
+            } else {
+                setDataParams(speed);
+            }
+        }
+        return speed;
+    }
+
+    /**
+     * Send bits from a bit string and put the response to each in the same
+     * position in another
+     * @param first number of the first bit to send
+     * @param nbits number of bits to send
+     * @param send bit string to send
+     * @param receive receives the response; may be the same as send
+     * @return false if the bits could not be sent, in which case last_error
+     * says why, and the bits not sent are received as the complement of
+     * what was sent, so that callers checking the echo see it fail
+     */
+    private boolean transferSlots(int first, int nbits, byte[] send, byte[] receive) {
+        if (!setDataParams(speed)) {
+            last_error = OneWireError.WRITECOM_FAILED;
+            complementSlots(first, nbits, send, receive);
+            return false;
+        }
+        // send and receive blocks of UART_FIFO_SIZE or less
+        int base = first;
+        while (base < first + nbits) {
+            int send_now = Math.min(first + nbits - base,
+                    OneWireSerialDriver.UART_FIFO_SIZE);
+
+            // This is done before the echoes are decoded, so send and
+            // receive can be the same array
+            slots.clear().limit(send_now);
+            encodeSlots(send, base, send_now, slots);
+            if (transfer() != OneWireError.NO_ERROR_SET) {
+                complementSlots(base, first + nbits - base, send, receive);
+                return false;
+            }
+            decodeSlots(echoes, base, send_now, receive);
+            base += send_now;
+        }
+        return true;
+    }
+
+    /**
+     * Receive the complement of the bits sent, as no echo could be read
+     */
+    private static void complementSlots(int first, int nbits, byte[] send, byte[] receive) {
+        for (int bit = first; bit < first + nbits; bit++) {
+            if ((send[bit / 8] & (1 << (bit & 0x7))) != 0) {
+                receive[bit / 8] &= ~(1 << (bit & 0x7));
+            } else {
+                receive[bit / 8] |= 1 << (bit & 0x7);
+            }
+        }
+    }
+
+    /**
+     * @return the bit read, or the complement of the bit sent if the port
+     * failed
+     */
+    @Override
+    public boolean touchBit(boolean sbit) {
+        oneByte[0] = (byte) (sbit ? 1 : 0);
+        transferSlots(0, 1, oneByte, oneByte);
+        return (oneByte[0] & 1) != 0;
+    }
+
+    @Override
+    public byte[] touchBits(int nbits, byte[] send) {
+        byte[] receive = new byte[(nbits + 7) / 8];
+        transferSlots(0, nbits, send, receive);
+        return receive;
+    }
+
+    @Override
+    public void touchBits(int nbits, byte[] send, byte[] receive) {
+        transferSlots(0, nbits, send, receive);
+    }
+
+    @Override
+    public byte[] touchBlock(byte[] tx) {
+        byte[] rx = new byte[tx.length];
+        return transferSlots(0, tx.length * 8, tx, rx) ? rx : null;
+    }
+
+    @Override
+    public boolean touchBlock(byte[] tx, int off, int len, byte[] rx) {
+        return transferSlots(off * 8, len * 8, tx, rx);
+    }
+
+    /**
+     * @return the byte read, or the complement of the byte sent if the port
+     * failed
+     */
+    @Override
+    public byte touchByte(byte txbyte) {
+        oneByte[0] = txbyte;
+        transferSlots(0, 8, oneByte, oneByte);
+        return oneByte[0];
+    }
+
+    @Override
+    public void msDelay(int len) {
+        try {
+            Thread.sleep(len, 0);
+        } catch (InterruptedException ie) {
+        }
+    }
+}
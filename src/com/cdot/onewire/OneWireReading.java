@@ -0,0 +1,43 @@
+package com.cdot.onewire;
+
+/**
+ * A temperature reading taken from a single thermometer
+ */
+public class OneWireReading {
+
+    // serial number of the thermometer
+    public final long serialNumber;
+
+    // System.currentTimeMillis() when the conversion was started
+    public final long timestamp;
+
+    // temperature in 1/16 C, as held in the scratchpad
+    public final int raw;
+
+    // temperature in C
+    public final double temperature;
+
+    // time the conversion took, in ms
+    public final int conversionTime;
+
+    // status of the read. raw and temperature are only meaningful when
+    // this is NO_ERROR_SET
+    public final OneWireError status;
+
+    public OneWireReading(long serno, long time, int r, double t, int ms, OneWireError e) {
+        serialNumber = serno;
+        timestamp = time;
+        raw = r;
+        temperature = t;
+        conversionTime = ms;
+        status = e;
+    }
+
+    @Override
+    public String toString() {
+        if (status != OneWireError.NO_ERROR_SET) {
+            return String.format("%X: %s", serialNumber, status.text());
+        }
+        return String.format("%X: %g", serialNumber, temperature);
+    }
+}
@@ -0,0 +1,347 @@
+package com.cdot.onewire;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Publishes readings to any number of subscribers, each running at its own
+ * speed. Readings come from the polling loop, either by registering the
+ * publisher as a OneWireScheduler.Listener or by calling publish().
+ * <p>
+ * publish() never blocks. Each subscriber has its own bounded buffer, and
+ * is sent readings from it on an Executor only as fast as it asks for them
+ * with request(). When a slow subscriber's buffer is full, readings are
+ * dropped for that subscriber alone, according to its Overflow policy, so
+ * a slow database writer can't stall the bus or hold up the alarms.
+ */
+public class OneWireReadingPublisher
+        implements OneWireFlow.Publisher<OneWireReading>, OneWireScheduler.Listener {
+
+    /**
+     * What to do with a reading for a subscriber whose buffer is full
+     */
+    public enum Overflow {
+        // Drop the new reading, keeping those already buffered
+        DROP,
+        // Drop the oldest buffered reading to make room for the new one.
+        // With a capacity of 1, the subscriber only ever gets the latest.
+        LATEST
+    }
+
+    /**
+     * The subscription of one subscriber
+     */
+    public class Feed implements OneWireFlow.Subscription, Runnable {
+
+        private final OneWireFlow.Subscriber<? super OneWireReading> subscriber;
+        private final int capacity;
+        private final Overflow overflow;
+
+        // All guarded by this
+        private final ArrayDeque<OneWireReading> buffer;
+        private long demand;
+        private long dropped;
+        private boolean subscribed;
+        private boolean scheduled;
+        private boolean cancelled;
+        private boolean completed;
+        private Throwable error;
+
+        Feed(OneWireFlow.Subscriber<? super OneWireReading> s, int cap, Overflow o) {
+            subscriber = s;
+            capacity = cap;
+            overflow = o;
+            buffer = new ArrayDeque<>(cap);
+            demand = 0;
+            dropped = 0;
+            subscribed = false;
+            scheduled = false;
+            cancelled = false;
+            completed = false;
+        }
+
+        /**
+         * @return the number of readings dropped because the subscriber
+         * didn't keep up
+         */
+        public synchronized long getDropped() {
+            return dropped;
+        }
+
+        /**
+         * @return the number of readings waiting to be sent
+         */
+        public synchronized int getBuffered() {
+            return buffer.size();
+        }
+
+        @Override
+        public void request(long n) {
+            synchronized (this) {
+                if (cancelled) {
+                    return;
+                }
+                if (n <= 0) {
+                    error = new IllegalArgumentException("Request must be positive");
+                } else {
+                    demand += n;
+                    if (demand < 0) {
+                        demand = Long.MAX_VALUE; // unbounded
+                    }
+                }
+            }
+            schedule();
+        }
+
+        @Override
+        public void cancel() {
+            synchronized (this) {
+                if (cancelled) {
+                    return;
+                }
+                cancelled = true;
+                buffer.clear();
+            }
+            remove(this);
+        }
+
+        // Called by the publisher with a new reading
+        void offer(OneWireReading r) {
+            synchronized (this) {
+                if (cancelled || completed) {
+                    return;
+                }
+                if (buffer.size() == capacity) {
+                    dropped++;
+                    if (overflow == Overflow.DROP) {
+                        return;
+                    }
+                    buffer.poll();
+                }
+                buffer.add(r);
+            }
+            schedule();
+        }
+
+        // Called by the publisher when there will be no more readings
+        void complete() {
+            synchronized (this) {
+                completed = true;
+            }
+            schedule();
+        }
+
+        // Make sure the subscriber will be sent what it is due
+        private void schedule() {
+            synchronized (this) {
+                if (scheduled || cancelled) {
+                    return;
+                }
+                scheduled = true;
+            }
+            try {
+                executor.execute(this);
+            } catch (RuntimeException re) {
+                // The executor has been shut down
+                synchronized (this) {
+                    scheduled = false;
+                    cancelled = true;
+                }
+                remove(this);
+            }
+        }
+
+        /**
+         * Send the subscriber what it is due. Only one thread runs this at a
+         * time for each feed, so the subscriber is never called
+         * concurrently.
+         */
+        @Override
+        public void run() {
+            try {
+                boolean first;
+                synchronized (this) {
+                    first = !subscribed;
+                    subscribed = true;
+                }
+                if (first) {
+                    subscriber.onSubscribe(this);
+                }
+                while (true) {
+                    OneWireReading r = null;
+                    Throwable failed = null;
+                    synchronized (this) {
+                        if (cancelled) {
+                            scheduled = false;
+                            return;
+                        }
+                        if (error != null) {
+                            failed = error;
+                            cancelled = true;
+                        } else if (demand > 0 && !buffer.isEmpty()) {
+                            r = buffer.poll();
+                            if (demand != Long.MAX_VALUE) {
+                                demand--;
+                            }
+                        } else if (completed && buffer.isEmpty()) {
+                            cancelled = true;
+                        } else {
+                            scheduled = false;
+                            return;
+                        }
+                    }
+                    // Call the subscriber outside the lock, so that
+                    // publish() isn't held up by it
+                    if (r != null) {
+                        subscriber.onNext(r);
+                    } else {
+                        remove(this);
+                        if (failed != null) {
+                            subscriber.onError(failed);
+                        } else {
+                            subscriber.onComplete();
+                        }
+                    }
+                }
+            } catch (RuntimeException re) {
+                // A subscriber that throws is dropped
+                cancel();
+                synchronized (this) {
+                    scheduled = false;
+                }
+            }
+        }
+    }
+
+    private final Executor executor;
+    private final List<Feed> feeds;
+    private boolean closed;
+
+    // Buffer size and overflow policy used by subscribe(Subscriber)
+    public int capacity;
+    public Overflow overflow;
+
+    /**
+     * Construct a publisher that sends readings to subscribers on daemon
+     * threads of its own, which are started when needed and stop when
+     * idle
+     */
+    public OneWireReadingPublisher() {
+        this(Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread t = new Thread(r, "1-wire readings");
+                t.setDaemon(true);
+                return t;
+            }
+        }));
+    }
+
+    /**
+     * @param e used to send readings to subscribers. Each subscriber is
+     * only ever sent one reading at a time, however many threads e has.
+     */
+    public OneWireReadingPublisher(Executor e) {
+        executor = e;
+        feeds = new ArrayList<>();
+        closed = false;
+        capacity = 64;
+        overflow = Overflow.DROP;
+    }
+
+    /**
+     * Subscribe, with the publisher's default capacity and overflow policy
+     *
+     * @param s the subscriber
+     */
+    @Override
+    public void subscribe(OneWireFlow.Subscriber<? super OneWireReading> s) {
+        subscribe(s, capacity, overflow);
+    }
+
+    /**
+     * Subscribe with a buffer of a given size
+     *
+     * @param s the subscriber. onSubscribe() is called with a Feed.
+     * @param cap number of readings to buffer for the subscriber, >= 1
+     * @param o what to do with readings when the buffer is full
+     */
+    public void subscribe(OneWireFlow.Subscriber<? super OneWireReading> s, int cap, Overflow o) {
+        if (cap < 1) {
+            throw new IllegalArgumentException("Capacity must be at least 1");
+        }
+        Feed f = new Feed(s, cap, o);
+        boolean done;
+        synchronized (this) {
+            done = closed;
+            if (!done) {
+                feeds.add(f);
+            }
+        }
+        if (done) {
+            f.complete();
+        } else {
+            f.schedule();
+        }
+    }
+
+    private synchronized void remove(Feed f) {
+        feeds.remove(f);
+    }
+
+    /**
+     * @return the number of subscribers
+     */
+    public synchronized int getSubscriberCount() {
+        return feeds.size();
+    }
+
+    /**
+     * Send a reading to every subscriber. Never blocks.
+     *
+     * @param r the reading
+     */
+    public void publish(OneWireReading r) {
+        Feed[] targets;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            targets = feeds.toArray(new Feed[feeds.size()]);
+        }
+        for (Feed f : targets) {
+            f.offer(r);
+        }
+    }
+
+    @Override
+    public void reading(OneWireReading r, OneWireScheduler.Entry e) {
+        publish(r);
+    }
+
+    @Override
+    public void missed(OneWireScheduler.Entry e, int periods) {
+    }
+
+    /**
+     * Complete every subscription once the readings already buffered have
+     * been sent. Later subscribers are completed straight away.
+     */
+    public void close() {
+        Feed[] targets;
+        synchronized (this) {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            targets = feeds.toArray(new Feed[feeds.size()]);
+        }
+        for (Feed f : targets) {
+            f.complete();
+        }
+    }
+}
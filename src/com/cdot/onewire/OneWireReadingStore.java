@@ -0,0 +1,332 @@
+package com.cdot.onewire;
+
+/**
+ * Keeps a history of readings for each device in memory, in fixed size ring
+ * buffers of primitive arrays. Once the buffers for a device have been
+ * created (on its first reading) adding readings and querying them
+ * allocates nothing, so the store can hold a lot of history on a small heap.
+ * When a buffer is full the oldest reading is overwritten.
+ * <p>
+ * Readings are held as timestamp (ms) and raw value (1/16C, as in
+ * OneWireThermometer.raw). They must be added to each device in time order.
+ */
+public class OneWireReadingStore {
+
+    /**
+     * Returned by the queries when there are no readings
+     */
+    public static final int NO_READING = Integer.MIN_VALUE;
+
+    private static final int INITIAL_DEVICES = 16;
+
+    // number of readings kept for each device
+    private final int capacity;
+
+    // Open addressing hash table from serial number to device index. 0 is
+    // never a valid serial number, so it marks an empty slot.
+    private long[] keys;
+    private int[] index;
+    private int devices;
+
+    // Ring buffers for each device index, and the position of the oldest
+    // reading and number of readings in each
+    private long[][] times;
+    private short[][] raws;
+    private int[] start;
+    private int[] count;
+
+    /**
+     * @param n number of readings to keep for each device
+     */
+    public OneWireReadingStore(int n) {
+        if (n <= 0) {
+            throw new IllegalArgumentException("Capacity must be positive");
+        }
+        capacity = n;
+        keys = new long[INITIAL_DEVICES * 2];
+        index = new int[INITIAL_DEVICES * 2];
+        times = new long[INITIAL_DEVICES][];
+        raws = new short[INITIAL_DEVICES][];
+        start = new int[INITIAL_DEVICES];
+        count = new int[INITIAL_DEVICES];
+        devices = 0;
+    }
+
+    private static int hash(long serno) {
+        long h = serno * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+
+    /**
+     * @return the index of the device, or -1 if it has no readings
+     */
+    private int find(long serno) {
+        int mask = keys.length - 1;
+        for (int i = hash(serno) & mask;; i = (i + 1) & mask) {
+            if (keys[i] == serno) {
+                return index[i];
+            }
+            if (keys[i] == 0) {
+                return -1;
+            }
+        }
+    }
+
+    private void insert(long serno, int d) {
+        int mask = keys.length - 1;
+        int i = hash(serno) & mask;
+        while (keys[i] != 0) {
+            i = (i + 1) & mask;
+        }
+        keys[i] = serno;
+        index[i] = d;
+    }
+
+    /**
+     * Make room for a new device, and create its buffers
+     *
+     * @return the index of the new device
+     */
+    private int create(long serno) {
+        if (devices == times.length) {
+            int n = devices * 2;
+            long[][] nt = new long[n][];
+            short[][] nr = new short[n][];
+            int[] ns = new int[n], nc = new int[n];
+            System.arraycopy(times, 0, nt, 0, devices);
+            System.arraycopy(raws, 0, nr, 0, devices);
+            System.arraycopy(start, 0, ns, 0, devices);
+            System.arraycopy(count, 0, nc, 0, devices);
+            times = nt;
+            raws = nr;
+            start = ns;
+            count = nc;
+
+            long[] oldKeys = keys;
+            int[] oldIndex = index;
+            keys = new long[n * 2];
+            index = new int[n * 2];
+            for (int i = 0; i < oldKeys.length; i++) {
+                if (oldKeys[i] != 0) {
+                    insert(oldKeys[i], oldIndex[i]);
+                }
+            }
+        }
+        int d = devices++;
+        times[d] = new long[capacity];
+        raws[d] = new short[capacity];
+        insert(serno, d);
+        return d;
+    }
+
+    /**
+     * Add a reading
+     *
+     * @param serno serial number of the device
+     * @param time time of the reading, in ms
+     * @param raw reading, in 1/16C
+     * @return false if the reading is older than the latest one for the
+     * device, and was not added
+     */
+    public synchronized boolean add(long serno, long time, int raw) {
+        if (serno == 0) {
+            throw new IllegalArgumentException("Invalid serial number");
+        }
+        int d = find(serno);
+        if (d < 0) {
+            d = create(serno);
+        }
+        int n = count[d];
+        if (n > 0 && time < times[d][(start[d] + n - 1) % capacity]) {
+            return false;
+        }
+        if (n < capacity) {
+            times[d][(start[d] + n) % capacity] = time;
+            raws[d][(start[d] + n) % capacity] = (short) raw;
+            count[d] = n + 1;
+        } else {
+            // Overwrite the oldest
+            times[d][start[d]] = time;
+            raws[d][start[d]] = (short) raw;
+            start[d] = (start[d] + 1) % capacity;
+        }
+        return true;
+    }
+
+    /**
+     * Add a reading, if it was successful
+     *
+     * @param r the reading
+     * @return false if the reading failed or is out of order
+     */
+    public boolean add(OneWireReading r) {
+        if (r.status != OneWireError.NO_ERROR_SET) {
+            return false;
+        }
+        return add(r.serialNumber, r.timestamp, r.raw);
+    }
+
+    /**
+     * @param serno serial number of a device
+     * @return the number of readings held for the device
+     */
+    public synchronized int size(long serno) {
+        int d = find(serno);
+        return d < 0 ? 0 : count[d];
+    }
+
+    /**
+     * @return the number of devices with readings
+     */
+    public synchronized int devices() {
+        return devices;
+    }
+
+    /**
+     * @return the time of the latest reading for the device, or
+     * Long.MIN_VALUE if there are none
+     */
+    public synchronized long latestTime(long serno) {
+        int d = find(serno);
+        if (d < 0 || count[d] == 0) {
+            return Long.MIN_VALUE;
+        }
+        return times[d][(start[d] + count[d] - 1) % capacity];
+    }
+
+    /**
+     * @return the latest reading for the device, in 1/16C, or NO_READING
+     */
+    public synchronized int latestRaw(long serno) {
+        int d = find(serno);
+        if (d < 0 || count[d] == 0) {
+            return NO_READING;
+        }
+        return raws[d][(start[d] + count[d] - 1) % capacity];
+    }
+
+    /**
+     * Find the first reading at or after a time
+     *
+     * @return the position of the reading relative to the oldest, or
+     * count[d] if there is none
+     */
+    private int lowerBound(int d, long time) {
+        int lo = 0, hi = count[d];
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (times[d][(start[d] + mid) % capacity] < time) {
+                lo = mid + 1;
+            } else {
+                hi = mid;
+            }
+        }
+        return lo;
+    }
+
+    /**
+     * Copy the readings in a time window into arrays supplied by the caller
+     *
+     * @param serno serial number of the device
+     * @param from start of the window, inclusive
+     * @param to end of the window, exclusive
+     * @param t receives the times, may be null
+     * @param r receives the readings, may be null
+     * @param off offset into the arrays to start at
+     * @param max maximum number of readings to copy
+     * @return the number of readings copied
+     */
+    public synchronized int range(long serno, long from, long to,
+            long[] t, short[] r, int off, int max) {
+        int d = find(serno);
+        if (d < 0) {
+            return 0;
+        }
+        int first = lowerBound(d, from);
+        int n = Math.min(lowerBound(d, to) - first, max);
+        for (int i = 0; i < n; i++) {
+            int p = (start[d] + first + i) % capacity;
+            if (t != null) {
+                t[off + i] = times[d][p];
+            }
+            if (r != null) {
+                r[off + i] = raws[d][p];
+            }
+        }
+        return Math.max(n, 0);
+    }
+
+    /**
+     * @return the number of readings in the window
+     */
+    public synchronized int count(long serno, long from, long to) {
+        int d = find(serno);
+        if (d < 0) {
+            return 0;
+        }
+        return Math.max(lowerBound(d, to) - lowerBound(d, from), 0);
+    }
+
+    /**
+     * @return the lowest reading in the window, in 1/16C, or NO_READING
+     */
+    public synchronized int min(long serno, long from, long to) {
+        int d = find(serno);
+        if (d < 0) {
+            return NO_READING;
+        }
+        int result = NO_READING;
+        for (int i = lowerBound(d, from), end = lowerBound(d, to); i < end; i++) {
+            int v = raws[d][(start[d] + i) % capacity];
+            if (result == NO_READING || v < result) {
+                result = v;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the highest reading in the window, in 1/16C, or NO_READING
+     */
+    public synchronized int max(long serno, long from, long to) {
+        int d = find(serno);
+        if (d < 0) {
+            return NO_READING;
+        }
+        int result = NO_READING;
+        for (int i = lowerBound(d, from), end = lowerBound(d, to); i < end; i++) {
+            int v = raws[d][(start[d] + i) % capacity];
+            if (v > result) {
+                result = v;
+            }
+        }
+        return result;
+    }
+
+    /**
+     * @return the mean of the readings in the window, in 1/16C, or NaN if
+     * there are none
+     */
+    public synchronized double mean(long serno, long from, long to) {
+        int d = find(serno);
+        if (d < 0) {
+            return Double.NaN;
+        }
+        long sum = 0;
+        int first = lowerBound(d, from), end = lowerBound(d, to);
+        for (int i = first; i < end; i++) {
+            sum += raws[d][(start[d] + i) % capacity];
+        }
+        return end > first ? (double) sum / (end - first) : Double.NaN;
+    }
+
+    /**
+     * Convert a raw reading to degrees
+     *
+     * @param raw reading in 1/16C
+     * @return temperature in C
+     */
+    public static double toCelsius(int raw) {
+        return raw / 16.0;
+    }
+}
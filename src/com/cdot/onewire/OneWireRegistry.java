@@ -0,0 +1,205 @@
+package com.cdot.onewire;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Remembers the serial numbers of the devices seen on each port, in a file,
+ * so that on the next start the devices can be checked and sampled
+ * straight away instead of waiting for a full search of the net; see
+ * OneWireMultiBus.restore().
+ * <p>
+ * The file is plain text, one device per line: the port name, a tab, and
+ * the serial number in hex. Lines starting with # are ignored. A line with
+ * "single-drop" in place of a serial number says that no more than one
+ * device can ever be attached to the port, so it can be addressed with
+ * Skip ROM. That is never worked out from the devices seen; it has to be
+ * configured, by editing the file or with setSingleDrop().
+ */
+public class OneWireRegistry {
+
+    private final File file;
+    private final Map<String, List<Long>> ports;
+    private final Set<String> singleDrop;
+
+    static final String SINGLE_DROP = "single-drop";
+
+    /**
+     * @param f file the registry is kept in. It need not exist yet.
+     */
+    public OneWireRegistry(File f) {
+        file = f;
+        ports = new LinkedHashMap<>();
+        singleDrop = new LinkedHashSet<>();
+    }
+
+    /**
+     * Read the registry file. A missing file is an empty registry.
+     *
+     * @throws IOException if the file can't be read
+     */
+    public synchronized void load() throws IOException {
+        ports.clear();
+        singleDrop.clear();
+        BufferedReader in;
+        try {
+            in = new BufferedReader(new InputStreamReader(new FileInputStream(file), "UTF-8"));
+        } catch (FileNotFoundException fnfe) {
+            return;
+        }
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                line = line.trim();
+                int tab = line.lastIndexOf('\t');
+                if (line.isEmpty() || line.startsWith("#") || tab < 0) {
+                    continue;
+                }
+                String hex = line.substring(tab + 1).trim();
+                if (hex.equalsIgnoreCase(SINGLE_DROP)) {
+                    singleDrop.add(line.substring(0, tab).trim());
+                    continue;
+                }
+                try {
+                    // Serial numbers use all 64 bits, so parse as unsigned
+                    long serno = (Long.parseLong(hex.substring(0, hex.length() - 1), 16) << 4)
+                            | Long.parseLong(hex.substring(hex.length() - 1), 16);
+                    add(line.substring(0, tab).trim(), serno);
+                } catch (NumberFormatException | IndexOutOfBoundsException e) {
+                    // skip it
+                }
+            }
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Write the registry file. It is written to a temporary file first and
+     * then renamed, so a crash can't leave it half written.
+     *
+     * @throws IOException if the file can't be written
+     */
+    public synchronized void save() throws IOException {
+        File tmp = new File(file.getPath() + ".tmp");
+        Writer out = new OutputStreamWriter(new FileOutputStream(tmp), "UTF-8");
+        try {
+            out.write("# 1-wire devices seen on each port\n");
+            for (String port : singleDrop) {
+                out.write(String.format("%s\t%s\n", port, SINGLE_DROP));
+            }
+            for (Map.Entry<String, List<Long>> e : ports.entrySet()) {
+                for (long serno : e.getValue()) {
+                    out.write(String.format("%s\t%016X\n", e.getKey(), serno));
+                }
+            }
+        } finally {
+            out.close();
+        }
+        if (!tmp.renameTo(file)) {
+            // Some platforms won't rename over an existing file
+            if (!file.delete() || !tmp.renameTo(file)) {
+                throw new IOException("Could not replace " + file);
+            }
+        }
+    }
+
+    /**
+     * @param port port name
+     * @return a copy of the serial numbers known on the port, which is empty
+     * if the port is not known
+     */
+    public synchronized List<Long> get(String port) {
+        List<Long> l = ports.get(port);
+        return l == null ? new ArrayList<Long>() : new ArrayList<>(l);
+    }
+
+    /**
+     * @return the names of the ports in the registry
+     */
+    public synchronized List<String> getPorts() {
+        return new ArrayList<>(ports.keySet());
+    }
+
+    /**
+     * @param port port name
+     * @return true if the port is configured as single-drop
+     */
+    public synchronized boolean isSingleDrop(String port) {
+        return singleDrop.contains(port);
+    }
+
+    /**
+     * Configure whether a port is single-drop. Only set this if no other
+     * device can ever be attached to the port: with Skip ROM, a replacement
+     * device would be read as if it were the old one, and a second device
+     * would make every access collide.
+     *
+     * @param port port name
+     * @param single true if the port is single-drop
+     */
+    public synchronized void setSingleDrop(String port, boolean single) {
+        if (single) {
+            singleDrop.add(port);
+        } else {
+            singleDrop.remove(port);
+        }
+    }
+
+    /**
+     * Record a device as seen on a port
+     *
+     * @param port port name
+     * @param serno serial number of the device
+     * @return true if the device was not already known on the port
+     */
+    public synchronized boolean add(String port, long serno) {
+        List<Long> l = ports.get(port);
+        if (l == null) {
+            l = new ArrayList<>();
+            ports.put(port, l);
+        }
+        if (l.contains(serno)) {
+            return false;
+        }
+        l.add(serno);
+        return true;
+    }
+
+    /**
+     * Forget a device on a port
+     *
+     * @param port port name
+     * @param serno serial number of the device
+     * @return true if the device was known on the port
+     */
+    public synchronized boolean remove(String port, long serno) {
+        List<Long> l = ports.get(port);
+        return l != null && l.remove(serno);
+    }
+
+    /**
+     * Replace the devices known on a port, usually with the result of a
+     * full search
+     *
+     * @param port port name
+     * @param sernos serial numbers of the devices on the port
+     */
+    public synchronized void set(String port, Collection<Long> sernos) {
+        ports.put(port, new ArrayList<>(sernos));
+    }
+}
@@ -0,0 +1,324 @@
+package com.cdot.onewire;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Samples all the thermometers on a 1-wire net together. A single Skip ROM
+ * and Convert T starts every thermometer on the net converting at once, so
+ * there is only one conversion wait however many thermometers there are.
+ * The scratchpad of each thermometer is then read in turn.
+ * <p>
+ * If every device on the net supports overdrive, the net can be addressed
+ * at overdrive speed; see setOverdrive().
+ */
+public class OneWireSampler {
+
+    private final OneWireSerialDriver driver;
+
+    /**
+     * Last error seen by the sampler
+     */
+    public OneWireError last_error;
+
+    // set by readPowerSupply() if any thermometer on the net is parasite
+    // powered
+    public boolean parasite;
+    private boolean powerKnown;
+
+    // longest time to wait for a conversion to complete, in ms
+    public int conversionTimeout;
+
+    // true if the net is addressed at overdrive speed. See setOverdrive()
+    private boolean overdrive;
+
+    // Reused for commands, so that polling allocates nothing
+    private final byte[] block = new byte[2];
+    private final OneWireTransaction transaction = new OneWireTransaction(5);
+
+    public OneWireSampler(OneWireSerialDriver comms) {
+        last_error = OneWireError.NO_ERROR_SET;
+        driver = comms;
+        conversionTimeout = 1000;
+        powerKnown = false;
+        overdrive = false;
+    }
+
+    /**
+     * Choose whether to address the net at overdrive speed, with Overdrive
+     * Skip ROM. Only do this if every device on the net supports overdrive
+     * (see OneWireDevice.supportsOverdrive()): those that don't ignore
+     * everything after Overdrive Skip ROM, so would not convert. Once the
+     * devices are at overdrive speed they are left there, so thermometers
+     * that also use overdrive can be read without going back to standard
+     * speed.
+     *
+     * @param on true to use overdrive
+     * @return true if overdrive will be used, which needs a driver that
+     * supports it
+     */
+    public boolean setOverdrive(boolean on) {
+        overdrive = false;
+        if (on) {
+            overdrive = (driver.setSpeed(OneWireSerialDriver.MODE.OVERDRIVE)
+                    == OneWireSerialDriver.MODE.OVERDRIVE);
+            driver.setSpeed(OneWireSerialDriver.MODE.NORMAL);
+        }
+        return overdrive;
+    }
+
+    /**
+     * Send the transaction, which starts with a reset and Skip ROM. At
+     * standard speed it is sent as it is. With overdrive in use, it is sent
+     * as it is at overdrive speed if the devices should still be at
+     * overdrive speed. Otherwise, or if nothing answers the overdrive
+     * reset, the net is reset at standard speed and Overdrive Skip ROM sent
+     * instead, and the rest of the transaction follows at overdrive speed.
+     *
+     * @return a OneWireError indicating status
+     */
+    private OneWireError executeAll() {
+        OneWireSession session = driver.getSession();
+        boolean od = session.isOverdrive();
+        session.deselect();
+        if (!overdrive) {
+            driver.setSpeed(OneWireSerialDriver.MODE.NORMAL);
+            return transaction.execute(driver);
+        }
+
+        OneWireError e;
+        if (od && driver.setSpeed(OneWireSerialDriver.MODE.OVERDRIVE)
+                == OneWireSerialDriver.MODE.OVERDRIVE) {
+            e = transaction.execute(driver);
+            if (e != OneWireError.NO_DEVICES_ON_NET) {
+                session.setOverdrive(true);
+                return e;
+            }
+            // Nothing answered the overdrive reset, so the devices have
+            // been taken back to standard speed
+        }
+
+        driver.setSpeed(OneWireSerialDriver.MODE.NORMAL);
+        e = driver.reset();
+        if (e != OneWireError.NO_ERROR_SET) {
+            return e;
+        }
+        if (driver.touchByte(OneWireDevice.OVERDRIVE_SKIP_ROM) != OneWireDevice.OVERDRIVE_SKIP_ROM) {
+            return OneWireError.WRITE_VERIFY_FAILED;
+        }
+        if (driver.setSpeed(OneWireSerialDriver.MODE.OVERDRIVE)
+                != OneWireSerialDriver.MODE.OVERDRIVE) {
+            return OneWireError.FUNC_NOT_SUP;
+        }
+        session.setOverdrive(true);
+        // Everything after the Skip ROM
+        return transaction.execute(driver, 1);
+    }
+
+    /**
+     * Find out if any thermometer on the net is parasite powered, using
+     * Skip ROM and Read Power Supply. This is done automatically before the
+     * first conversion; call it again if devices are added to the net.
+     *
+     * @return a OneWireError indicating status
+     */
+    public OneWireError readPowerSupply() {
+        transaction.clear().reset().skipROM();
+        OneWireError e = executeAll();
+        if (e != OneWireError.NO_ERROR_SET) {
+            return e;
+        }
+
+        // Parasite powered thermometers pull the bus low in the read slot
+        block[0] = OneWireThermometer.READ_POWER_SUPPLY;
+        block[1] = 0x01;
+        driver.touchBits(9, block, block);
+        if (block[0] != OneWireThermometer.READ_POWER_SUPPLY) {
+            return OneWireError.WRITE_VERIFY_FAILED;
+        }
+        parasite = (block[1] & 0x01) == 0;
+        powerKnown = true;
+        return OneWireError.NO_ERROR_SET;
+    }
+
+    /**
+     * Start a temperature conversion in every thermometer on the net, at
+     * standard speed unless overdrive is in use. If any
+     * thermometer is parasite powered, the strong pullup is left on to power
+     * the conversion; it is turned off by sample(), or by the next reset.
+     *
+     * @return a OneWireError indicating status
+     */
+    public OneWireError convertAll() {
+        OneWireError e;
+        if (!powerKnown) {
+            e = readPowerSupply();
+            if (e != OneWireError.NO_ERROR_SET) {
+                return e;
+            }
+        }
+
+        transaction.clear().reset().skipROM();
+        if (!parasite) {
+            // The reset and both commands go in one transaction
+            transaction.write(OneWireThermometer.CONVERT_T);
+            return executeAll();
+        }
+
+        e = executeAll();
+        if (e != OneWireError.NO_ERROR_SET) {
+            return e;
+        }
+        if (driver.touchBytePower(OneWireThermometer.CONVERT_T) != OneWireThermometer.CONVERT_T) {
+            driver.setLevel(OneWireSerialDriver.MODE.NORMAL);
+            return OneWireError.WRITE_VERIFY_FAILED;
+        }
+        return OneWireError.NO_ERROR_SET;
+    }
+
+    /**
+     * Set the resolution and alarm thresholds of every thermometer on the
+     * net at once, using Skip ROM. The settings are then checked by reading
+     * back the scratchpad of each of the thermometers given.
+     *
+     * @param thermometers the thermometers to check. DS1923s have no such
+     * settings, so are skipped, as configure() refuses them.
+     * @param bits resolution, 9 to 12 bits. DS1820s are always 9 bit, and
+     * ignore this.
+     * @param th high alarm threshold in C
+     * @param tl low alarm threshold in C
+     * @param persist true to copy the settings to EEPROM, so they survive
+     * power being removed
+     * @return a OneWireError indicating status. If a thermometer fails the
+     * check, this is the first error seen.
+     */
+    public OneWireError configureAll(Collection<OneWireThermometer> thermometers,
+            int bits, int th, int tl, boolean persist) {
+        byte[] command = OneWireThermometer.writeScratchpadCommand(bits, th, tl);
+        transaction.clear().reset().skipROM().write(command, 0, command.length);
+        OneWireError e = executeAll();
+        if (e == OneWireError.WRITE_VERIFY_FAILED) {
+            return OneWireError.WRITE_SCRATCHPAD_FAILED;
+        }
+        if (e != OneWireError.NO_ERROR_SET) {
+            return e;
+        }
+
+        for (OneWireThermometer t : thermometers) {
+            if (t.getFamily() == OneWireThermometer.DS1923) {
+                continue;
+            }
+            OneWireError te = t.verifyConfiguration(bits, th, tl);
+            if (te != OneWireError.NO_ERROR_SET && e == OneWireError.NO_ERROR_SET) {
+                e = te;
+            }
+        }
+        if (e != OneWireError.NO_ERROR_SET || !persist) {
+            return e;
+        }
+
+        if (!powerKnown) {
+            e = readPowerSupply();
+            if (e != OneWireError.NO_ERROR_SET) {
+                return e;
+            }
+        }
+        transaction.clear().reset().skipROM();
+        e = executeAll();
+        if (e != OneWireError.NO_ERROR_SET) {
+            return e;
+        }
+        return OneWireThermometer.copyScratchpad(driver, parasite);
+    }
+
+    /**
+     * Start a conversion in every thermometer on the net, and wait for the
+     * slowest of a group of thermometers to finish.
+     *
+     * @param thermometers the thermometers that will be read
+     * @return the time the conversion took, in ms, or -1 if it failed, in
+     * which case last_error says why
+     */
+    public int convertAndWait(Collection<OneWireThermometer> thermometers) {
+        last_error = convertAll();
+        if (last_error != OneWireError.NO_ERROR_SET) {
+            return -1;
+        }
+
+        // Wait for the slowest thermometer to finish
+        int resolution = 0;
+        for (OneWireThermometer t : thermometers) {
+            if (t.resolution == 0) {
+                resolution = 12; // not known
+            } else {
+                resolution = Math.max(resolution, t.resolution);
+            }
+        }
+        int conversionTime = OneWireThermometer.waitForConversion(driver,
+                parasite, resolution, conversionTimeout);
+        if (conversionTime < 0) {
+            last_error = OneWireError.READ_STATUS_NOT_COMPLETE;
+        } else {
+            driver.getMetrics().record(OneWireMetrics.Histogram.CONVERSION_MS, conversionTime);
+        }
+        return conversionTime;
+    }
+
+    /**
+     * Sample a group of thermometers on the net. All the thermometers on the
+     * net convert, but only those given are read.
+     *
+     * @param thermometers the thermometers to read. Each is updated as
+     * if by OneWireThermometer.update()
+     * @return a reading for each thermometer, in the order given
+     */
+    public List<OneWireReading> sample(Collection<OneWireThermometer> thermometers) {
+        List<OneWireReading> readings = new ArrayList<>(thermometers.size());
+        long timestamp = System.currentTimeMillis();
+
+        int conversionTime = convertAndWait(thermometers);
+        if (conversionTime < 0) {
+            conversionTime = 0;
+        }
+
+        for (OneWireThermometer t : thermometers) {
+            OneWireError e = last_error;
+            if (e == OneWireError.NO_ERROR_SET) {
+                e = t.read();
+                t.conversionTime = conversionTime;
+            }
+            readings.add(new OneWireReading(t.serialNumber, timestamp,
+                    t.raw, t.temperature, conversionTime, e));
+        }
+        return readings;
+    }
+
+    /**
+     * Sample a group of thermometers, as sample(), but without allocating
+     * anything: each thermometer's temperature and conversionTime are
+     * updated, but no OneWireReadings are made.
+     *
+     * @param thermometers the thermometers to read
+     * @return NO_ERROR_SET, or the first error seen. Thermometers that
+     * could not be read are left unchanged.
+     */
+    public OneWireError update(List<OneWireThermometer> thermometers) {
+        int conversionTime = convertAndWait(thermometers);
+        if (conversionTime < 0) {
+            return last_error;
+        }
+        OneWireError result = OneWireError.NO_ERROR_SET;
+        // Indexed, so as not to allocate an iterator
+        for (int i = 0; i < thermometers.size(); i++) {
+            OneWireThermometer t = thermometers.get(i);
+            OneWireError e = t.read();
+            if (e == OneWireError.NO_ERROR_SET) {
+                t.conversionTime = conversionTime;
+            } else if (result == OneWireError.NO_ERROR_SET) {
+                result = e;
+            }
+        }
+        return last_error = result;
+    }
+}
@@ -0,0 +1,244 @@
+package com.cdot.onewire;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Samples the thermometers on a 1-wire net continuously, each at its own
+ * period. Thermometers that fall due within the same window are sampled
+ * together with a single bulk conversion (see OneWireSampler).
+ * <p>
+ * Deadlines are kept at a fixed rate from the time a thermometer was
+ * registered, so the schedule doesn't drift however long each sample takes.
+ * If the net falls behind, the periods that were missed are counted and
+ * skipped rather than sampled in a burst to catch up. The difference
+ * between each deadline and the time the conversion actually started is
+ * recorded as jitter.
+ * <p>
+ * The scheduler owns the net while it is running; nothing else should use
+ * the driver. Time is taken from the driver, so on a OneWireSimulatedBus the
+ * scheduler runs on virtual time.
+ */
+public class OneWireScheduler implements Runnable {
+
+    /**
+     * Receives the results of sampling
+     */
+    public interface Listener {
+
+        /**
+         * Called with each reading, on the scheduler thread
+         * @param r the reading
+         * @param e the schedule entry for the thermometer
+         */
+        public void reading(OneWireReading r, Entry e);
+
+        /**
+         * Called when a thermometer has missed one or more periods
+         * @param e the schedule entry for the thermometer
+         * @param periods the number of periods missed
+         */
+        public void missed(Entry e, int periods);
+    }
+
+    /**
+     * A thermometer and its schedule and statistics
+     */
+    public static class Entry {
+
+        public final OneWireThermometer thermometer;
+        // sampling period, in ms
+        public final int period;
+
+        // next deadline, on the driver's msTime clock
+        public long due;
+
+        // number of samples taken, and number of periods missed
+        public long samples;
+        public long missed;
+        // total and largest absolute difference between a deadline and the
+        // start of the conversion, in ms
+        public long totalJitter;
+        public long maxJitter;
+
+        Entry(OneWireThermometer t, int p, long start) {
+            thermometer = t;
+            period = p;
+            due = start;
+        }
+
+        /**
+         * @return the mean jitter, in ms
+         */
+        public double meanJitter() {
+            return samples == 0 ? 0 : (double) totalJitter / samples;
+        }
+    }
+
+    // Longest single wait, in ms, so that stop() is noticed promptly
+    private static final int MAX_WAIT = 100;
+
+    private final OneWireSerialDriver driver;
+    private final OneWireSampler sampler;
+    private final List<Entry> entries;
+    private final Listener listener;
+    private volatile boolean running;
+
+    // Thermometers due within this many ms of the first one due are sampled
+    // in the same conversion
+    public int window;
+
+    // Last error seen by the scheduler
+    public OneWireError last_error;
+
+    /**
+     * @param d driver for the net
+     * @param l receives the readings, may be null
+     */
+    public OneWireScheduler(OneWireSerialDriver d, Listener l) {
+        driver = d;
+        sampler = new OneWireSampler(d);
+        entries = new ArrayList<>();
+        listener = l;
+        window = 100;
+        last_error = OneWireError.NO_ERROR_SET;
+        running = true;
+    }
+
+    /**
+     * Start sampling a thermometer. The first sample is due straight away.
+     *
+     * @param t the thermometer, on this scheduler's net
+     * @param period sampling period in ms
+     * @return the schedule entry
+     */
+    public synchronized Entry register(OneWireThermometer t, int period) {
+        if (period <= 0) {
+            throw new IllegalArgumentException("Period must be positive");
+        }
+        Entry e = new Entry(t, period, driver.msTime());
+        entries.add(e);
+        return e;
+    }
+
+    /**
+     * Stop sampling a thermometer
+     *
+     * @param t the thermometer
+     * @return true if it was registered
+     */
+    public synchronized boolean unregister(OneWireThermometer t) {
+        for (int i = 0; i < entries.size(); i++) {
+            if (entries.get(i).thermometer == t) {
+                entries.remove(i);
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * @return a copy of the schedule entries
+     */
+    public synchronized List<Entry> getEntries() {
+        return new ArrayList<>(entries);
+    }
+
+    /**
+     * Pick the entries due within the window of the earliest deadline
+     *
+     * @param group receives the entries to sample
+     * @return the earliest deadline, or -1 if there are no entries
+     */
+    private synchronized long nextGroup(List<Entry> group) {
+        long first = Long.MAX_VALUE;
+        for (Entry e : entries) {
+            first = Math.min(first, e.due);
+        }
+        if (first == Long.MAX_VALUE) {
+            return -1;
+        }
+        for (Entry e : entries) {
+            if (e.due <= first + window) {
+                group.add(e);
+            }
+        }
+        return first;
+    }
+
+    /**
+     * Wait for the next group of thermometers to fall due and sample them
+     * with a single conversion.
+     *
+     * @return the number of thermometers sampled
+     */
+    public int step() {
+        List<Entry> group = new ArrayList<>();
+        long first = nextGroup(group);
+        if (first < 0) {
+            driver.msDelay(MAX_WAIT);
+            return 0;
+        }
+        long now = driver.msTime();
+        if (first > now) {
+            driver.msDelay((int) Math.min(first - now, MAX_WAIT));
+            if (first > driver.msTime()) {
+                return 0; // not due yet
+            }
+        }
+
+        List<OneWireThermometer> thermometers = new ArrayList<>(group.size());
+        for (Entry e : group) {
+            thermometers.add(e.thermometer);
+        }
+        long start = driver.msTime();
+        List<OneWireReading> readings = sampler.sample(thermometers);
+        last_error = sampler.last_error;
+        long end = driver.msTime();
+
+        for (int i = 0; i < group.size(); i++) {
+            Entry e = group.get(i);
+            long jitter = Math.abs(start - e.due);
+            int missed = 0;
+            synchronized (this) {
+                e.samples++;
+                e.totalJitter += jitter;
+                e.maxJitter = Math.max(e.maxJitter, jitter);
+                e.due += e.period;
+                if (e.due <= end) {
+                    // Skip the deadlines that have already passed
+                    missed = (int) ((end - e.due) / e.period) + 1;
+                    e.due += (long) missed * e.period;
+                    e.missed += missed;
+                }
+            }
+            if (listener != null) {
+                listener.reading(readings.get(i), e);
+                if (missed > 0) {
+                    listener.missed(e, missed);
+                }
+            }
+        }
+        return group.size();
+    }
+
+    /**
+     * Sample until stop() is called. If stop() has already been called,
+     * for example before the thread running the scheduler got going, this
+     * returns straight away.
+     */
+    @Override
+    public void run() {
+        while (running) {
+            step();
+        }
+    }
+
+    /**
+     * Make run() return after the current step. The scheduler can't be
+     * restarted.
+     */
+    public void stop() {
+        running = false;
+    }
+}
@@ -27,6 +27,13 @@ public class OneWireSearch {
      */
     public OneWireError last_error;
 
+    // Search state, reused by each pass and each scan
+    private final byte[] serial_bytes = new byte[8];
+    private final byte[] preferred = new byte[8];
+    private final byte[] discrepancies = new byte[8];
+    // devices found by the current scan
+    private int devicesFound;
+
     public OneWireSearch(OneWireSerialDriver comms) {
         last_error = OneWireError.NO_ERROR_SET;
         driver = comms;
@@ -43,17 +50,25 @@ public class OneWireSearch {
      * @return an error code, if something went wrong
      */
     public OneWireError scan(Device callback, boolean alarm_only, byte family) {
-
-        if (driver.reset() != OneWireError.NO_ERROR_SET) {
-            return OneWireError.NO_DEVICES_ON_NET;
+        OneWireMetrics metrics = driver.getMetrics();
+        long start = driver.nanoTime();
+        devicesFound = 0;
+        OneWireError e = search(callback, alarm_only, family);
+        metrics.count(OneWireMetrics.Counter.SEARCHES, 1);
+        if (e != OneWireError.NO_ERROR_SET) {
+            metrics.count(OneWireMetrics.Counter.SEARCH_ERRORS, 1);
         }
+        metrics.record(OneWireMetrics.Histogram.SEARCH_NS, driver.nanoTime() - start);
+        metrics.record(OneWireMetrics.Histogram.SEARCH_DEVICES, devicesFound);
+        return e;
+    }
 
+    private OneWireError search(Device callback, boolean alarm_only, byte family) {
         int LastDiscrepancy = 0;
         int LastFamilyDiscrepancy = 0;
         byte LastSearchCommand = (alarm_only ? ALARM_SEARCH_COMMAND : NORMAL_SEARCH_COMMAND);
 
-        byte[] serial_bytes = new byte[8];
-        for (int i = 1; i < 8; i++) {
+        for (int i = 0; i < 8; i++) {
             serial_bytes[i] = 0;
         }
 
@@ -61,98 +76,57 @@ public class OneWireSearch {
             serial_bytes[0] = family;
             LastDiscrepancy = 64;
         }
-        
-        while (true) {
-            CRC8 crc = new CRC8();
-            int bit_number = 1;
-            int last_zero = 0;
+        boolean found = false;
 
-            if (driver.touchByte(LastSearchCommand) != LastSearchCommand)
-                return OneWireError.WRITE_VERIFY_FAILED;
+        while (true) {
+            // Search at standard speed, which also returns any devices left
+            // at overdrive speed to standard speed
+            driver.setSpeed(OneWireSerialDriver.MODE.NORMAL);
+            if (driver.reset() != OneWireError.NO_ERROR_SET) {
+                return OneWireError.NO_DEVICES_ON_NET;
+            }
 
-            int serial_byte_number = 0;
-            byte serial_byte_mask = 1;
-            boolean direction;
-
-            while (serial_byte_number < 8) {
-                // Initiate the response from devices. All participating
-                // devices simultaneously send the LSB from their ROM, which
-                // results in a logical AND.
-                boolean bit1 = driver.touchBit(true);
-                // Now initiate the second bit. This time devices send the
-                // complement of their LSB.
-                boolean bit0 = driver.touchBit(true);
-                //System.out.println(bit1 + "~" + bit0);
-
-                // 00 There are both 0s and 1s in the current bit position
-                //    of the participating ROM numbers. This is a discrepancy.
-                // 01 There are only 0s in the LSB of the participating ROM
-                //    numbers.
-                // 10 There are only 1s in the LSB of the participating ROM
-                //    numbers.
-                // 11 No devices participating in search
-                // Check for no devices
-                if (bit1 && bit0) {
-                    //System.out.println("No devices");
-                    break;
+            // Work out the direction to take at each discrepancy. If this
+            // discrepancy is before the Last Discrepancy on a previous
+            // pass then pick the same as last time. If equal to last pick 1,
+            // if not then pick 0.
+            for (int i = 0; i < 8; i++) {
+                preferred[i] = 0;
+            }
+            for (int bit_number = 1; bit_number <= LastDiscrepancy; bit_number++) {
+                int i = bit_number - 1;
+                byte serial_byte_mask = (byte) (1 << (i & 0x7));
+                if (bit_number == LastDiscrepancy
+                        || (serial_bytes[i / 8] & serial_byte_mask) != 0) {
+                    preferred[i / 8] |= serial_byte_mask;
                 }
+            }
 
-                // Send a bit back to the slaves. Only those slaves sharing
-                // that bit will continue participating.
-                if (!(bit0 || bit1)) {
-                    // There are both 0s and 1s in the current bit of
-                    // participating slaves
-
-                    // If this discrepancy is before the Last Discrepancy
-                    // on a previous next() then pick the same as last time
-                    if (bit_number < LastDiscrepancy) {
-                        direction = ((serial_bytes[serial_byte_number] & serial_byte_mask) != 0);
-                    } else // if equal to last pick 1, if not then pick 0
-                    {
-                        direction = (bit_number == LastDiscrepancy);
-                    }
+            driver.getSession().deselect();
+            int bits = driver.search(LastSearchCommand, preferred, serial_bytes, discrepancies);
+            if (bits < 0) {
+                return OneWireError.WRITE_VERIFY_FAILED;
+            }
+            if (bits == 0 && !found) {
+                // Nothing took part in the search; for an alarm search this
+                // just means no device is in an alarm state
+                return OneWireError.NO_ERROR_SET;
+            }
 
+            int last_zero = 0;
+            for (int i = 0; i < bits; i++) {
+                byte serial_byte_mask = (byte) (1 << (i & 0x7));
+                if ((discrepancies[i / 8] & serial_byte_mask) != 0) {
                     // if 0 was picked then record its position in LastZero
-                    if (!direction) {
-                        last_zero = bit_number;
+                    if ((serial_bytes[i / 8] & serial_byte_mask) == 0) {
+                        last_zero = i + 1;
                     }
 
                     // check for Last discrepancy in family
                     if (last_zero < 9) {
                         LastFamilyDiscrepancy = last_zero;
                     }
-                } else {
-                    // only 0s => bit_test = 01
-                    // only 1s => bit_test = 10
-                    direction = !bit0;
                 }
-
-                // Record this bit in the serial number buffer
-                if (direction) {
-                    serial_bytes[serial_byte_number] |= serial_byte_mask;
-                } else {
-                    serial_bytes[serial_byte_number] &= ~serial_byte_mask;
-                }
-
-                // Write direction. Slaves that don't have this bit go
-                // into a wait state.
-                if (driver.touchBit(direction) != direction)
-                    return OneWireError.WRITE_VERIFY_FAILED;
-
-                serial_byte_mask <<= 1;
-                bit_number++;
-
-                // if the mask is 0 then move to new byte
-                if (serial_byte_mask == 0) {
-                    // accumulate the CRC8
-                    crc.add(serial_bytes[serial_byte_number]);
-                    //System.out.println("Completed byte " +
-                    //     serial_byte_number + " = " + Driver.hex(serial_bytes[serial_byte_number])
-                    //      + " CRC8 " + Driver.hex(lastcrc)); 
-                    serial_byte_number++;
-                    serial_byte_mask = 1;
-                }
-                // loop through bytes 0-7
             }
 
             // Build the serial number from the buffer
@@ -161,12 +135,18 @@ public class OneWireSearch {
                 serialNum = (serialNum << 8) | ((long) serial_bytes[i] & 0xFF);
             }
 
-            // if the search was successful then
-            if (bit_number != 65 || crc.get() != 0 || (serialNum & 0xFF) == 0)
+            // if the search was successful then. A zero family code means
+            // the bus is held low (an all-zero ROM has a valid CRC)
+            if (bits == 64 && !CRC8.isValidROM(serialNum)) {
+                driver.getMetrics().count(OneWireMetrics.Counter.CRC_FAILURES, 1);
+            }
+            if (bits != 64 || !CRC8.isValidROM(serialNum) || (serialNum >>> 56) == 0)
                 return OneWireError.SEARCH_ERROR;
                 
             // search successful, 64 bit ID received
             LastDiscrepancy = last_zero;
+            found = true;
+            devicesFound++;
             OneWireError e = callback.device(serialNum);
             if (e != OneWireError.NO_ERROR_SET)
                 return e;
@@ -175,6 +155,42 @@ public class OneWireSearch {
             }
         }
     }
+
+    /**
+     * Check that a known device is on the net, with a single search pass
+     * that takes the direction of the device's serial number at every
+     * discrepancy (the "verify" operation in the app note). This costs one
+     * pass however many other devices there are on the net.
+     *
+     * @param serialNum serial number of the device
+     * @return NO_ERROR_SET if the device is present, NONMATCHING_SNUM if it
+     * is not, or another error if the search failed
+     */
+    public OneWireError verify(long serialNum) {
+        for (int i = 0; i < 8; i++) {
+            preferred[i] = (byte) (serialNum >>> (56 - 8 * i));
+        }
+
+        driver.setSpeed(OneWireSerialDriver.MODE.NORMAL);
+        if (driver.reset() != OneWireError.NO_ERROR_SET) {
+            return OneWireError.NO_DEVICES_ON_NET;
+        }
+        driver.getSession().deselect();
+        int bits = driver.search(NORMAL_SEARCH_COMMAND, preferred, serial_bytes, discrepancies);
+        if (bits < 0) {
+            return OneWireError.WRITE_VERIFY_FAILED;
+        }
+        if (bits != 64) {
+            return OneWireError.SEARCH_ERROR;
+        }
+        for (int i = 0; i < 8; i++) {
+            if (serial_bytes[i] != preferred[i]) {
+                return OneWireError.NONMATCHING_SNUM;
+            }
+        }
+        return OneWireError.NO_ERROR_SET;
+    }
+
     public OneWireError scan(Device callback) {
         return scan(callback, false, (byte)0);
     }
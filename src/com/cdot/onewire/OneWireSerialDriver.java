@@ -27,6 +27,16 @@ public abstract class OneWireSerialDriver {
     }
 
     protected final Logger logger;
+
+    // Counts and measurements. See setMetrics()
+    protected OneWireMetrics metrics = OneWireMetrics.NONE;
+
+    // Reused by search(), which runs on one thread at a time like
+    // everything else on the net
+    private final byte[] searchBuffer = new byte[2];
+
+    // Device selected on the net. See getSession()
+    private final OneWireSession session = new OneWireSession();
     
     /**
      * Constructor
@@ -42,7 +52,32 @@ public abstract class OneWireSerialDriver {
             logger = log;
     }
     /**
-     * Reset all of the devices on the 1-Wire Net
+     * Collect counts and measurements from this driver, and from the
+     * devices and searches that use it
+     * @param m where to send them, or null to stop collecting
+     */
+    public void setMetrics(OneWireMetrics m) {
+        metrics = (m == null) ? OneWireMetrics.NONE : m;
+    }
+
+    /**
+     * @return where the driver sends counts and measurements
+     */
+    public OneWireMetrics getMetrics() {
+        return metrics;
+    }
+
+    /**
+     * @return the session, which remembers the device selected on the net
+     */
+    public OneWireSession getSession() {
+        return session;
+    }
+
+    /**
+     * Reset all of the devices on the 1-Wire Net, using a reset pulse for
+     * the current speed. A standard speed reset also returns any devices at
+     * overdrive speed to standard speed.
      * @return true if presence pulse(s) was detected and devices(s) reset,
      * otherwise the reset has failed and it returns false.
      */
@@ -57,21 +92,95 @@ public abstract class OneWireSerialDriver {
     
     /**
      * Send a specified number of bits from a bit string. The [0] byte is sent
-     * first, and bits are sent from each byte LSB first
+     * first, and bits are sent from each byte LSB first.
+     * The default implementation sends the bits one at a time using touchBit;
+     * drivers that can stream bits to the bus should override it.
      * @param nbits number of bits to send
      * @param send bit string encapsulated in a sequence of bytes
      * @return a bit string with one bit of response for each bit sent
      */
-    // NOT USED public abstract byte[] touchBits(int nbits, byte[] bits);
+    public byte[] touchBits(int nbits, byte[] send) {
+        byte[] receive = new byte[(nbits + 7) / 8];
+        for (int i = 0; i < nbits; i++) {
+            if (touchBit((send[i / 8] & (1 << (i & 0x7))) != 0)) {
+                receive[i / 8] |= 1 << (i & 0x7);
+            }
+        }
+        return receive;
+    }
 
     /**
-     * Send the individual bytes in the block. Writes the bytes individually
-     * and reads the responses for each byte
+     * Send a number of bits, as touchBits(int, byte[]), but put the response
+     * in a buffer supplied by the caller instead of allocating one.
+     * The default calls touchBits(int, byte[]); drivers should override it
+     * if they can avoid allocating.
+     * @param nbits number of bits to send
+     * @param send bit string encapsulated in a sequence of bytes
+     * @param receive receives one bit of response for each bit sent. May be
+     * the same array as send.
+     */
+    public void touchBits(int nbits, byte[] send, byte[] receive) {
+        byte[] rx = touchBits(nbits, send);
+        System.arraycopy(rx, 0, receive, 0, rx.length);
+    }
+
+    /**
+     * Send a block of bytes and read the response to each byte. Drivers
+     * should send the whole block in as few transfers as they can, as
+     * the round trip to the adapter usually costs more than the bits.
      * @param tx block of bytes to transmit
      * @return one byte for each byte transmitted
      */
     public abstract byte[] touchBlock(byte[] tx);
 
+    /**
+     * Send a block of bytes, as touchBlock(byte[]), but put the response in
+     * a buffer supplied by the caller instead of allocating one, so that a
+     * polling loop need not create garbage.
+     * The default calls touchBlock(byte[]); drivers should override it if
+     * they can avoid allocating.
+     * @param tx buffer holding the bytes to transmit
+     * @param off offset of the first byte to transmit in tx, and of the
+     * first byte of response in rx
+     * @param len number of bytes to transmit
+     * @param rx receives the response to each byte. May be the same array as
+     * tx.
+     * @return false if the block could not be sent
+     */
+    public boolean touchBlock(byte[] tx, int off, int len, byte[] rx) {
+        byte[] block = new byte[len];
+        System.arraycopy(tx, off, block, 0, len);
+        byte[] r = touchBlock(block);
+        if (r == null) {
+            return false;
+        }
+        System.arraycopy(r, 0, rx, off, len);
+        return true;
+    }
+
+    /**
+     * Reset the net and then send a block of bytes, as reset() followed by
+     * touchBlock(byte[], int, int, byte[]). Drivers that can put the reset
+     * in the same transfer as the block should override this, to save a
+     * round trip to the adapter. See OneWireTransaction.
+     * @param tx buffer holding the bytes to transmit
+     * @param off offset of the first byte to transmit in tx, and of the
+     * first byte of response in rx
+     * @param len number of bytes to transmit
+     * @param rx receives the response to each byte. May be the same array as
+     * tx.
+     * @return the result of the reset, or BLOCK_FAILED if the block could
+     * not be sent
+     */
+    public OneWireError resetAndTouchBlock(byte[] tx, int off, int len, byte[] rx) {
+        OneWireError e = reset();
+        if (e != OneWireError.NO_ERROR_SET) {
+            return e;
+        }
+        return touchBlock(tx, off, len, rx) ? OneWireError.NO_ERROR_SET
+                : OneWireError.BLOCK_FAILED;
+    }
+
     /**
      * Send the bits in a single byte and return the response.
      * @param sendbyte byte to send
@@ -79,7 +188,141 @@ public abstract class OneWireSerialDriver {
      */
     public abstract byte touchByte(byte sendbyte);
 
+    /**
+     * Make one pass down the ROM tree for OneWireSearch, after the bus has
+     * been reset. Each ROM bit needs two read slots (the bit and its
+     * complement) and a write slot (the direction taken). The write slot for
+     * one bit is sent together with the read slots for the next bit, and the
+     * search command together with the read slots for the first bit, so
+     * each ROM bit costs a single round trip to the adapter. Drivers for
+     * adapters with a hardware search accelerator should override this.
+     *
+     * @param command search command to send
+     * @param preferred direction to take at each discrepancy, 64 bits LSB
+     * first
+     * @param rom receives the direction taken at each bit, 64 bits LSB first
+     * @param discrepancies receives a 1 for each bit where devices with both
+     * 0s and 1s were participating
+     * @return the number of bits completed, 64 if a device was reached, or
+     * -1 if a write did not echo correctly
+     */
+    public int search(byte command, byte[] preferred, byte[] rom, byte[] discrepancies) {
+        for (int i = 0; i < 8; i++) {
+            discrepancies[i] = 0;
+        }
+
+        // Send the command and initiate the response from devices. All
+        // participating devices simultaneously send the LSB from their ROM,
+        // which results in a logical AND. In the second slot, devices send
+        // the complement of their LSB.
+        byte[] buf = searchBuffer;
+        buf[0] = command;
+        buf[1] = (byte) 0x03;
+        touchBits(10, buf, buf);
+        if (buf[0] != command) {
+            return -1;
+        }
+        boolean bit1 = (buf[1] & 0x01) != 0;
+        boolean bit0 = (buf[1] & 0x02) != 0;
+
+        for (int i = 0; i < 64; i++) {
+            byte serial_byte_mask = (byte) (1 << (i & 0x7));
+            boolean direction;
+
+            // 00 There are both 0s and 1s in the current bit position
+            //    of the participating ROM numbers. This is a discrepancy.
+            // 01 There are only 0s in the LSB of the participating ROM
+            //    numbers.
+            // 10 There are only 1s in the LSB of the participating ROM
+            //    numbers.
+            // 11 No devices participating in search
+            if (bit1 && bit0) {
+                return i;
+            }
+
+            if (!(bit0 || bit1)) {
+                discrepancies[i / 8] |= serial_byte_mask;
+                direction = (preferred[i / 8] & serial_byte_mask) != 0;
+            } else {
+                // only 0s => bit_test = 01
+                // only 1s => bit_test = 10
+                direction = !bit0;
+            }
+
+            // Record this bit in the serial number buffer
+            if (direction) {
+                rom[i / 8] |= serial_byte_mask;
+            } else {
+                rom[i / 8] &= ~serial_byte_mask;
+            }
+
+            // Write direction. Slaves that don't have this bit go into a
+            // wait state. Unless this is the last bit, follow it with the
+            // read slots for the next bit.
+            buf[0] = (byte) ((direction ? 0x01 : 0x00) | 0x06);
+            touchBits(i < 63 ? 3 : 1, buf, buf);
+            if (((buf[0] & 0x01) != 0) != direction) {
+                return -1;
+            }
+            bit1 = (buf[0] & 0x02) != 0;
+            bit0 = (buf[0] & 0x04) != 0;
+        }
+        return 64;
+    }
+
+    /**
+     * Set the speed of the 1-wire net. The new speed applies to the next
+     * slot, so that a command sent at standard speed (e.g. Overdrive Match
+     * ROM) can be followed by data at overdrive speed.
+     * The default supports only standard speed.
+     * @param speed MODE.NORMAL or MODE.OVERDRIVE
+     * @return the speed now in use
+     */
+    public MODE setSpeed(MODE speed) {
+        return MODE.NORMAL;
+    }
+
+    /**
+     * Set the line level of the 1-wire net.
+     * The default supports only the normal pullup.
+     * @param level MODE.NORMAL or MODE.STRONG5
+     * @return the level now in use
+     */
+    public MODE setLevel(MODE level) {
+        return MODE.NORMAL;
+    }
+
+    /**
+     * Send the bits in a single byte and then apply the strong pullup, to
+     * power parasite devices during a conversion or copy. Call
+     * setLevel(MODE.NORMAL) to end the strong pullup.
+     * The default just sends the byte, leaving the line at its idle level.
+     * @param sendbyte byte to send
+     * @return response
+     */
+    public byte touchBytePower(byte sendbyte) {
+        return touchByte(sendbyte);
+    }
+
     /* Delay for at least 'len' ms */
     public abstract void msDelay(int len);
 
+    /**
+     * Get a millisecond clock for timing bus operations, on the same time
+     * base as msDelay. Only the difference between two times is meaningful.
+     * @return the time in ms
+     */
+    public long msTime() {
+        return nanoTime() / 1000000L;
+    }
+
+    /**
+     * Get a nanosecond clock for measuring bus operations, on the same time
+     * base as msTime.
+     * @return the time in ns
+     */
+    public long nanoTime() {
+        return System.nanoTime();
+    }
+
 }
@@ -0,0 +1,205 @@
+package com.cdot.onewire;
+
+/**
+ * Remembers which device on a net is selected, so that commands sent to
+ * the same device one after another don't have to send the full Match ROM
+ * and serial number each time. There is one session for each driver; see
+ * OneWireSerialDriver.getSession().
+ * <p>
+ * If the net is known to have only one device on it, Skip ROM addresses
+ * it. Otherwise a device that supports Resume (0xA5) and was the last one
+ * selected is addressed with Resume. Either way, one byte is sent instead
+ * of nine. Anything that sends other ROM commands (searches, Skip ROM to
+ * every device) must call deselect().
+ * <p>
+ * The session also remembers whether the devices that support overdrive
+ * were left at overdrive speed, so that they can be addressed again with
+ * an overdrive reset rather than going back to standard speed first. A
+ * standard speed reset takes every device out of overdrive, so deselect()
+ * forgets this too.
+ * <p>
+ * Finally, it remembers which DS2409 coupler branch is switched on,
+ * so that OneWireTopology only switches branches when it has to.
+ */
+public class OneWireSession {
+
+    static final byte RESUME = (byte) 0xA5;
+
+    // serial number of the device selected by the last Match ROM, or 0
+    private long selected;
+    private boolean singleDrop;
+    // true if the devices that support overdrive are at overdrive speed
+    private boolean overdrive;
+
+    // the coupler branch switched on, null if only the trunk is connected,
+    // and whether it is known at all
+    private OneWireBranch branch;
+    private boolean branchKnown;
+
+    OneWireSession() {
+        selected = 0;
+        singleDrop = false;
+        overdrive = false;
+        branch = null;
+        branchKnown = true;
+    }
+
+    /**
+     * @param fam device family
+     * @return true if devices in the family understand Resume
+     */
+    public static boolean supportsResume(byte fam) {
+        switch (fam) {
+            case 0x29: // DS2408 8 channel addressable switch
+            case 0x2D: // DS2431 1K EEPROM
+            case 0x3A: // DS2413 dual channel addressable switch
+            case 0x42: // DS28EA00 thermometer with sequence detect and PIO
+            case 0x43: // DS28EC20 20K EEPROM
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Say whether the net has only one device on it. Only set this if no
+     * other device can be attached, for example because the registry is
+     * configured that way; a search that finds one device is not enough.
+     * With more than one device on the net Skip ROM makes them all answer
+     * at once. A read that fails its CRC while the net is single-drop turns
+     * it off again; see singleDropFailed().
+     *
+     * @param single true if there is only one device on the net
+     */
+    public synchronized void setSingleDrop(boolean single) {
+        singleDrop = single;
+        selected = 0;
+    }
+
+    /**
+     * Called when a device addressed with Skip ROM gave a bad response, in
+     * case another device has been attached. Stop using Skip ROM, so that
+     * the retry is addressed with Match ROM. The device may also have been
+     * power cycled, so it is no longer assumed to be selected or at
+     * overdrive speed either.
+     *
+     * @return true if the net was single-drop, so the access is worth
+     * retrying
+     */
+    public synchronized boolean singleDropFailed() {
+        boolean was = singleDrop;
+        singleDrop = false;
+        selected = 0;
+        overdrive = false;
+        return was;
+    }
+
+    /**
+     * @return true if the net is known to have only one device on it
+     */
+    public synchronized boolean isSingleDrop() {
+        return singleDrop;
+    }
+
+    /**
+     * @return the serial number of the selected device, or 0 if none is
+     */
+    public synchronized long getSelected() {
+        return selected;
+    }
+
+    /**
+     * Forget the selected device, so that the next access sends Match ROM,
+     * and that the net is at overdrive speed, as the ROM command that
+     * follows will usually come after a standard speed reset
+     */
+    public synchronized void deselect() {
+        selected = 0;
+        overdrive = false;
+    }
+
+    /**
+     * @return true if the devices that support overdrive should still be
+     * at overdrive speed, so will answer an overdrive reset
+     */
+    public synchronized boolean isOverdrive() {
+        return overdrive;
+    }
+
+    /**
+     * Record whether the devices that support overdrive are at overdrive
+     * speed: true once Overdrive Skip ROM or Overdrive Match ROM has been
+     * sent, false once a standard speed reset has
+     *
+     * @param od true if they are at overdrive speed
+     */
+    public synchronized void setOverdrive(boolean od) {
+        overdrive = od;
+    }
+
+    /**
+     * Add the cheapest ROM command that will address a device to a
+     * transaction. The same ROM commands are used at overdrive speed, once
+     * the device is at overdrive speed.
+     *
+     * @param t the transaction, which should just have been started with a
+     * reset
+     * @param serno serial number of the device
+     * @return the transaction
+     */
+    public synchronized OneWireTransaction address(OneWireTransaction t, long serno) {
+        if (singleDrop) {
+            return t.skipROM();
+        }
+        if (serno == selected && supportsResume((byte) (serno >>> 56))) {
+            return t.write(RESUME);
+        }
+        return t.matchROM(serno);
+    }
+
+    /**
+     * Record the result of a transaction addressing a device
+     *
+     * @param serno serial number of the device addressed
+     * @param ok true if the device answered
+     */
+    public synchronized void addressed(long serno, boolean ok) {
+        // Skip ROM doesn't leave the device selected for Resume
+        selected = (ok && !singleDrop) ? serno : 0;
+    }
+
+    /**
+     * @return the coupler branch switched on, or null if no branch is, or
+     * if it is not known
+     */
+    public synchronized OneWireBranch getBranch() {
+        return branch;
+    }
+
+    /**
+     * @return false if a coupler has been switched in a way the session
+     * couldn't follow, so which branch is on is not known
+     */
+    public synchronized boolean isBranchKnown() {
+        return branchKnown;
+    }
+
+    /**
+     * Record which coupler branch is switched on
+     *
+     * @param b the branch, with the branches leading to it also on, or
+     * null if all couplers are off
+     */
+    public synchronized void setBranch(OneWireBranch b) {
+        branch = b;
+        branchKnown = true;
+    }
+
+    /**
+     * Record that a coupler has been switched, so it is not known which
+     * branch is on
+     */
+    public synchronized void forgetBranch() {
+        branch = null;
+        branchKnown = false;
+    }
+}
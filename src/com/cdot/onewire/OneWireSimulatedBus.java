@@ -0,0 +1,289 @@
+package com.cdot.onewire;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * A 1-wire net simulated in memory, for testing and benchmarking without an
+ * adapter. Each slot is modelled as a wired-AND of the master and all the
+ * OneWireSimulatedDevices on the net. Time is virtual; msDelay advances the
+ * clock rather than sleeping, and each slot, reset and round trip to the
+ * "adapter" advances it by a realistic amount.
+ */
+public class OneWireSimulatedBus extends OneWireSerialDriver {
+
+    // Duration of a slot and of a reset with its presence detect, in ns, at
+    // standard and overdrive speed
+    private static final long SLOT_NS = 70000;
+    private static final long OVERDRIVE_SLOT_NS = 10000;
+    private static final long RESET_NS = 960000;
+    private static final long OVERDRIVE_RESET_NS = 100000;
+
+    private final List<OneWireSimulatedDevice> devices;
+
+    // Source of randomness for fault injection
+    public Random random;
+
+    // Time taken by each round trip to the adapter, in us
+    public int latency;
+
+    // If true, really wait for the latency of each round trip as well as
+    // advancing the virtual clock
+    public boolean realLatency;
+
+    // Counters. Reset them with clearCounters()
+    public long roundTrips;
+    public long resets;
+    public long slots;
+
+    private long nanos;
+    private final byte[] oneByte = new byte[1];
+    private MODE speed;
+    private MODE level;
+
+    /**
+     * Constructor
+     * @param log may be null if debug logging is not required
+     */
+    public OneWireSimulatedBus(Logger log) {
+        super(log);
+        devices = new ArrayList<>();
+        random = new Random(0);
+        speed = MODE.NORMAL;
+        level = MODE.NORMAL;
+        nanos = 0;
+    }
+
+    /**
+     * Attach a device to the net
+     *
+     * @param d the device
+     */
+    public void add(OneWireSimulatedDevice d) {
+        d.attach(this);
+        devices.add(d);
+    }
+
+    /**
+     * Detach a device from the net
+     *
+     * @param d the device
+     * @return true if the device was attached
+     */
+    public boolean remove(OneWireSimulatedDevice d) {
+        return devices.remove(d);
+    }
+
+    /**
+     * @return the devices attached to the net
+     */
+    public List<OneWireSimulatedDevice> getDevices() {
+        return devices;
+    }
+
+    /**
+     * @param serno serial number of a device
+     * @return the device, or null if it is not attached
+     */
+    public OneWireSimulatedDevice find(long serno) {
+        for (OneWireSimulatedDevice d : devices) {
+            if (d.serialNumber == serno) {
+                return d;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Zero the round trip, reset and slot counters
+     */
+    public void clearCounters() {
+        roundTrips = 0;
+        resets = 0;
+        slots = 0;
+    }
+
+    /**
+     * @return the virtual clock, in ns
+     */
+    @Override
+    public long nanoTime() {
+        return nanos;
+    }
+
+    /**
+     * @return the current line level, NORMAL or STRONG5
+     */
+    public MODE getLevel() {
+        return level;
+    }
+
+    void roundTrip() {
+        roundTrips++;
+        metrics.count(OneWireMetrics.Counter.ROUND_TRIPS, 1);
+        metrics.record(OneWireMetrics.Histogram.ROUND_TRIP_NS, latency * 1000L);
+        nanos += latency * 1000L;
+        if (realLatency && latency > 0) {
+            LockSupport.parkNanos(latency * 1000L);
+        }
+    }
+
+    boolean slot(boolean bit) {
+        boolean od = (speed == MODE.OVERDRIVE);
+        slots++;
+        nanos += od ? OVERDRIVE_SLOT_NS : SLOT_NS;
+        // Indexed loops, so as not to allocate iterators
+        int n = devices.size();
+        boolean line = bit;
+        for (int i = 0; i < n; i++) {
+            line &= devices.get(i).drive(od);
+        }
+        for (int i = 0; i < n; i++) {
+            devices.get(i).sample(od, line);
+        }
+        return line;
+    }
+
+    @Override
+    public OneWireError reset() {
+        roundTrip();
+        return resetPulse();
+    }
+
+    OneWireError resetPulse() {
+        boolean od = (speed == MODE.OVERDRIVE);
+        resets++;
+        nanos += od ? OVERDRIVE_RESET_NS : RESET_NS;
+        level = MODE.NORMAL;
+        boolean presence = false;
+        for (int i = 0; i < devices.size(); i++) {
+            if (devices.get(i).reset(od)) {
+                presence = true;
+            }
+        }
+        metrics.count(OneWireMetrics.Counter.RESETS, 1);
+        if (!presence) {
+            metrics.count(OneWireMetrics.Counter.PRESENCE_FAILURES, 1);
+            return OneWireError.NO_DEVICES_ON_NET;
+        }
+        return OneWireError.NO_ERROR_SET;
+    }
+
+    @Override
+    public boolean touchBit(boolean bit) {
+        roundTrip();
+        return slot(bit);
+    }
+
+    /**
+     * Sends UART_FIFO_SIZE bits per round trip, the same as a passive
+     * serial adapter.
+     */
+    @Override
+    public byte[] touchBits(int nbits, byte[] send) {
+        byte[] receive = new byte[(nbits + 7) / 8];
+        touchBits(nbits, send, receive);
+        return receive;
+    }
+
+    @Override
+    public void touchBits(int nbits, byte[] send, byte[] receive) {
+        for (int i = 0; i < nbits; i++) {
+            if (i % UART_FIFO_SIZE == 0) {
+                roundTrip();
+            }
+            // send and receive may be the same array
+            byte mask = (byte) (1 << (i & 0x7));
+            if (slot((send[i / 8] & mask) != 0)) {
+                receive[i / 8] |= mask;
+            } else {
+                receive[i / 8] &= ~mask;
+            }
+        }
+    }
+
+    @Override
+    public byte[] touchBlock(byte[] tx) {
+        return touchBits(tx.length * 8, tx);
+    }
+
+    @Override
+    public boolean touchBlock(byte[] tx, int off, int len, byte[] rx) {
+        return block(tx, off, len, rx, 0);
+    }
+
+    /**
+     * The reset goes in the same round trip as the first UART_FIFO_SIZE
+     * bits, as it does on an adapter that can queue a reset.
+     */
+    @Override
+    public OneWireError resetAndTouchBlock(byte[] tx, int off, int len, byte[] rx) {
+        roundTrip();
+        OneWireError e = resetPulse();
+        if (e != OneWireError.NO_ERROR_SET) {
+            return e;
+        }
+        block(tx, off, len, rx, 1);
+        return OneWireError.NO_ERROR_SET;
+    }
+
+    /**
+     * Send a block, starting a new round trip every UART_FIFO_SIZE bits
+     *
+     * @param first bit at which the first new round trip is counted. 0 if
+     * the block starts a round trip, 1 if it continues one.
+     */
+    private boolean block(byte[] tx, int off, int len, byte[] rx, int first) {
+        for (int i = 0; i < len * 8; i++) {
+            if (i % UART_FIFO_SIZE == 0 && i >= first) {
+                roundTrip();
+            }
+            int b = off + i / 8;
+            byte mask = (byte) (1 << (i & 0x7));
+            if (slot((tx[b] & mask) != 0)) {
+                rx[b] |= mask;
+            } else {
+                rx[b] &= ~mask;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public byte touchByte(byte sendbyte) {
+        oneByte[0] = sendbyte;
+        touchBits(8, oneByte, oneByte);
+        return oneByte[0];
+    }
+
+    @Override
+    public MODE setSpeed(MODE newSpeed) {
+        speed = (newSpeed == MODE.OVERDRIVE) ? MODE.OVERDRIVE : MODE.NORMAL;
+        return speed;
+    }
+
+    @Override
+    public MODE setLevel(MODE newLevel) {
+        level = (newLevel == MODE.STRONG5) ? MODE.STRONG5 : MODE.NORMAL;
+        return level;
+    }
+
+    @Override
+    public byte touchBytePower(byte sendbyte) {
+        byte b = touchByte(sendbyte);
+        level = MODE.STRONG5;
+        return b;
+    }
+
+    @Override
+    public void msDelay(int len) {
+        nanos += len * 1000000L;
+    }
+
+    @Override
+    public long msTime() {
+        return nanos / 1000000L;
+    }
+}
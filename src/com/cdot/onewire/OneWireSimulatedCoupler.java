@@ -0,0 +1,148 @@
+package com.cdot.onewire;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A virtual DS2409 MicroLAN coupler for a OneWireSimulatedBus, with devices
+ * on its main and auxiliary branches. While a branch is on, the devices on
+ * it see every reset and slot on the net, and drive the line along with
+ * everything else. Couplers can be put on a branch of another coupler.
+ */
+public class OneWireSimulatedCoupler extends OneWireSimulatedDevice {
+
+    // Function commands
+    private static final int ALL_LINES_OFF = 0x66;
+    private static final int DIRECT_ON_MAIN = 0xA5;
+    private static final int SMART_ON_MAIN = 0xCC;
+    private static final int SMART_ON_AUX = 0x33;
+
+    // Devices on each branch, indexed by OneWireCoupler.MAIN and AUX
+    private final List<List<OneWireSimulatedDevice>> branches;
+
+    // The branch that is on, or -1 if both are off
+    private int on;
+
+    // Switching commands are confirmed by sending them back. Smart-On first
+    // sends the byte read while the branch is being reset.
+    private final byte[] confirm = new byte[1];
+    private final byte[] smartConfirm = new byte[2];
+
+    /**
+     * @param id 48 bit unique id of the device within the family
+     */
+    public OneWireSimulatedCoupler(long id) {
+        super(OneWireCoupler.DS2409, id);
+        branches = new ArrayList<>(2);
+        branches.add(new ArrayList<OneWireSimulatedDevice>());
+        branches.add(new ArrayList<OneWireSimulatedDevice>());
+        on = -1;
+    }
+
+    /**
+     * Attach a device to a branch
+     *
+     * @param branch OneWireCoupler.MAIN or OneWireCoupler.AUX
+     * @param d the device
+     */
+    public void add(int branch, OneWireSimulatedDevice d) {
+        if (bus != null) {
+            d.attach(bus);
+        }
+        branches.get(branch).add(d);
+    }
+
+    /**
+     * @param branch OneWireCoupler.MAIN or OneWireCoupler.AUX
+     * @return the devices attached to the branch
+     */
+    public List<OneWireSimulatedDevice> getDevices(int branch) {
+        return branches.get(branch);
+    }
+
+    /**
+     * @return the branch that is on, OneWireCoupler.MAIN or AUX, or -1 if
+     * both are off
+     */
+    public int getBranch() {
+        return on;
+    }
+
+    @Override
+    void attach(OneWireSimulatedBus b) {
+        super.attach(b);
+        for (List<OneWireSimulatedDevice> branch : branches) {
+            for (OneWireSimulatedDevice d : branch) {
+                d.attach(b);
+            }
+        }
+    }
+
+    @Override
+    boolean reset(boolean od) {
+        boolean presence = super.reset(od);
+        if (on >= 0) {
+            List<OneWireSimulatedDevice> branch = branches.get(on);
+            for (int i = 0; i < branch.size(); i++) {
+                if (branch.get(i).reset(od)) {
+                    presence = true;
+                }
+            }
+        }
+        return presence;
+    }
+
+    @Override
+    boolean drive(boolean od) {
+        boolean line = super.drive(od);
+        if (on >= 0) {
+            List<OneWireSimulatedDevice> branch = branches.get(on);
+            for (int i = 0; i < branch.size(); i++) {
+                line &= branch.get(i).drive(od);
+            }
+        }
+        return line;
+    }
+
+    @Override
+    void sample(boolean od, boolean line) {
+        // A command received in this slot switches branches from the next
+        int was = on;
+        super.sample(od, line);
+        if (was >= 0) {
+            List<OneWireSimulatedDevice> branch = branches.get(was);
+            for (int i = 0; i < branch.size(); i++) {
+                branch.get(i).sample(od, line);
+            }
+        }
+    }
+
+    @Override
+    protected void function(int command) {
+        switch (command) {
+            case ALL_LINES_OFF:
+                on = -1;
+                confirm[0] = (byte) command;
+                transmit(confirm);
+                break;
+            case DIRECT_ON_MAIN:
+                on = OneWireCoupler.MAIN;
+                confirm[0] = (byte) command;
+                transmit(confirm);
+                break;
+            case SMART_ON_MAIN:
+            case SMART_ON_AUX:
+                int branch = (command == SMART_ON_MAIN) ? OneWireCoupler.MAIN : OneWireCoupler.AUX;
+                on = -1;
+                List<OneWireSimulatedDevice> devices = branches.get(branch);
+                for (int i = 0; i < devices.size(); i++) {
+                    devices.get(i).reset(false);
+                }
+                on = branch;
+                smartConfirm[0] = (byte) 0xFF;
+                smartConfirm[1] = (byte) command;
+                transmit(smartConfirm);
+                break;
+        }
+    }
+}
@@ -0,0 +1,314 @@
+package com.cdot.onewire;
+
+/**
+ * A stand-in for a DS2480B based adapter, for testing and benchmarking
+ * OneWireDS2480Driver without one. The bytes the driver writes to the
+ * "serial port" are interpreted as the DS2480B would interpret them, in
+ * command and data mode, and the resulting 1-wire activity happens on a
+ * OneWireSimulatedBus. Each write to the port is one round trip on the
+ * bus.
+ * <p>
+ * The command set covered is the one the driver uses: configuration
+ * parameters, reset, single bits (optionally primed for a strong pullup),
+ * data mode bytes, the search accelerator, and 5V pulses stopped by the
+ * stop pulse command. An infinite pulse is only answered when it is
+ * stopped, and nothing but the stop pulse command is seen while it runs.
+ * With no devices participating, the search accelerator takes the 1
+ * branch and flags a discrepancy at every bit.
+ */
+public class OneWireSimulatedDS2480 extends OneWireDS2480Driver {
+
+    // Mode commands, as in OneWireDS2480Driver
+    private static final int MODE_DATA = 0xE1;
+    private static final int MODE_COMMAND = 0xE3;
+    private static final int MODE_STOP_PULSE = 0xF1;
+
+    // Configuration parameters
+    private static final int PARM_5VPULSE = 3;
+    private static final int PULSE_INFINITE = 7;
+
+    private final OneWireSimulatedBus bus;
+
+    // Bytes sent by the DS2480B, not yet read
+    private final byte[] out = new byte[4 * OneWireSerialDriver.UART_FIFO_SIZE];
+    private int outLen;
+
+    private int baud;
+    // true if the next byte is the timing byte that follows a break
+    private boolean timing;
+    private boolean commandMode;
+    // true if an 0xE3 has been received in data mode
+    private boolean escape;
+    // true while the search accelerator is on, and the search data so far
+    private boolean searching;
+    private final byte[] search = new byte[16];
+    private int searchLen;
+    private final int[] params = new int[8];
+    // Response to send when the pulse in progress is stopped, -1 if there
+    // is no pulse
+    private int pulse;
+
+    /**
+     * @param b the 1-wire net the DS2480B drives
+     * @param log may be null if debug logging is not required
+     */
+    public OneWireSimulatedDS2480(OneWireSimulatedBus b, Logger log) {
+        super(log);
+        bus = b;
+        baud = 9600;
+        breakCOM();
+    }
+
+    /**
+     * @return true if a 5V pulse (strong pullup) is in progress
+     */
+    public boolean isPulsing() {
+        return pulse >= 0;
+    }
+
+    /**
+     * Only 9600 baud is simulated
+     */
+    @Override
+    protected boolean setBaudCOM(int b) {
+        baud = b;
+        return b == 9600;
+    }
+
+    @Override
+    protected void breakCOM() {
+        timing = true;
+        commandMode = true;
+        escape = false;
+        searching = false;
+        for (int i = 0; i < params.length; i++) {
+            params[i] = 0;
+        }
+        endPulse();
+        bus.setSpeed(MODE.NORMAL);
+    }
+
+    @Override
+    protected void flushCOM() {
+        outLen = 0;
+    }
+
+    @Override
+    protected boolean writeCOM(byte[] buf, int len) {
+        if (baud != 9600) {
+            return false;
+        }
+        bus.roundTrip();
+        for (int i = 0; i < len; i++) {
+            receive(buf[i] & 0xFF);
+        }
+        return true;
+    }
+
+    /**
+     * Bytes that have not arrived by the time they are asked for never
+     * will, so a short read consumes what there is and returns false
+     */
+    @Override
+    protected boolean readCOM(byte[] buf, int off, int len) {
+        if (outLen < len) {
+            outLen = 0;
+            return false;
+        }
+        System.arraycopy(out, 0, buf, off, len);
+        System.arraycopy(out, len, out, 0, outLen - len);
+        outLen -= len;
+        return true;
+    }
+
+    @Override
+    public void msDelay(int len) {
+        bus.msDelay(len);
+    }
+
+    @Override
+    public long msTime() {
+        return bus.msTime();
+    }
+
+    @Override
+    public long nanoTime() {
+        return bus.nanoTime();
+    }
+
+    private void send(int b) {
+        if (outLen < out.length) {
+            out[outLen++] = (byte) b;
+        }
+    }
+
+    /**
+     * A byte received from the host
+     */
+    private void receive(int b) {
+        if (timing) {
+            // Used to measure the baud rate, and not answered
+            timing = false;
+            return;
+        }
+        if (pulse >= 0 && b != MODE_STOP_PULSE) {
+            // Only the stop pulse command is seen during a pulse
+            return;
+        }
+        if (!commandMode) {
+            if (escape) {
+                escape = false;
+                if (b != MODE_COMMAND) {
+                    commandMode = true;
+                    command(b);
+                    return;
+                }
+            } else if (b == MODE_COMMAND) {
+                escape = true;
+                return;
+            }
+            data(b);
+            return;
+        }
+        command(b);
+    }
+
+    /**
+     * A byte received in command mode
+     */
+    private void command(int b) {
+        if (b == MODE_DATA) {
+            commandMode = false;
+        } else if (b == MODE_STOP_PULSE) {
+            if (pulse >= 0) {
+                send(pulse);
+                endPulse();
+            }
+        } else if ((b & 0x81) == 0x01) {
+            config(b);
+        } else if ((b & 0x81) == 0x81) {
+            communication(b);
+        }
+    }
+
+    /**
+     * Write or read a configuration parameter
+     */
+    private void config(int b) {
+        int parm = (b >> 4) & 0x7;
+        int value = (b >> 1) & 0x7;
+        if (parm == 0) {
+            send(params[value] << 1);
+        } else {
+            params[parm] = value;
+            send(b & 0xFE);
+        }
+    }
+
+    /**
+     * A communication command: single bit, search accelerator, reset or
+     * pulse
+     */
+    private void communication(int b) {
+        int speedBits = b & 0x0C;
+        switch (b & 0x60) {
+            case 0x00: // single bit
+                setSpeed(speedBits);
+                boolean bit = bus.slot((b & 0x10) != 0);
+                send((b & 0xFC) | (bit ? 0x03 : 0x00));
+                if ((b & 0x02) != 0) {
+                    startPulse(0xEC);
+                }
+                break;
+            case 0x20: // search accelerator on or off
+                setSpeed(speedBits);
+                searching = (b & 0x10) != 0;
+                searchLen = 0;
+                break;
+            case 0x40: // reset
+                setSpeed(speedBits);
+                OneWireError e = bus.resetPulse();
+                send(0xCC | (e == OneWireError.NO_ERROR_SET ? 0x01 : 0x03));
+                break;
+            case 0x60: // pulse
+                if (speedBits == 0x0C) {
+                    int response = 0xE0 | (b & 0x1C);
+                    if (params[PARM_5VPULSE] == PULSE_INFINITE) {
+                        startPulse(response);
+                    } else {
+                        send(response);
+                    }
+                }
+                break;
+        }
+    }
+
+    private void setSpeed(int speedBits) {
+        bus.setSpeed(speedBits == 0x08 ? MODE.OVERDRIVE : MODE.NORMAL);
+    }
+
+    private void startPulse(int response) {
+        pulse = response;
+        bus.setLevel(MODE.STRONG5);
+    }
+
+    private void endPulse() {
+        pulse = -1;
+        bus.setLevel(MODE.NORMAL);
+    }
+
+    /**
+     * A byte received in data mode
+     */
+    private void data(int b) {
+        if (searching) {
+            search[searchLen++] = (byte) b;
+            if (searchLen == search.length) {
+                accelerate();
+                searchLen = 0;
+            }
+            return;
+        }
+        int rx = 0;
+        for (int i = 0; i < 8; i++) {
+            if (bus.slot((b & (1 << i)) != 0)) {
+                rx |= 1 << i;
+            }
+        }
+        send(rx);
+    }
+
+    /**
+     * One pass of the search accelerator. The odd bits of the search data
+     * give the direction to take at a discrepancy; the response has the
+     * discrepancy flag in the even bits and the direction taken in the odd
+     * bits.
+     */
+    private void accelerate() {
+        byte[] response = new byte[search.length];
+        for (int i = 0; i < 64; i++) {
+            int dbit = i * 2, rbit = i * 2 + 1;
+            boolean b0 = bus.slot(true);
+            boolean b1 = bus.slot(true);
+            boolean discrepancy, direction;
+            if (b0 == b1) {
+                // Both 0s and 1s, or no devices at all
+                discrepancy = true;
+                direction = b0 || (search[rbit / 8] & (1 << (rbit & 0x7))) != 0;
+            } else {
+                discrepancy = false;
+                direction = b0;
+            }
+            bus.slot(direction);
+            if (discrepancy) {
+                response[dbit / 8] |= 1 << (dbit & 0x7);
+            }
+            if (direction) {
+                response[rbit / 8] |= 1 << (rbit & 0x7);
+            }
+        }
+        for (byte r : response) {
+            send(r & 0xFF);
+        }
+    }
+}
@@ -0,0 +1,374 @@
+package com.cdot.onewire;
+
+/**
+ * A virtual device on a OneWireSimulatedBus. The ROM commands (search,
+ * match, skip, read, conditional read, resume and the overdrive variants)
+ * are handled here at the slot level; subclasses implement the function
+ * commands that follow.
+ */
+public abstract class OneWireSimulatedDevice {
+
+    // ROM commands
+    private static final int READ_ROM = 0x33;
+    private static final int MATCH_ROM = 0x55;
+    private static final int SKIP_ROM = 0xCC;
+    private static final int SEARCH_ROM = 0xF0;
+    private static final int ALARM_SEARCH = 0xEC;
+    private static final int OVERDRIVE_SKIP_ROM = 0x3C;
+    private static final int OVERDRIVE_MATCH_ROM = 0x69;
+    private static final int RESUME = 0xA5;
+    private static final int CONDITIONAL_READ_ROM = 0x0F;
+
+    // ROM layer states
+    private static final int IDLE = 0; // waiting for a reset
+    private static final int ROM_COMMAND = 1;
+    private static final int MATCH = 2;
+    private static final int SEARCH = 3;
+    private static final int FUNCTION_COMMAND = 4;
+    private static final int FUNCTION = 5;
+
+    public final long serialNumber;
+
+    // probability that the device misses a reset, and so gives no presence
+    // pulse and ignores everything up to the next reset
+    public double presenceFailureRate;
+
+    // the bus the device is attached to
+    protected OneWireSimulatedBus bus;
+
+    private int state;
+    private boolean overdrive;
+    // set when the device was the last selected by Match ROM or a search,
+    // so that it answers Resume
+    private boolean resume;
+
+    // bits being received
+    private int rxByte, rxBits;
+    // ROM bit (MATCH, SEARCH) and phase of the search for that bit
+    private int romBit, searchPhase;
+    // bits being transmitted
+    private byte[] tx;
+    private int txBit, txBits;
+    // the serial number as sent by Read ROM, reused so reading allocates
+    // nothing
+    private final byte[] rom = new byte[8];
+
+    /**
+     * @param family device family code
+     * @param id 48 bit unique id of the device within the family
+     */
+    protected OneWireSimulatedDevice(byte family, long id) {
+        serialNumber = makeSerialNumber(family, id);
+        state = IDLE;
+        overdrive = false;
+    }
+
+    /**
+     * Build a serial number with a valid CRC
+     *
+     * @param family device family code
+     * @param id 48 bit unique id of the device within the family
+     * @return the 64 bit serial number, family code in the MSB
+     */
+    public static long makeSerialNumber(byte family, long id) {
+        long serno = ((long) family & 0xFF) << 56 | (id & 0xFFFFFFFFFFFFL) << 8;
+        return serno | CRC8.computeROM(serno);
+    }
+
+    /**
+     * @return the family code of the device
+     */
+    public byte getFamily() {
+        return (byte) ((serialNumber >> 56) & 0xFF);
+    }
+
+    /**
+     * Called when the device is attached to a bus
+     *
+     * @param b the bus
+     */
+    void attach(OneWireSimulatedBus b) {
+        bus = b;
+    }
+
+    /**
+     * @return true if the device understands the overdrive ROM commands
+     */
+    protected boolean supportsOverdrive() {
+        return OneWireDevice.supportsOverdrive(getFamily());
+    }
+
+    /**
+     * @return true if the device understands Resume
+     */
+    protected boolean supportsResume() {
+        return OneWireSession.supportsResume(getFamily());
+    }
+
+    /**
+     * Called on a reset. Override to clear function state.
+     */
+    protected void onReset() {
+    }
+
+    /**
+     * Start a function command, after the device has been selected
+     *
+     * @param command the function command byte
+     */
+    protected abstract void function(int command);
+
+    /**
+     * Receive a byte written by the master after the function command
+     *
+     * @param b byte received
+     */
+    protected void received(int b) {
+    }
+
+    /**
+     * @return the bit to send in a read slot when nothing is being
+     * transmitted, false to pull the line low
+     */
+    protected boolean readSlot() {
+        return true;
+    }
+
+    /**
+     * @return true if the device should answer Conditional Read ROM
+     */
+    protected boolean conditionalReadROM() {
+        return false;
+    }
+
+    /**
+     * @return true if the device should answer an alarm search
+     */
+    protected boolean alarm() {
+        return false;
+    }
+
+    /**
+     * Send bytes to the master, LSB first, in the read slots that follow
+     *
+     * @param data bytes to send
+     */
+    protected void transmit(byte[] data) {
+        transmit(data, data.length);
+    }
+
+    /**
+     * Send the first bytes of a buffer to the master
+     *
+     * @param data buffer holding the bytes to send
+     * @param len number of bytes to send
+     */
+    protected void transmit(byte[] data, int len) {
+        tx = data;
+        txBit = 0;
+        txBits = len * 8;
+    }
+
+    /**
+     * Called when the bytes passed to transmit() have all been sent.
+     * Override to transmit more, for a device that streams data for as long
+     * as the master keeps reading.
+     */
+    protected void transmitted() {
+    }
+
+    /**
+     * @param i bit number 0-63, in the order bits are sent on the bus
+     * @return the bit of the serial number
+     */
+    private boolean romBit(int i) {
+        return ((serialNumber >>> (56 - 8 * (i / 8) + (i & 0x7))) & 1) != 0;
+    }
+
+    /**
+     * Reset pulse on the bus
+     *
+     * @param od true for an overdrive reset pulse
+     * @return true if the device gives a presence pulse
+     */
+    boolean reset(boolean od) {
+        if (od && !overdrive) {
+            // Too short for a standard speed device to see
+            return false;
+        }
+        overdrive = od;
+        rxBits = 0;
+        rxByte = 0;
+        txBits = 0;
+        onReset();
+        if (presenceFailureRate > 0 && bus.random.nextDouble() < presenceFailureRate) {
+            state = IDLE;
+            return false;
+        }
+        state = ROM_COMMAND;
+        return true;
+    }
+
+    /**
+     * First half of a slot: what the device drives on the line
+     *
+     * @param od true for an overdrive slot
+     * @return false to pull the line low
+     */
+    boolean drive(boolean od) {
+        if (od != overdrive || state == IDLE) {
+            return true;
+        }
+        if (txBit < txBits) {
+            return (tx[txBit / 8] & (1 << (txBit & 0x7))) != 0;
+        }
+        switch (state) {
+            case SEARCH:
+                if (searchPhase == 0) {
+                    return romBit(romBit);
+                }
+                if (searchPhase == 1) {
+                    return !romBit(romBit);
+                }
+                return true;
+            case FUNCTION:
+                return readSlot();
+        }
+        return true;
+    }
+
+    /**
+     * Second half of a slot: the device sees the level of the line
+     *
+     * @param od true for an overdrive slot
+     * @param line level of the line
+     */
+    void sample(boolean od, boolean line) {
+        if (od != overdrive || state == IDLE) {
+            return;
+        }
+        if (txBit < txBits) {
+            if (++txBit == txBits) {
+                transmitted();
+            }
+            return;
+        }
+        if (state == SEARCH) {
+            if (searchPhase < 2) {
+                searchPhase++;
+            } else if (line != romBit(romBit)) {
+                // Master went the other way
+                state = IDLE;
+            } else {
+                searchPhase = 0;
+                if (++romBit == 64) {
+                    resume = true;
+                    state = FUNCTION_COMMAND;
+                }
+            }
+            return;
+        }
+
+        if (line) {
+            rxByte |= 1 << rxBits;
+        }
+        if (++rxBits == 8) {
+            int b = rxByte;
+            rxBits = 0;
+            rxByte = 0;
+            receivedByte(b);
+        }
+    }
+
+    /**
+     * A whole byte has been received
+     */
+    private void receivedByte(int b) {
+        switch (state) {
+            case ROM_COMMAND:
+                romCommand(b);
+                break;
+            case MATCH:
+                if (b != (int) ((serialNumber >>> (56 - 8 * romBit)) & 0xFF)) {
+                    state = IDLE;
+                    if (overdrive && !supportsOverdrive()) {
+                        overdrive = false;
+                    }
+                } else if (++romBit == 8) {
+                    resume = true;
+                    state = FUNCTION_COMMAND;
+                }
+                break;
+            case FUNCTION_COMMAND:
+                state = FUNCTION;
+                function(b);
+                break;
+            case FUNCTION:
+                received(b);
+                break;
+        }
+    }
+
+    private void romCommand(int command) {
+        if (command == RESUME) {
+            state = (resume && supportsResume()) ? FUNCTION_COMMAND : IDLE;
+            return;
+        }
+        // Any other ROM command deselects the device until it is matched
+        // or found again
+        resume = false;
+        switch (command) {
+            case CONDITIONAL_READ_ROM:
+                if (!conditionalReadROM()) {
+                    state = IDLE;
+                    break;
+                }
+            // fall through
+            case READ_ROM:
+                for (int i = 0; i < 8; i++) {
+                    rom[i] = (byte) (serialNumber >>> (56 - 8 * i));
+                }
+                transmit(rom);
+                state = FUNCTION_COMMAND;
+                break;
+            case MATCH_ROM:
+                romBit = 0;
+                state = MATCH;
+                break;
+            case SKIP_ROM:
+                state = FUNCTION_COMMAND;
+                break;
+            case ALARM_SEARCH:
+                if (!alarm()) {
+                    state = IDLE;
+                    break;
+                }
+            // fall through
+            case SEARCH_ROM:
+                romBit = 0;
+                searchPhase = 0;
+                state = SEARCH;
+                break;
+            case OVERDRIVE_SKIP_ROM:
+                if (supportsOverdrive()) {
+                    overdrive = true;
+                    state = FUNCTION_COMMAND;
+                } else {
+                    state = IDLE;
+                }
+                break;
+            case OVERDRIVE_MATCH_ROM:
+                if (supportsOverdrive()) {
+                    // The serial number follows at overdrive speed
+                    overdrive = true;
+                    romBit = 0;
+                    state = MATCH;
+                } else {
+                    state = IDLE;
+                }
+                break;
+            default:
+                state = IDLE;
+        }
+    }
+}
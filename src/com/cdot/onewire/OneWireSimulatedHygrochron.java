@@ -0,0 +1,223 @@
+package com.cdot.onewire;
+
+import java.util.Calendar;
+import java.util.TimeZone;
+
+/**
+ * A virtual DS1923 Hygrochron for a OneWireSimulatedBus, holding a mission
+ * and its log. It answers Read Memory with CRC, sending a page and its
+ * CRC16 at a time for as long as the master keeps reading. Samples are
+ * added with addSample(), as if the mission had taken them.
+ * <p>
+ * Passwords are not simulated; the password sent with Read Memory is
+ * ignored.
+ */
+public class OneWireSimulatedHygrochron extends OneWireSimulatedDevice {
+
+    private static final int READ_MEMORY_CRC = 0x69;
+    private static final int PAGE_SIZE = OneWireHygrochron.PAGE_SIZE;
+    private static final int MEMORY_SIZE = OneWireHygrochron.LOG + OneWireHygrochron.LOG_SIZE;
+
+    // Probability of corrupting one bit of a page as it is read
+    public double crcErrorRate;
+
+    private final byte[] memory = new byte[MEMORY_SIZE];
+
+    // Bytes of Read Memory received so far: address, then password. -1 if
+    // not reading memory.
+    private int readIndex;
+    // Address of the next page to send
+    private int address;
+    // Command and address, which the first page's CRC16 covers
+    private final byte[] command = new byte[3];
+    // Reused for each page, so reading allocates nothing
+    private final byte[] page = new byte[PAGE_SIZE + 2];
+
+    // Samples taken by the mission
+    private int samples;
+
+    /**
+     * @param id 48 bit unique id of the device within the family
+     */
+    public OneWireSimulatedHygrochron(long id) {
+        super(OneWireThermometer.DS1923, id);
+        crcErrorRate = 0;
+        readIndex = -1;
+        for (int i = OneWireHygrochron.LOG; i < memory.length; i++) {
+            memory[i] = (byte) 0xFF;
+        }
+    }
+
+    /**
+     * Start a mission, clearing the log
+     *
+     * @param start time of the first sample, in ms since the epoch
+     * @param interval time between samples, in s
+     * @param logTemperature true to log temperature
+     * @param logHumidity true to log humidity
+     * @param highResolution true for 16 bit samples, false for 8 bit
+     * @param rollover true to overwrite the oldest samples when the log is
+     * full, false to stop logging
+     */
+    public void startMission(long start, int interval, boolean logTemperature,
+            boolean logHumidity, boolean highResolution, boolean rollover) {
+        for (int i = OneWireHygrochron.LOG; i < memory.length; i++) {
+            memory[i] = (byte) 0xFF;
+        }
+        samples = 0;
+        setRegister(OneWireHygrochron.MISSION_SAMPLES, 0, 3);
+        setRegister(OneWireHygrochron.SAMPLE_RATE, interval, 2);
+        setRegister(OneWireHygrochron.RTC_CONTROL, OneWireHygrochron.EHSS, 1);
+        int control = 0;
+        if (logTemperature) {
+            control |= OneWireHygrochron.ETL;
+            if (highResolution) {
+                control |= OneWireHygrochron.TLFS;
+            }
+        }
+        if (logHumidity) {
+            control |= OneWireHygrochron.EHL;
+            if (highResolution) {
+                control |= OneWireHygrochron.HLFS;
+            }
+        }
+        if (rollover) {
+            control |= OneWireHygrochron.RO;
+        }
+        setRegister(OneWireHygrochron.MISSION_CONTROL, control, 1);
+        setRegister(OneWireHygrochron.GENERAL_STATUS, OneWireHygrochron.MIP, 1);
+
+        Calendar c = Calendar.getInstance(TimeZone.getTimeZone("UTC"));
+        c.setTimeInMillis(start);
+        int ts = OneWireHygrochron.MISSION_TIMESTAMP;
+        memory[ts] = bcd(c.get(Calendar.SECOND));
+        memory[ts + 1] = bcd(c.get(Calendar.MINUTE));
+        memory[ts + 2] = bcd(c.get(Calendar.HOUR_OF_DAY));
+        memory[ts + 3] = bcd(c.get(Calendar.DAY_OF_MONTH));
+        int year = c.get(Calendar.YEAR) - 2000;
+        memory[ts + 4] = (byte) (bcd(c.get(Calendar.MONTH) + 1) | (year >= 100 ? 0x80 : 0));
+        memory[ts + 5] = bcd(year % 100);
+    }
+
+    /**
+     * Log a sample, as the mission would
+     *
+     * @param t temperature, in C
+     * @param rh relative humidity, in %
+     */
+    public void addSample(double t, double rh) {
+        int control = memory[OneWireHygrochron.MISSION_CONTROL] & 0xFF;
+        boolean logT = (control & OneWireHygrochron.ETL) != 0;
+        boolean logH = (control & OneWireHygrochron.EHL) != 0;
+        int size = (logT && logH) ? OneWireHygrochron.LOG_SIZE / 2 : OneWireHygrochron.LOG_SIZE;
+        int base = OneWireHygrochron.LOG;
+        if (logT) {
+            int raw = (int) Math.round((Math.max(-40, Math.min(85, t)) + 41) * 512);
+            if (!log(base, size, (control & OneWireHygrochron.TLFS) != 0, raw, control)) {
+                return;
+            }
+            base += size;
+        }
+        if (logH) {
+            double volts = Math.max(0, Math.min(100, rh)) * 0.0307 + 0.958;
+            int raw = (int) Math.round(volts * 4096 / 5.02) << 4;
+            if (!log(base, size, (control & OneWireHygrochron.HLFS) != 0, raw, control)) {
+                return;
+            }
+        }
+        setRegister(OneWireHygrochron.MISSION_SAMPLES, ++samples, 3);
+    }
+
+    /**
+     * Write a sample to a channel's log
+     *
+     * @return false if the log is full and rollover is off
+     */
+    private boolean log(int base, int size, boolean wide, int raw, int control) {
+        int bytes = wide ? 2 : 1;
+        int capacity = size / bytes;
+        if (samples >= capacity && (control & OneWireHygrochron.RO) == 0) {
+            return false;
+        }
+        int at = base + (samples % capacity) * bytes;
+        memory[at] = (byte) (raw >> 8);
+        if (wide) {
+            memory[at + 1] = (byte) raw;
+        }
+        return true;
+    }
+
+    private void setRegister(int address, int value, int bytes) {
+        for (int i = 0; i < bytes; i++) {
+            memory[address + i] = (byte) (value >> (8 * i));
+        }
+    }
+
+    private static byte bcd(int v) {
+        return (byte) ((v / 10) << 4 | (v % 10));
+    }
+
+    @Override
+    protected void onReset() {
+        readIndex = -1;
+    }
+
+    @Override
+    protected void function(int command) {
+        if (command == READ_MEMORY_CRC) {
+            readIndex = 0;
+        }
+    }
+
+    @Override
+    protected void received(int b) {
+        switch (readIndex) {
+            case -1:
+                return;
+            case 0:
+                address = b;
+                break;
+            case 1:
+                address |= b << 8;
+                command[0] = (byte) READ_MEMORY_CRC;
+                command[1] = (byte) address;
+                command[2] = (byte) (address >> 8);
+                break;
+            default:
+                if (readIndex == 9) {
+                    // Password received; start sending
+                    readIndex = -1;
+                    sendPage(CRC16.compute(0, command, 0, 3));
+                    return;
+                }
+        }
+        readIndex++;
+    }
+
+    @Override
+    protected void transmitted() {
+        sendPage(0);
+    }
+
+    /**
+     * Send from address to the end of its page, followed by the inverted
+     * CRC16
+     */
+    private void sendPage(int crc) {
+        if (address >= memory.length) {
+            return;
+        }
+        int n = PAGE_SIZE - (address % PAGE_SIZE);
+        System.arraycopy(memory, address, page, 0, n);
+        crc = ~CRC16.compute(crc, page, 0, n);
+        page[n] = (byte) crc;
+        page[n + 1] = (byte) (crc >> 8);
+        address += n;
+
+        if (crcErrorRate > 0 && bus.random.nextDouble() < crcErrorRate) {
+            int bit = bus.random.nextInt(n * 8);
+            page[bit / 8] ^= 1 << (bit & 0x7);
+        }
+        transmit(page, n + 2);
+    }
+}
@@ -0,0 +1,309 @@
+package com.cdot.onewire;
+
+/**
+ * A virtual DS1820, DS1822, DS18B20, DS28EA00 or DS1923 thermometer for a
+ * OneWireSimulatedBus. Conversions take the datasheet maximum time on the
+ * bus's virtual clock. Like the real thing, a parasite powered device can't
+ * signal the end of a conversion, and reads back the power-on value of 85C
+ * until the first conversion has completed.
+ * <p>
+ * A DS28EA00 also answers the Chain command and Conditional Read ROM. Its
+ * EN input is driven by the device set in enabledBy, which enables it once
+ * that device is DONE; if enabledBy is null, EN is tied low and the device
+ * is the first in the chain.
+ */
+public class OneWireSimulatedThermometer extends OneWireSimulatedDevice {
+
+    // Function commands
+    private static final int CONVERT_T = 0x44;
+    private static final int WRITE_SCRATCHPAD = 0x4E;
+    private static final int READ_SCRATCHPAD = 0xBE;
+    private static final int COPY_SCRATCHPAD = 0x48;
+    private static final int RECALL_E2 = 0xB8;
+    private static final int READ_POWER_SUPPLY = 0xB4;
+    private static final int CHAIN = 0x99;
+
+    // Chain control bytes, and the confirmation of a valid one
+    private static final int CHAIN_OFF = 0x3C;
+    private static final int CHAIN_ON = 0x5A;
+    private static final int CHAIN_DONE = 0x96;
+    private static final byte[] CHAIN_CONFIRM = { (byte) 0xAA };
+
+    // Temperature register at power on, 85C
+    private static final int POWER_ON_TEMPERATURE = 85;
+
+    // What the device sends in read slots after the function command
+    private static final int SLOTS_IDLE = 0;
+    private static final int SLOTS_CONVERSION = 1;
+    private static final int SLOTS_POWER = 2;
+
+    // Temperature the device will measure, in C
+    public double temperature;
+
+    // True if the device is parasite powered
+    public boolean parasite;
+
+    // Probability of corrupting one bit of the scratchpad as it is read
+    public double crcErrorRate;
+
+    // DS28EA00 whose PIOA drives this device's EN input, null if EN is
+    // tied low
+    public OneWireSimulatedThermometer enabledBy;
+
+    // Temperature register; 1/16C for DS18B20 and friends, 1/2C for DS1820
+    private int register;
+    // Scratchpad TH, TL and configuration, and their EEPROM copies
+    private int th, tl, config;
+    private int eeTH, eeTL, eeConfig;
+
+    private boolean converting;
+    private long conversionEnd;
+    private int slots;
+    // Index of the next byte expected by Write Scratchpad
+    private int writeIndex;
+    // Chain state, CHAIN_OFF, CHAIN_ON or CHAIN_DONE. While a Chain
+    // command is being received, its control byte, -1 until it arrives.
+    private int chain;
+    private int chainControl;
+    private boolean chainCommand;
+
+    // Reused for each Read Scratchpad, so reading allocates nothing
+    private final byte[] sp = new byte[9];
+
+    /**
+     * @param family one of the OneWireThermometer family codes
+     * @param id 48 bit unique id of the device within the family
+     * @param t initial temperature, in C
+     */
+    public OneWireSimulatedThermometer(byte family, long id, double t) {
+        super(family, id);
+        temperature = t;
+        parasite = false;
+        crcErrorRate = 0;
+        eeTH = th = 75;
+        eeTL = tl = 70;
+        eeConfig = config = 0x7F; // 12 bit
+        register = isDS1820() ? POWER_ON_TEMPERATURE * 2 : POWER_ON_TEMPERATURE * 16;
+        converting = false;
+        chain = CHAIN_OFF;
+    }
+
+    private boolean isDS1820() {
+        return getFamily() == OneWireThermometer.DS1820;
+    }
+
+    /**
+     * @return the resolution configured in the scratchpad, 9-12 bits
+     */
+    public int getResolution() {
+        return isDS1820() ? 9 : ((config >> 5) & 0x3) + 9;
+    }
+
+    /**
+     * Set the resolution, in both the scratchpad and the EEPROM
+     *
+     * @param bits 9-12. Ignored by a DS1820.
+     */
+    public void setResolution(int bits) {
+        eeConfig = config = ((bits - 9) << 5) | 0x1F;
+    }
+
+    /**
+     * @return the high alarm threshold in the scratchpad
+     */
+    public int getTH() {
+        return (byte) th;
+    }
+
+    /**
+     * @return the low alarm threshold in the scratchpad
+     */
+    public int getTL() {
+        return (byte) tl;
+    }
+
+    /**
+     * @return the alarm thresholds and configuration copied to the EEPROM,
+     * as TH, TL, config
+     */
+    public int[] getEEPROM() {
+        return new int[] { (byte) eeTH, (byte) eeTL, eeConfig };
+    }
+
+    /**
+     * @return the conversion time for the current resolution, in ms. The
+     * DS1820 always takes the full 750ms.
+     */
+    private int conversionTime() {
+        return OneWireThermometer.datasheetConversionTime(isDS1820() ? 12 : getResolution());
+    }
+
+    /**
+     * Complete a conversion, if there is one and it's time
+     */
+    private void tick() {
+        if (converting && bus.nanoTime() >= conversionEnd) {
+            converting = false;
+            double t = Math.max(-55, Math.min(125, temperature));
+            if (isDS1820()) {
+                register = (int) Math.round(t * 2);
+            } else {
+                int discard = 12 - getResolution();
+                register = ((int) Math.floor(t * 16) >> discard) << discard;
+            }
+        }
+    }
+
+    @Override
+    protected void onReset() {
+        slots = SLOTS_IDLE;
+        writeIndex = -1;
+        chainCommand = false;
+    }
+
+    @Override
+    protected void function(int command) {
+        tick();
+        switch (command) {
+            case CONVERT_T:
+                if (!converting) {
+                    converting = true;
+                    conversionEnd = bus.nanoTime() + conversionTime() * 1000000L;
+                }
+                slots = SLOTS_CONVERSION;
+                break;
+            case READ_SCRATCHPAD:
+                transmit(scratchpad());
+                break;
+            case WRITE_SCRATCHPAD:
+                writeIndex = 0;
+                break;
+            case COPY_SCRATCHPAD:
+                eeTH = th;
+                eeTL = tl;
+                eeConfig = config;
+                break;
+            case RECALL_E2:
+                th = eeTH;
+                tl = eeTL;
+                config = eeConfig;
+                break;
+            case READ_POWER_SUPPLY:
+                slots = SLOTS_POWER;
+                break;
+            case CHAIN:
+                if (getFamily() == OneWireThermometer.DS28EA00) {
+                    chainCommand = true;
+                    chainControl = -1;
+                }
+                break;
+        }
+    }
+
+    @Override
+    protected void received(int b) {
+        if (chainCommand) {
+            chain(b);
+            return;
+        }
+        switch (writeIndex) {
+            case 0:
+                th = b;
+                break;
+            case 1:
+                tl = b;
+                break;
+            case 2:
+                // The DS1820 has no configuration register
+                if (!isDS1820()) {
+                    config = (b & 0x60) | 0x1F;
+                }
+                break;
+            default:
+                return;
+        }
+        writeIndex++;
+    }
+
+    @Override
+    protected boolean readSlot() {
+        switch (slots) {
+            case SLOTS_CONVERSION:
+                // A parasite device can't pull the line low while it is
+                // converting
+                tick();
+                return parasite || !converting;
+            case SLOTS_POWER:
+                return !parasite;
+        }
+        return true;
+    }
+
+    /**
+     * Receive the control byte of the Chain command, then its inverse
+     */
+    private void chain(int b) {
+        if (chainControl < 0) {
+            chainControl = b;
+            return;
+        }
+        chainCommand = false;
+        if ((b ^ chainControl) != 0xFF) {
+            return;
+        }
+        switch (chainControl) {
+            case CHAIN_ON:
+                chain = CHAIN_ON;
+                break;
+            case CHAIN_OFF:
+                chain = CHAIN_OFF;
+                break;
+            case CHAIN_DONE:
+                if (chain != CHAIN_ON) {
+                    return;
+                }
+                chain = CHAIN_DONE;
+                break;
+            default:
+                return;
+        }
+        transmit(CHAIN_CONFIRM);
+    }
+
+    @Override
+    protected boolean conditionalReadROM() {
+        return chain == CHAIN_ON && (enabledBy == null || enabledBy.chain == CHAIN_DONE);
+    }
+
+    @Override
+    protected boolean alarm() {
+        tick();
+        int t = isDS1820() ? register >> 1 : register >> 4;
+        return t >= (byte) th || t <= (byte) tl;
+    }
+
+    private byte[] scratchpad() {
+        sp[0] = (byte) register;
+        sp[1] = (byte) (register >> 8);
+        sp[2] = (byte) th;
+        sp[3] = (byte) tl;
+        if (isDS1820()) {
+            sp[4] = (byte) 0xFF;
+            sp[5] = (byte) 0xFF;
+            sp[6] = (byte) 0x0C; // COUNT_REMAIN
+            sp[7] = (byte) 0x10; // COUNT_PER_C
+        } else {
+            sp[4] = (byte) config;
+            sp[5] = (byte) 0xFF;
+            sp[6] = (byte) 0x0C;
+            sp[7] = (byte) 0x10;
+        }
+        sp[8] = (byte) CRC8.compute(0, sp, 0, 8);
+
+        if (crcErrorRate > 0 && bus.random.nextDouble() < crcErrorRate) {
+            int bit = bus.random.nextInt(72);
+            sp[bit / 8] ^= 1 << (bit & 0x7);
+        }
+        return sp;
+    }
+}
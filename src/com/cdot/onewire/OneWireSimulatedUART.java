@@ -0,0 +1,142 @@
+package com.cdot.onewire;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ByteChannel;
+import java.nio.channels.ClosedChannelException;
+
+/**
+ * A stand-in for a passive serial adapter, for testing and benchmarking
+ * drivers such as OneWirePassiveDriver's subclasses without one. The
+ * adapter is a UART with its transmit and receive lines both on a
+ * OneWireSimulatedBus, so every byte written is echoed as the net leaves
+ * it. It is used through a ByteChannel, with the port parameters set by
+ * configure(). Each write is one round trip on the bus.
+ * <p>
+ * Bytes written with 1 stop bit are reset pulses, at standard speed at
+ * 9600 baud and at overdrive speed at 115200; a presence pulse clears the
+ * lowest bit of the pulse that is set. Bytes written with 2 stop bits are
+ * slots, at standard speed at 115200 baud and at overdrive speed at 1Mbaud;
+ * the least significant bit is the bit written, and the echo has it
+ * cleared if the line was low. Reads never block: a read with no echoes
+ * waiting returns 0, as a tty read that times out does.
+ */
+public class OneWireSimulatedUART implements ByteChannel {
+
+    private final OneWireSimulatedBus bus;
+
+    // Number of reads to come that will time out even if echoes are
+    // waiting. The echoes turn up on later reads, as they would from an
+    // adapter that was slow to answer.
+    public int timeouts;
+
+    // Number of times the port parameters have been set. Reset it with
+    // clearCounters()
+    public long configures;
+
+    private int baud;
+    private int stopBits;
+    private boolean open;
+
+    // Echoes not yet read
+    private final byte[] echoes = new byte[4 * OneWireSerialDriver.UART_FIFO_SIZE];
+    private int echoesLen;
+
+    /**
+     * @param b the 1-wire net the adapter is on
+     */
+    public OneWireSimulatedUART(OneWireSimulatedBus b) {
+        bus = b;
+        timeouts = 0;
+        configures = 0;
+        baud = OneWirePassiveDriver.STANDARD_RESET_BAUD;
+        stopBits = OneWirePassiveDriver.RESET_STOP_BITS;
+        open = true;
+        echoesLen = 0;
+    }
+
+    /**
+     * Set the port parameters, 8 data bits and no parity. Echoes that have
+     * not been read are kept, as stty keeps them.
+     *
+     * @param b baud rate
+     * @param s stop bits, 1 or 2
+     * @throws IOException if the baud rate is not one a passive adapter
+     * uses with those stop bits
+     */
+    public void configure(int b, int s) throws IOException {
+        if (s == OneWirePassiveDriver.RESET_STOP_BITS
+                ? b != OneWirePassiveDriver.STANDARD_RESET_BAUD && b != OneWirePassiveDriver.OVERDRIVE_RESET_BAUD
+                : b != OneWirePassiveDriver.STANDARD_DATA_BAUD && b != OneWirePassiveDriver.OVERDRIVE_DATA_BAUD) {
+            throw new IOException("Unsupported " + b + " baud " + s + " stop bits");
+        }
+        configures++;
+        baud = b;
+        stopBits = s;
+    }
+
+    /**
+     * Zero the configures counter
+     */
+    public void clearCounters() {
+        configures = 0;
+    }
+
+    @Override
+    public boolean isOpen() {
+        return open;
+    }
+
+    @Override
+    public void close() {
+        open = false;
+    }
+
+    @Override
+    public int write(ByteBuffer src) throws IOException {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+        bus.roundTrip();
+        int n = src.remaining();
+        boolean reset = (stopBits == OneWirePassiveDriver.RESET_STOP_BITS);
+        if (reset) {
+            bus.setSpeed(baud == OneWirePassiveDriver.STANDARD_RESET_BAUD
+                    ? OneWireSerialDriver.MODE.NORMAL : OneWireSerialDriver.MODE.OVERDRIVE);
+        } else {
+            bus.setSpeed(baud == OneWirePassiveDriver.STANDARD_DATA_BAUD
+                    ? OneWireSerialDriver.MODE.NORMAL : OneWireSerialDriver.MODE.OVERDRIVE);
+        }
+        for (int i = 0; i < n; i++) {
+            int b = src.get() & 0xFF;
+            int echo;
+            if (reset) {
+                boolean presence = bus.resetPulse() == OneWireError.NO_ERROR_SET;
+                echo = presence ? b & (b - 1) : b;
+            } else {
+                boolean line = bus.slot((b & 0x01) != 0);
+                echo = line ? b : b & 0xFE;
+            }
+            if (echoesLen < echoes.length) {
+                echoes[echoesLen++] = (byte) echo;
+            }
+        }
+        return n;
+    }
+
+    @Override
+    public int read(ByteBuffer dst) throws IOException {
+        if (!open) {
+            throw new ClosedChannelException();
+        }
+        if (timeouts > 0) {
+            timeouts--;
+            return 0;
+        }
+        int n = Math.min(dst.remaining(), echoesLen);
+        dst.put(echoes, 0, n);
+        System.arraycopy(echoes, n, echoes, 0, echoesLen - n);
+        echoesLen -= n;
+        return n;
+    }
+}
@@ -21,10 +21,17 @@ public class OneWireThermometer extends OneWireDevice {
     public static final byte DS1923 = 0x41;
 
     // Commands. See https://datasheets.maximintegrated.com/en/ds/DS18B20.pdf
-    private static final byte CONVERT_T = (byte) 0x44;
-    private static final byte WRITE_SCRATCHPAD = (byte) 0x4E;
+    static final byte CONVERT_T = (byte) 0x44;
+    static final byte WRITE_SCRATCHPAD = (byte) 0x4E;
     private static final byte READ_SCRATCHPAD = (byte) 0xBE;
-    private static final byte COPY_SCRATCHPAD = (byte) 0x48;
+    static final byte COPY_SCRATCHPAD = (byte) 0x48;
+    static final byte READ_POWER_SUPPLY = (byte) 0xB4;
+
+    // ms between read slots when polling for the end of a conversion
+    private static final int POLL_INTERVAL = 10;
+
+    // ms to allow for Copy Scratchpad to write the EEPROM
+    private static final int COPY_TIME = 10;
 
     // 9 bytes of the scratchpad
     private static final int SP_TEMPERATURE = 0;
@@ -40,13 +47,33 @@ public class OneWireThermometer extends OneWireDevice {
     // temperature detected at last update (in C)
     public double temperature;
 
+    // temperature detected at last update, in 1/16 C as held in the
+    // scratchpad (DS1820 readings are scaled to match)
+    public int raw;
+
     // bits of resolution detected at last update
     public int resolution;
     public int TH_alarm, TL_alarm;
 
+    // set by readPowerSupply() if the thermometer is parasite powered
+    public boolean parasite;
+    private boolean powerKnown;
+
+    // longest time to wait for a conversion to complete, in ms
+    public int conversionTimeout;
+
+    // time taken by the conversion at last update, in ms
+    public int conversionTime;
+
+    // Buffers reused by every read, so that polling allocates nothing
+    private final byte[] scratchpad = new byte[9];
+    private final byte[] block = new byte[2];
+
     public OneWireThermometer(long serno, OneWireSerialDriver d) {
         super(serno, d);
         temperature = -273.5; // 0K
+        conversionTimeout = 1000;
+        powerKnown = false;
     }
 
     public static boolean supportsDevice(byte fam) {
@@ -67,128 +94,447 @@ public class OneWireThermometer extends OneWireDevice {
                 serialNumber, temperature, resolution, TL_alarm, TH_alarm);
     }
 
+    /**
+     * Get the maximum conversion time from the datasheet
+     *
+     * @param resolution bits of resolution, or 0 if not known
+     * @return the conversion time in ms
+     */
+    static int datasheetConversionTime(int resolution) {
+        switch (resolution) {
+            case 9:
+                return 94;
+            case 10:
+                return 188;
+            case 11:
+                return 375;
+        }
+        return 750;
+    }
+
+    /**
+     * Wait for a conversion that has been started to complete.
+     * Externally powered thermometers answer read slots with 0 until the
+     * conversion is complete, so read slots are polled. Parasite powered
+     * thermometers can't, so the datasheet conversion time is waited
+     * instead, and the strong pullup turned off afterwards.
+     *
+     * @param driver driver for the net
+     * @param parasite true if any thermometer converting is parasite powered
+     * @param resolution highest resolution of the thermometers converting,
+     * or 0 if not known
+     * @param timeout longest time to wait, in ms
+     * @return the time taken in ms, or -1 if the conversion did not complete
+     * in time
+     */
+    static int waitForConversion(OneWireSerialDriver driver, boolean parasite,
+            int resolution, int timeout) {
+        long start = driver.msTime();
+        if (parasite) {
+            int wait = datasheetConversionTime(resolution);
+            driver.msDelay(Math.min(wait, timeout));
+            driver.setLevel(OneWireSerialDriver.MODE.NORMAL);
+            return (wait > timeout) ? -1 : (int) (driver.msTime() - start);
+        }
+
+        while (!driver.touchBit(true)) {
+            if (driver.msTime() - start >= timeout) {
+                return -1;
+            }
+            driver.msDelay(POLL_INTERVAL);
+        }
+        return (int) (driver.msTime() - start);
+    }
+
+    /**
+     * Find out if the thermometer is parasite powered, using Read Power
+     * Supply. Parasite powered thermometers pull the bus low in the read
+     * slot following the command.
+     *
+     * @return a OneWireError indicating status
+     */
+    public OneWireError readPowerSupply() {
+        OneWireError e = access();
+        if (e != OneWireError.NO_ERROR_SET) {
+            return e;
+        }
+
+        // The command and the read slot go in a single transfer
+        block[0] = READ_POWER_SUPPLY;
+        block[1] = 0x01;
+        driver.touchBits(9, block, block);
+        if (block[0] != READ_POWER_SUPPLY) {
+            return OneWireError.WRITE_VERIFY_FAILED;
+        }
+        parasite = (block[1] & 0x01) == 0;
+        powerKnown = true;
+        return OneWireError.NO_ERROR_SET;
+    }
+
+    /**
+     * Build a Write Scratchpad command setting the alarm thresholds and
+     * resolution. DS1820s only take the alarm thresholds, and ignore the
+     * resolution.
+     *
+     * @param bits resolution, 9 to 12 bits
+     * @param th high alarm threshold in C
+     * @param tl low alarm threshold in C
+     * @return the command and its data
+     */
+    static byte[] writeScratchpadCommand(int bits, int th, int tl) {
+        if (bits < 9 || bits > 12) {
+            throw new IllegalArgumentException("Resolution " + bits);
+        }
+        if (th < Byte.MIN_VALUE || th > Byte.MAX_VALUE
+                || tl < Byte.MIN_VALUE || tl > Byte.MAX_VALUE) {
+            throw new IllegalArgumentException("Alarm " + tl + "<T>" + th);
+        }
+        return new byte[] {
+            WRITE_SCRATCHPAD, (byte) th, (byte) tl,
+            (byte) (((bits - 9) << 5) | 0x1F)
+        };
+    }
+
+    /**
+     * Send Copy Scratchpad to the thermometers already addressed, and wait
+     * for the EEPROM write to complete.
+     *
+     * @param driver driver for the net
+     * @param parasite true if any thermometer addressed is parasite powered
+     * @return a OneWireError indicating status
+     */
+    static OneWireError copyScratchpad(OneWireSerialDriver driver, boolean parasite) {
+        // Parasite powered thermometers need the strong pullup to power
+        // the EEPROM write
+        byte repl = parasite ? driver.touchBytePower(COPY_SCRATCHPAD)
+                : driver.touchByte(COPY_SCRATCHPAD);
+        driver.msDelay(COPY_TIME);
+        driver.setLevel(OneWireSerialDriver.MODE.NORMAL);
+        if (repl != COPY_SCRATCHPAD) {
+            return OneWireError.COPY_SCRATCHPAD_FAILED;
+        }
+        return OneWireError.NO_ERROR_SET;
+    }
+
+    /**
+     * Read the scratchpad back after it has been written, and check it holds
+     * the configuration written
+     *
+     * @param bits resolution written
+     * @param th high alarm threshold written
+     * @param tl low alarm threshold written
+     * @return a OneWireError indicating status
+     */
+    OneWireError verifyConfiguration(int bits, int th, int tl) {
+        OneWireError e = OneWireError.CRC_FAILED;
+        int attempt = 0; // max tries
+        while (e == OneWireError.CRC_FAILED && attempt++ < 3) {
+            e = readScratchpad(scratchpad);
+        }
+        if (e != OneWireError.NO_ERROR_SET) {
+            return e;
+        }
+        decode(scratchpad);
+        if (TH_alarm != th || TL_alarm != tl
+                || (getFamily() != DS1820 && resolution != bits)) {
+            return OneWireError.WRITE_SCRATCHPAD_FAILED;
+        }
+        return OneWireError.NO_ERROR_SET;
+    }
+
+    /**
+     * Set the resolution and alarm thresholds, and check them by reading
+     * the scratchpad back. Lower resolutions convert faster. The
+     * thermometer responds to an alarm search when the temperature is at or
+     * outside the thresholds.
+     *
+     * @param bits resolution, 9 to 12 bits. DS1820s are always 9 bit, and
+     * ignore this.
+     * @param th high alarm threshold in C
+     * @param tl low alarm threshold in C
+     * @param persist true to copy the settings to EEPROM, so they survive
+     * power being removed
+     * @return a OneWireError indicating status
+     */
+    public OneWireError configure(int bits, int th, int tl, boolean persist) {
+        if (getFamily() == DS1923) {
+            return OneWireError.WRONG_TYPE;
+        }
+
+        byte[] tx = writeScratchpadCommand(bits, th, tl);
+        if (getFamily() == DS1820) {
+            // No configuration register
+            byte[] tx2 = new byte[3];
+            System.arraycopy(tx, 0, tx2, 0, 3);
+            tx = tx2;
+        }
+
+        begin().write(tx, 0, tx.length);
+        OneWireError e = execute();
+        if (e == OneWireError.WRITE_VERIFY_FAILED) {
+            return OneWireError.WRITE_SCRATCHPAD_FAILED;
+        }
+        if (e != OneWireError.NO_ERROR_SET) {
+            return e;
+        }
+
+        e = verifyConfiguration(bits, th, tl);
+        if (e != OneWireError.NO_ERROR_SET || !persist) {
+            return e;
+        }
+
+        if (!powerKnown) {
+            e = readPowerSupply();
+            if (e != OneWireError.NO_ERROR_SET) {
+                return e;
+            }
+        }
+        e = access();
+        if (e != OneWireError.NO_ERROR_SET) {
+            return e;
+        }
+        return copyScratchpad(driver, parasite);
+    }
+
     /**
      * Poll the sensor to update the temperature
      *
      * @return a OneWireError indicating status
      */
     public OneWireError update() {
+        long start = driver.nanoTime();
+        OneWireError e = convertAndRead();
+        driver.getMetrics().record(OneWireMetrics.Histogram.UPDATE_NS,
+                driver.nanoTime() - start);
+        return e;
+    }
+
+    private OneWireError convertAndRead() {
         int attempt = 0; // max tries
         int ds1820_try = 0;
 
         while (attempt++ < 3) {
+            if (attempt > 1) {
+                driver.getMetrics().count(OneWireMetrics.Counter.RETRIES, 1);
+            }
+
+            OneWireError e;
+            if (!powerKnown) {
+                e = readPowerSupply();
+                if (e != OneWireError.NO_ERROR_SET) {
+                    return e;
+                }
+            }
 
             // Initiate temperature conversion
-            OneWireError e = access();
+            e = convert();
             if (e != OneWireError.NO_ERROR_SET) {
                 return e;
             }
 
-            byte repl = driver.touchByte(CONVERT_T);
-            if (repl != CONVERT_T) {
-                return OneWireError.WRITE_VERIFY_FAILED;
+            conversionTime = waitForConversion(driver, parasite, resolution,
+                    conversionTimeout);
+            if (conversionTime < 0) {
+                return OneWireError.READ_STATUS_NOT_COMPLETE;
             }
+            driver.getMetrics().record(OneWireMetrics.Histogram.CONVERSION_MS, conversionTime);
 
-            // Sleep to allow conversion to complete. Max conversion time
-            // for the DS18B20 is 750ms, so 1s is ample.
-            driver.msDelay(1000);
-
-            // Initiate scratchpad read
-            e = access();
+            e = readScratchpad(scratchpad);
+            if (e == OneWireError.CRC_FAILED) {
+                continue; // Try again
+            }
             if (e != OneWireError.NO_ERROR_SET) {
                 return e;
             }
 
-            if (driver.touchByte(READ_SCRATCHPAD) != READ_SCRATCHPAD) {
-                return OneWireError.READ_SCRATCHPAD_FAILED;
-            }
+            if (getFamily() == DS1820) {
+                // Check for DS1820 glitch condition
+                // COUNT_PER_C - COUNT_REMAIN == 1
+                if (attempt == 0) {
+                    if ((scratchpad[SP_COUNT_PER_C] - scratchpad[SP_COUNT_REMAIN]) == 1) {
+                        // DS1820 error, try again
+                        ds1820_try = 1;
+                        continue; // try again
+                    }
+                }
 
-            CRC8 crc = new CRC8();
-            byte[] scratchpad = new byte[9];
-            for (int i = 0; i < 9; i++) {
-                byte b = driver.touchByte((byte) 0xFF);
-                crc.add(b);
-                scratchpad[i] = b;
+                // Check for DS18S20 Error condition
+                // LSB = 0xAA
+                // MSB = 0x00
+                // COUNT_REMAIN = 0x0C
+                // COUNT_PER_C = 0x10
+                if (ds1820_try == 0) {
+                    if ((scratchpad[SP_TL] == 0xAA)
+                            && (scratchpad[SP_TH] == 0x00)
+                            && (scratchpad[SP_COUNT_REMAIN] == 0x0C)
+                            && (scratchpad[SP_COUNT_PER_C] == 0x10)) {
+                        ds1820_try = 1;
+                        continue; // try again
+                    }
+                }
             }
 
-            TL_alarm = scratchpad[SP_TL];
-            TH_alarm = scratchpad[SP_TH];
-            switch (scratchpad[SP_CONFIG] & 0x60) {
-                case 0x00:
-                    resolution = 9;
-                    break;
-                case 0x20:
-                    resolution = 10;
-                    break;
-                case 0x40:
-                    resolution = 11;
-                    break;
-                case 0x60:
-                    resolution = 12;
-                    break;
+            decode(scratchpad);
+            return OneWireError.NO_ERROR_SET;
+        }
+        return OneWireError.READ_STATUS_NOT_COMPLETE;
+    }
+
+    /**
+     * Start a temperature conversion and return without waiting for it,
+     * finding out how the thermometer is powered first if need be. If it
+     * is parasite powered the strong pullup is left on, and the caller must
+     * turn it off once the conversion is done. Used by OneWireAsyncBus.
+     *
+     * @return a OneWireError indicating status
+     */
+    OneWireError startConversion() {
+        if (!powerKnown) {
+            OneWireError e = readPowerSupply();
+            if (e != OneWireError.NO_ERROR_SET) {
+                return e;
             }
+        }
+        return convert();
+    }
 
-            // If the CRC8 is valid then calculate the temperature 
-            if (crc.get() == 0x00) {
-                // DS1822 and DS18B20 use a different calculation
-                switch (this.getFamily()) {
-                    case DS18B20:
-                    case DS1822:
-                    case DS28EA00:
-                    case DS1923:
-                        int temp2 = ((int) scratchpad[SP_SIGN] << 8)
-                                | ((int) scratchpad[SP_TEMPERATURE] & 0xFF);
-                        temperature = temp2 / 16.0;
-                        break;
-                    case DS1820:
-                        // Check for DS1820 glitch condition
-                        // COUNT_PER_C - COUNT_REMAIN == 1
-                        if (attempt == 0) {
-                            if ((scratchpad[SP_COUNT_PER_C] - scratchpad[SP_COUNT_REMAIN]) == 1) {
-                                // DS1820 error, try again
-                                ds1820_try = 1;
-                                continue; // try again
-                            }
-                        }
-
-                        // Check for DS18S20 Error condition
-                        // LSB = 0xAA
-                        // MSB = 0x00
-                        // COUNT_REMAIN = 0x0C
-                        // COUNT_PER_C = 0x10
-                        if (ds1820_try == 0) {
-                            if ((scratchpad[SP_TL] == 0xAA)
-                                    && (scratchpad[SP_TH] == 0x00)
-                                    && (scratchpad[SP_COUNT_REMAIN] == 0x0C)
-                                    && (scratchpad[SP_COUNT_PER_C] == 0x10)) {
-                                ds1820_try = 1;
-                                continue; // try again
-                            }
-                        }
-
-                        //  Calculated using formula from DS1820 datasheet
-                        //                   count_per_C - count_remain
-                        //   (temp - 0.25) * --------------------------
-                        //                       count_per_C
-                        //
-                        //   If Sign is not 0x00 then it is a negative (Centigrade) number, and
-                        //   the temperature must be subtracted from 0x100 and multiplied by -1 */
-                        if (scratchpad[SP_SIGN] == 0) {
-                            temperature = (double) (scratchpad[SP_TEMPERATURE] >> 1);
-                        } else {
-                            temperature = -1 * (int) (0x100 - scratchpad[SP_TEMPERATURE]) >> 1;
-                        }
-                        /* Negative temp calculation */
-                        temperature -= 0.25;
-                        int hi_precision = (int) scratchpad[SP_COUNT_PER_C] - (int) scratchpad[SP_COUNT_REMAIN];
-                        hi_precision = hi_precision / (int) scratchpad[SP_COUNT_PER_C];
-                        temperature += hi_precision;
-                }
+    /**
+     * Start a temperature conversion. Parasite powered thermometers need
+     * the strong pullup, which has to be primed on the command byte itself,
+     * so they are addressed first. Otherwise the reset, Match ROM and
+     * command go in one transaction.
+     *
+     * @return a OneWireError indicating status
+     */
+    private OneWireError convert() {
+        if (!parasite) {
+            begin().write(CONVERT_T);
+            return execute();
+        }
 
-                return OneWireError.NO_ERROR_SET;
+        OneWireError e = access();
+        if (e != OneWireError.NO_ERROR_SET) {
+            return e;
+        }
+        if (driver.touchBytePower(CONVERT_T) != CONVERT_T) {
+            driver.setLevel(OneWireSerialDriver.MODE.NORMAL);
+            return OneWireError.WRITE_VERIFY_FAILED;
+        }
+        return OneWireError.NO_ERROR_SET;
+    }
+
+    /**
+     * Read the result of a conversion that has already been started, for
+     * example by OneWireSampler, and update the temperature. Reads that
+     * fail the CRC check are retried.
+     *
+     * @return a OneWireError indicating status
+     */
+    public OneWireError read() {
+        int attempt = 0; // max tries
+
+        while (attempt++ < 3) {
+            if (attempt > 1) {
+                driver.getMetrics().count(OneWireMetrics.Counter.RETRIES, 1);
+            }
+            OneWireError e = readScratchpad(scratchpad);
+            if (e == OneWireError.NO_ERROR_SET) {
+                decode(scratchpad);
+                return e;
+            }
+            if (e != OneWireError.CRC_FAILED) {
+                return e;
             }
-            // Try again
         }
         return OneWireError.READ_STATUS_NOT_COMPLETE;
     }
+
+    /**
+     * Read the scratchpad and check its CRC8
+     *
+     * @param scratchpad receives the 9 bytes of the scratchpad
+     * @return a OneWireError indicating status
+     */
+    private OneWireError readScratchpad(byte[] scratchpad) {
+        // The reset, Match ROM, command and 9 read slots go in one
+        // transaction
+        OneWireTransaction t = begin().write(READ_SCRATCHPAD);
+        int data = t.length();
+        t.read(9);
+        OneWireError e = execute();
+        if (e == OneWireError.WRITE_VERIFY_FAILED) {
+            return OneWireError.READ_SCRATCHPAD_FAILED;
+        }
+        if (e != OneWireError.NO_ERROR_SET) {
+            return e;
+        }
+
+        System.arraycopy(t.getResponse(), data, scratchpad, 0, 9);
+        if (CRC8.compute(0, scratchpad, 0, 9) != 0x00) {
+            driver.getMetrics().count(OneWireMetrics.Counter.CRC_FAILURES, 1);
+            // If the device lost its selection (say it was power cycled) it
+            // won't have answered Resume, so send Match ROM next time. If
+            // it was addressed with Skip ROM, another device may have been
+            // attached, so stop using Skip ROM.
+            driver.getSession().singleDropFailed();
+            return OneWireError.CRC_FAILED;
+        }
+        return OneWireError.NO_ERROR_SET;
+    }
+
+    /**
+     * Update the temperature, resolution and alarms from a scratchpad
+     *
+     * @param scratchpad the 9 bytes of the scratchpad, CRC checked
+     */
+    private void decode(byte[] scratchpad) {
+        TL_alarm = scratchpad[SP_TL];
+        TH_alarm = scratchpad[SP_TH];
+        switch (scratchpad[SP_CONFIG] & 0x60) {
+            case 0x00:
+                resolution = 9;
+                break;
+            case 0x20:
+                resolution = 10;
+                break;
+            case 0x40:
+                resolution = 11;
+                break;
+            case 0x60:
+                resolution = 12;
+                break;
+        }
+
+        // DS1822 and DS18B20 use a different calculation
+        switch (this.getFamily()) {
+            case DS18B20:
+            case DS1822:
+            case DS28EA00:
+            case DS1923:
+                int temp2 = ((int) scratchpad[SP_SIGN] << 8)
+                        | ((int) scratchpad[SP_TEMPERATURE] & 0xFF);
+                raw = temp2;
+                temperature = temp2 / 16.0;
+                break;
+            case DS1820:
+                //  Calculated using formula from DS1820 datasheet
+                //                   count_per_C - count_remain
+                //   (temp - 0.25) * --------------------------
+                //                       count_per_C
+                //
+                //   If Sign is not 0x00 then it is a negative (Centigrade) number, and
+                //   the temperature must be subtracted from 0x100 and multiplied by -1 */
+                if (scratchpad[SP_SIGN] == 0) {
+                    temperature = (double) (scratchpad[SP_TEMPERATURE] >> 1);
+                } else {
+                    temperature = -1 * (int) (0x100 - scratchpad[SP_TEMPERATURE]) >> 1;
+                }
+                /* Negative temp calculation */
+                temperature -= 0.25;
+                int hi_precision = (int) scratchpad[SP_COUNT_PER_C] - (int) scratchpad[SP_COUNT_REMAIN];
+                hi_precision = hi_precision / (int) scratchpad[SP_COUNT_PER_C];
+                temperature += hi_precision;
+                raw = (int) Math.round(temperature * 16);
+        }
+    }
 }
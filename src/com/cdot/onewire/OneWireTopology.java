@@ -0,0 +1,409 @@
+package com.cdot.onewire;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A map of a 1-wire net that fans out through DS2409 MicroLAN couplers:
+ * which branch of which coupler each device is on. discover() searches the
+ * trunk with every coupler switched off, then switches on each branch of
+ * each coupler in turn and searches again; the devices that weren't there
+ * before are on that branch. Couplers found on a branch are searched the
+ * same way.
+ * <p>
+ * select() connects the branch a device is on. The branch that is on is
+ * kept in the driver's OneWireSession, and nothing is sent if the device
+ * is already connected: devices on the trunk always are, and so are those
+ * on the branches leading to the one that is on. sample() samples
+ * thermometers a branch at a time, starting with the branch that is
+ * already on.
+ */
+public class OneWireTopology {
+
+    private final OneWireSerialDriver driver;
+    private final OneWireSearch search;
+
+    // Each device found, in the order found, and the branch it is on (null
+    // for the trunk)
+    private final Map<Long, OneWireBranch> devices;
+    private final Map<Long, OneWireCoupler> couplers;
+    // A sampler for each branch, as each may have different thermometers
+    // on parasite power
+    private final Map<OneWireBranch, OneWireSampler> samplers;
+
+    /**
+     * Last error seen
+     */
+    public OneWireError last_error;
+
+    /**
+     * @param d driver for the net
+     */
+    public OneWireTopology(OneWireSerialDriver d) {
+        driver = d;
+        search = new OneWireSearch(d);
+        devices = new LinkedHashMap<>();
+        couplers = new HashMap<>();
+        samplers = new HashMap<>();
+        last_error = OneWireError.NO_ERROR_SET;
+    }
+
+    /**
+     * Search the whole net, through every coupler, replacing the map.
+     * Every coupler is left switched off.
+     *
+     * @return a OneWireError indicating status. If a branch could not be
+     * switched on or searched, the rest of the net is still searched, and
+     * the first error is returned.
+     */
+    public OneWireError discover() {
+        devices.clear();
+        couplers.clear();
+        samplers.clear();
+        last_error = OneWireError.NO_ERROR_SET;
+
+        Set<Long> visible = new HashSet<>();
+        OneWireError e = searchBranch(null, visible);
+        if (e != OneWireError.NO_ERROR_SET) {
+            return last_error = e;
+        }
+        driver.getSession().setBranch(null);
+        for (OneWireCoupler c : couplersOn(null)) {
+            explore(c, null, visible);
+        }
+        return last_error;
+    }
+
+    /**
+     * Search both branches of a coupler, and the couplers found on them.
+     * The coupler's branches are left off.
+     *
+     * @param c the coupler
+     * @param parent the branch the coupler is on, which is on
+     * @param visible the devices connected when only parent is on
+     */
+    private void explore(OneWireCoupler c, OneWireBranch parent, Set<Long> visible) {
+        OneWireSession session = driver.getSession();
+        for (int branch = OneWireCoupler.MAIN; branch <= OneWireCoupler.AUX; branch++) {
+            OneWireBranch b = new OneWireBranch(c.serialNumber, branch, parent);
+            OneWireError e = c.smartOn(branch);
+            if (e != OneWireError.NO_ERROR_SET) {
+                fail(e);
+                continue;
+            }
+            session.setBranch(b);
+            Set<Long> seen = new HashSet<>(visible);
+            e = searchBranch(b, seen);
+            if (e != OneWireError.NO_ERROR_SET) {
+                fail(e);
+            }
+            for (OneWireCoupler inner : couplersOn(b)) {
+                explore(inner, b, seen);
+            }
+        }
+        OneWireError e = c.allLinesOff();
+        if (e != OneWireError.NO_ERROR_SET) {
+            fail(e);
+            session.forgetBranch();
+        } else {
+            session.setBranch(parent);
+        }
+    }
+
+    /**
+     * Search with a branch on, and record the devices that weren't
+     * connected before it was switched on. Couplers seen for the first time
+     * are switched off and the branch searched again, as a coupler left on
+     * would make the devices behind it look as if they were on this branch.
+     *
+     * @param b the branch that is on, null for the trunk
+     * @param visible the devices connected before the branch was switched
+     * on; the devices on the branch are added
+     * @return a OneWireError indicating status
+     */
+    private OneWireError searchBranch(OneWireBranch b, Set<Long> visible) {
+        final List<Long> found = new ArrayList<>();
+        OneWireSearch.Device callback = new OneWireSearch.Device() {
+            @Override
+            public OneWireError device(long serno) {
+                found.add(serno);
+                return OneWireError.NO_ERROR_SET;
+            }
+        };
+        Set<Long> switchedOff = new HashSet<>();
+        while (true) {
+            found.clear();
+            OneWireError e = search.scan(callback);
+            if (e != OneWireError.NO_ERROR_SET) {
+                return e;
+            }
+            boolean again = false;
+            for (long serno : found) {
+                if (OneWireCoupler.supportsDevice(serno) && !visible.contains(serno)
+                        && switchedOff.add(serno)) {
+                    // May fail if it is behind another coupler just switched
+                    // off; it will be found again on that coupler's branch
+                    new OneWireCoupler(serno, driver).allLinesOff();
+                    again = true;
+                }
+            }
+            if (!again) {
+                break;
+            }
+        }
+        for (long serno : found) {
+            if (visible.add(serno)) {
+                devices.put(serno, b);
+                if (OneWireCoupler.supportsDevice(serno)) {
+                    couplers.put(serno, new OneWireCoupler(serno, driver));
+                }
+            }
+        }
+        return OneWireError.NO_ERROR_SET;
+    }
+
+    private void fail(OneWireError e) {
+        if (last_error == OneWireError.NO_ERROR_SET) {
+            last_error = e;
+        }
+    }
+
+    /**
+     * @param b a branch, or null for the trunk
+     * @return the couplers on the branch
+     */
+    private List<OneWireCoupler> couplersOn(OneWireBranch b) {
+        List<OneWireCoupler> on = new ArrayList<>();
+        for (OneWireCoupler c : couplers.values()) {
+            OneWireBranch cb = devices.get(c.serialNumber);
+            if (b == null ? cb == null : b.equals(cb)) {
+                on.add(c);
+            }
+        }
+        return on;
+    }
+
+    /**
+     * @return the serial numbers of all the devices found, couplers
+     * included
+     */
+    public List<Long> getDevices() {
+        return new ArrayList<>(devices.keySet());
+    }
+
+    /**
+     * @param b a branch, or null for the trunk
+     * @return the serial numbers of the devices on the branch
+     */
+    public List<Long> getDevices(OneWireBranch b) {
+        List<Long> on = new ArrayList<>();
+        for (Map.Entry<Long, OneWireBranch> d : devices.entrySet()) {
+            if (b == null ? d.getValue() == null : b.equals(d.getValue())) {
+                on.add(d.getKey());
+            }
+        }
+        return on;
+    }
+
+    /**
+     * @param serno serial number of a device
+     * @return true if the device was found by discover()
+     */
+    public boolean contains(long serno) {
+        return devices.containsKey(serno);
+    }
+
+    /**
+     * @param serno serial number of a device
+     * @return the branch the device is on, or null if it is on the trunk or
+     * was not found
+     */
+    public OneWireBranch getBranch(long serno) {
+        return devices.get(serno);
+    }
+
+    /**
+     * @param b a branch
+     * @return the branches leading to b, starting with the one on the
+     * trunk and ending with b
+     */
+    private static List<OneWireBranch> path(OneWireBranch b) {
+        List<OneWireBranch> p = new ArrayList<>();
+        for (; b != null; b = b.parent) {
+            p.add(b);
+        }
+        Collections.reverse(p);
+        return p;
+    }
+
+    /**
+     * Connect a branch, switching couplers only if it is not already
+     * connected. Branches that are on but not needed are switched off,
+     * deepest first, so that couplers are never left on behind a branch
+     * that is off.
+     *
+     * @param b the branch, or null for the trunk
+     * @return a OneWireError indicating status
+     */
+    public OneWireError select(OneWireBranch b) {
+        OneWireSession session = driver.getSession();
+        if (session.isBranchKnown() && OneWireBranch.reaches(session.getBranch(), b)) {
+            return OneWireError.NO_ERROR_SET;
+        }
+
+        List<OneWireBranch> from;
+        if (session.isBranchKnown()) {
+            from = path(session.getBranch());
+        } else {
+            // Don't know what's on, so switch every coupler off, deepest
+            // first. Errors are expected from couplers behind others.
+            List<OneWireCoupler> all = new ArrayList<>(couplers.values());
+            Collections.sort(all, new Comparator<OneWireCoupler>() {
+                @Override
+                public int compare(OneWireCoupler x, OneWireCoupler y) {
+                    return depth(y.serialNumber) - depth(x.serialNumber);
+                }
+            });
+            for (OneWireCoupler c : all) {
+                c.allLinesOff();
+            }
+            from = Collections.emptyList();
+        }
+        List<OneWireBranch> to = path(b);
+
+        int common = 0;
+        while (common < from.size() && common < to.size()
+                && from.get(common).equals(to.get(common))) {
+            common++;
+        }
+        for (int i = from.size() - 1; i >= common; i--) {
+            if (i == common && i < to.size()
+                    && from.get(i).coupler == to.get(i).coupler) {
+                // Smart-On of the other branch switches this one off
+                break;
+            }
+            OneWireError e = coupler(from.get(i)).allLinesOff();
+            if (e != OneWireError.NO_ERROR_SET) {
+                return e;
+            }
+        }
+        for (int i = common; i < to.size(); i++) {
+            OneWireError e = coupler(to.get(i)).smartOn(to.get(i).branch);
+            if (e != OneWireError.NO_ERROR_SET) {
+                return e;
+            }
+        }
+        session.setBranch(b);
+        return OneWireError.NO_ERROR_SET;
+    }
+
+    /**
+     * Connect the branch a device is on
+     *
+     * @param serno serial number of the device
+     * @return a OneWireError indicating status
+     */
+    public OneWireError select(long serno) {
+        return select(devices.get(serno));
+    }
+
+    private int depth(long serno) {
+        OneWireBranch b = devices.get(serno);
+        return b == null ? 0 : b.depth();
+    }
+
+    private OneWireCoupler coupler(OneWireBranch b) {
+        OneWireCoupler c = couplers.get(b.coupler);
+        if (c == null) {
+            c = new OneWireCoupler(b.coupler, driver);
+            couplers.put(b.coupler, c);
+        }
+        return c;
+    }
+
+    /**
+     * Sample a group of thermometers a branch at a time, each branch with a
+     * single conversion as OneWireSampler.sample(). Thermometers on the
+     * trunk are sampled with the first branch, and the branch that is
+     * already on goes first, so it isn't switched off and on again.
+     *
+     * @param thermometers the thermometers to read
+     * @return a reading for each thermometer, in the order given. last_error
+     * is the first error seen.
+     */
+    public List<OneWireReading> sample(List<OneWireThermometer> thermometers) {
+        long timestamp = System.currentTimeMillis();
+        last_error = OneWireError.NO_ERROR_SET;
+
+        List<OneWireThermometer> trunk = new ArrayList<>();
+        Map<OneWireBranch, List<OneWireThermometer>> groups = new LinkedHashMap<>();
+        OneWireSession session = driver.getSession();
+        OneWireBranch on = session.isBranchKnown() ? session.getBranch() : null;
+        for (OneWireThermometer t : thermometers) {
+            OneWireBranch b = devices.get(t.serialNumber);
+            if (b == null) {
+                trunk.add(t);
+                continue;
+            }
+            List<OneWireThermometer> group = groups.get(b);
+            if (group == null) {
+                group = new ArrayList<>();
+                groups.put(b, group);
+            }
+            group.add(t);
+        }
+        List<OneWireBranch> order = new ArrayList<>(groups.keySet());
+        if (order.isEmpty()) {
+            order.add(null);
+            groups.put(null, trunk);
+        } else {
+            for (int i = 0; i < order.size(); i++) {
+                if (order.get(i).equals(on)) {
+                    order.add(0, order.remove(i));
+                    break;
+                }
+            }
+            groups.get(order.get(0)).addAll(trunk);
+        }
+
+        Map<OneWireThermometer, OneWireReading> readings = new IdentityHashMap<>();
+        for (OneWireBranch b : order) {
+            List<OneWireThermometer> group = groups.get(b);
+            OneWireError e = select(b);
+            if (e != OneWireError.NO_ERROR_SET) {
+                fail(e);
+                for (OneWireThermometer t : group) {
+                    readings.put(t, new OneWireReading(t.serialNumber, timestamp,
+                            t.raw, t.temperature, 0, e));
+                }
+                continue;
+            }
+            OneWireSampler sampler = samplers.get(b);
+            if (sampler == null) {
+                sampler = new OneWireSampler(driver);
+                samplers.put(b, sampler);
+            }
+            List<OneWireReading> r = sampler.sample(group);
+            for (int i = 0; i < group.size(); i++) {
+                readings.put(group.get(i), r.get(i));
+                if (r.get(i).status != OneWireError.NO_ERROR_SET) {
+                    fail(r.get(i).status);
+                }
+            }
+        }
+
+        List<OneWireReading> result = new ArrayList<>(thermometers.size());
+        for (OneWireThermometer t : thermometers) {
+            result.add(readings.get(t));
+        }
+        return result;
+    }
+}
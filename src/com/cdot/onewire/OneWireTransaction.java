@@ -0,0 +1,205 @@
+package com.cdot.onewire;
+
+/**
+ * A frame of 1-wire traffic built up from a reset, a ROM command, a
+ * function command, its data and read slots, and sent as a single block.
+ * Accessing a device with separate calls costs a round trip to the adapter
+ * for the reset, the ROM command and each function command; a transaction
+ * costs one round trip (per UART_FIFO_SIZE bits), and the echoes of all the
+ * bytes written are checked together once it has been sent.
+ * <p>
+ * A transaction can be cleared and built again, so that a device polled
+ * repeatedly allocates nothing.
+ */
+public class OneWireTransaction {
+
+    // bytes to send, the response, and whether each byte is written (and
+    // its echo checked) or is a read
+    private final byte[] tx;
+    private final byte[] rx;
+    private final boolean[] written;
+    private int length;
+    private boolean reset;
+
+    /**
+     * @param capacity largest number of bytes in the frame, not counting
+     * the reset
+     */
+    public OneWireTransaction(int capacity) {
+        tx = new byte[capacity];
+        rx = new byte[capacity];
+        written = new boolean[capacity];
+        clear();
+    }
+
+    /**
+     * Empty the transaction, ready to build another
+     *
+     * @return this
+     */
+    public OneWireTransaction clear() {
+        length = 0;
+        reset = false;
+        return this;
+    }
+
+    /**
+     * Start the frame with a reset. Must be added before anything else.
+     *
+     * @return this
+     */
+    public OneWireTransaction reset() {
+        if (length > 0) {
+            throw new IllegalStateException("Reset must start the transaction");
+        }
+        reset = true;
+        return this;
+    }
+
+    /**
+     * Add Match ROM and a serial number, MSB first
+     *
+     * @param serno serial number of the device to address
+     * @return this
+     */
+    public OneWireTransaction matchROM(long serno) {
+        write(OneWireDevice.MATCH_ROM);
+        for (int i = 0; i < 8; i++) {
+            write((byte) ((serno >> ((7 - i) * 8)) & 0xFF));
+        }
+        return this;
+    }
+
+    /**
+     * Add Skip ROM, addressing every device on the net
+     *
+     * @return this
+     */
+    public OneWireTransaction skipROM() {
+        return write(OneWireDevice.SKIP_ROM);
+    }
+
+    /**
+     * Add a byte to be written. Its echo is checked.
+     *
+     * @param b the byte
+     * @return this
+     */
+    public OneWireTransaction write(byte b) {
+        if (length == tx.length) {
+            throw new IllegalArgumentException("Transaction too long");
+        }
+        tx[length] = b;
+        written[length++] = true;
+        return this;
+    }
+
+    /**
+     * Add bytes to be written. Their echoes are checked.
+     *
+     * @param b buffer holding the bytes
+     * @param off offset of the first byte in b
+     * @param len number of bytes
+     * @return this
+     */
+    public OneWireTransaction write(byte[] b, int off, int len) {
+        for (int i = 0; i < len; i++) {
+            write(b[off + i]);
+        }
+        return this;
+    }
+
+    /**
+     * Add read slots for a number of bytes
+     *
+     * @param n number of bytes to read
+     * @return this
+     */
+    public OneWireTransaction read(int n) {
+        if (length + n > tx.length) {
+            throw new IllegalArgumentException("Transaction too long");
+        }
+        for (int i = 0; i < n; i++) {
+            tx[length] = (byte) 0xFF;
+            written[length++] = false;
+        }
+        return this;
+    }
+
+    /**
+     * @return the number of bytes in the frame so far, which is the
+     * offset in the response of the next byte added
+     */
+    public int length() {
+        return length;
+    }
+
+    /**
+     * @param i offset of a byte in the frame
+     * @return the response to the byte, once the transaction has been sent
+     */
+    public byte get(int i) {
+        return rx[i];
+    }
+
+    /**
+     * @return the response to the whole frame, once the transaction has been
+     * sent. The array is reused by the next transaction.
+     */
+    public byte[] getResponse() {
+        return rx;
+    }
+
+    /**
+     * Send the frame, and check the echo of every byte written
+     *
+     * @param driver driver for the net
+     * @return a OneWireError indicating status. NO_DEVICES_ON_NET if the
+     * reset saw no presence pulse, WRITE_VERIFY_FAILED if any byte written
+     * did not echo, which means something held the line low while it was
+     * written: a short, noise, or a device out of step. A device that is
+     * not there doesn't cause this; the writes echo, and the reads that
+     * follow are all ones, so the caller sees a CRC failure.
+     */
+    public OneWireError execute(OneWireSerialDriver driver) {
+        if (reset) {
+            OneWireError e = driver.resetAndTouchBlock(tx, 0, length, rx);
+            if (e != OneWireError.NO_ERROR_SET) {
+                return e;
+            }
+            return verify(0);
+        }
+        return execute(driver, 0);
+    }
+
+    /**
+     * Send the frame from a given byte on, without the reset, and check the
+     * echo of every byte written. Used when the device has already been
+     * addressed some other way than by the ROM command at the start of the
+     * frame.
+     *
+     * @param driver driver for the net
+     * @param first offset of the first byte to send. The response to each
+     * byte sent is at the same offset in the response as if the whole frame
+     * had been sent.
+     * @return a OneWireError indicating status, as for execute(driver)
+     */
+    public OneWireError execute(OneWireSerialDriver driver, int first) {
+        if (!driver.touchBlock(tx, first, length - first, rx)) {
+            return OneWireError.BLOCK_FAILED;
+        }
+        return verify(first);
+    }
+
+    /**
+     * Check the echo of every byte written from a given byte on
+     */
+    private OneWireError verify(int first) {
+        for (int i = first; i < length; i++) {
+            if (written[i] && rx[i] != tx[i]) {
+                return OneWireError.WRITE_VERIFY_FAILED;
+            }
+        }
+        return OneWireError.NO_ERROR_SET;
+    }
+}